@@ -0,0 +1,57 @@
+package com.github.mgunlogson.cuckoofilter4j;
+
+/**
+ * Locking strategy for the buckets of a {@link CountingCuckooFilter}. Multi
+ * bucket methods must lock in the same order every time so callers never
+ * deadlock, see the thread safety notes in the filter.
+ *
+ * @see SegmentedBucketLocker
+ * @see UnsynchronizedBucketLocker
+ */
+interface BucketLocker {
+
+	void lockBucketsWrite(long i1, long i2);
+
+	void lockBucketsRead(long i1, long i2);
+
+	void unlockBucketsWrite(long i1, long i2);
+
+	void unlockBucketsRead(long i1, long i2);
+
+	void lockAllBucketsRead();
+
+	void unlockAllBucketsRead();
+
+	void lockAllBucketsWrite();
+
+	void unlockAllBucketsWrite();
+
+	void lockSingleBucketWrite(long i1);
+
+	void unlockSingleBucketWrite(long i1);
+
+	void lockSingleBucketRead(long i1);
+
+	void unlockSingleBucketRead(long i1);
+
+	/**
+	 * Number of independently lockable segments, 0 if nothing is locked.
+	 */
+	default int getSegmentCount() {
+		return 0;
+	}
+
+	/**
+	 * Segment locks taken so far.
+	 */
+	default long getAcquisitionCount() {
+		return 0;
+	}
+
+	/**
+	 * Segment locks that had to wait for another thread.
+	 */
+	default long getContentionCount() {
+		return 0;
+	}
+}
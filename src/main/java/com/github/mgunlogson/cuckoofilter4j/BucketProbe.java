@@ -0,0 +1,44 @@
+package com.github.mgunlogson.cuckoofilter4j;
+
+/**
+ * Compares tags against the slots of both candidate buckets of a lookup, as
+ * written by {@link FilterTable#readCandidates(long, long, long[], int)}:
+ * {@link #PROBE_SLOTS} slots per lookup, so a lookup hits when any of them
+ * equals its tag.
+ * <p>
+ * This is the Java 8 version, plain loops. The multi-release JAR carries
+ * another version of this class for Java 17 and later, which compares with
+ * {@code jdk.incubator.vector} when the JVM was started with
+ * {@code --add-modules jdk.incubator.vector} and uses these loops otherwise.
+ * Both give the same results.
+ */
+final class BucketProbe {
+
+    static final int PROBE_SLOTS = 2 * CountingCuckooFilter.BUCKET_SIZE;
+
+    private BucketProbe() {
+    }
+
+    static boolean isVectorized() {
+        return false;
+    }
+
+    static boolean contains(long[] slots, int at, long tag) {
+        for (int i = at; i < at + PROBE_SLOTS; i++) {
+            if (slots[i] == tag) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Lookup i of n compares tags[i] against slots[i * PROBE_SLOTS, (i + 1) *
+     * PROBE_SLOTS), its result goes to out[outAt + i].
+     */
+    static void containsAll(long[] slots, long[] tags, int n, boolean[] out, int outAt) {
+        for (int i = 0; i < n; i++) {
+            out[outAt + i] = contains(slots, i * PROBE_SLOTS, tags[i]);
+        }
+    }
+}
@@ -3,15 +3,32 @@ package com.github.mgunlogson.cuckoofilter4j;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.hash.Funnel;
 
+import javax.management.JMException;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
 import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkPositionIndexes;
+import static com.google.common.base.Preconditions.checkState;
 
 public final class CountingCuckooFilter<T> implements Serializable {
 
@@ -26,7 +43,18 @@ public final class CountingCuckooFilter<T> implements Serializable {
      *
      */
     private static final long serialVersionUID = -1337735144654851942L;
-    static final int INSERT_ATTEMPTS = 500;
+    // bounds for the breadth-first eviction path search
+    static final int MAX_SEARCH_NODES = 4096;
+    static final int MAX_PATH_DEPTH = 7;
+    static final int PATH_SEARCH_RETRIES = 16;
+    // entries a bounded insert may leave for background relocation
+    static final int HOLDING_CAPACITY = 1024;
+    // buckets one task of the parallel decay pass covers
+    static final int DECAY_CHUNK_BUCKETS = 1 << 12;
+    // buckets one put halves while an aging pass is running
+    static final int AGING_STEP_BUCKETS = 1 << 6;
+    // lookups mightContainAll reads before comparing them together
+    static final int PROBE_BATCH = 64;
     static final int BUCKET_SIZE = 4;
     // make sure to update getNeededBitsForFpRate() if changing this... then
     // again don't change this
@@ -39,14 +67,52 @@ public final class CountingCuckooFilter<T> implements Serializable {
     @VisibleForTesting
     final IndexTagCalc<T> hasher;
     private final AtomicLong count;
+    private final AtomicLong saturationCount = new AtomicLong(0);
+    /**
+     * Set once decay or clear() has taken the last copy of some tag out of
+     * the filter, see {@link #mayHaveLostKeys()}. Never reset.
+     */
+    private volatile boolean keysDropped;
     /**
      * Only stored for serialization since the bucket locker is transient.
      * equals() and hashcode() just check the concurrency value in the bucket
      * locker and ignore this
      */
     private final int expectedConcurrency;
-   // private final StampedLock victimLock;
-    private transient SegmentedBucketLocker bucketLocker;
+    /**
+     * Guards {@link #holding}. Taken before any segment lock, see the notes above.
+     */
+    private final StampedLock victimLock = new StampedLock();
+    private transient BucketLocker bucketLocker;
+    /**
+     * Set by {@link Builder#withBoundedInsert(int, Executor)}. A null executor
+     * means put runs the full eviction path search itself and nothing is held.
+     */
+    private transient Executor relocationExecutor;
+    HoldingArea holding;
+    private transient int maxDisplacements;
+    private transient AtomicBoolean relocationScheduled;
+    /**
+     * Set by {@link Builder#withAgingPeriod(long)}, 0 when the filter never
+     * decays by itself.
+     */
+    private transient long agingPeriod;
+    private transient AtomicLong incrementsSinceDecay;
+    /**
+     * Aging steps requested and taken. Each crossed period requests one pass,
+     * agingSteps steps of AGING_STEP_BUCKETS buckets; step n covers step
+     * n % agingSteps of the table.
+     */
+    private transient AtomicLong agingStepsDue;
+    private transient AtomicLong agingStepsTaken;
+    private transient long agingSteps;
+    private transient long agingStepsPerIncrement;
+    /**
+     * Only present when the filter was built with a JMX name. Not restored on
+     * deserialization, register the copy yourself if you need it monitored.
+     */
+    private transient volatile FilterStats stats;
+    private transient ObjectName jmxName;
 
     /* @VisibleForTesting
     Utils.Victim victim;
@@ -59,13 +125,14 @@ public final class CountingCuckooFilter<T> implements Serializable {
     /**
      * Creates a Cuckoo filter.
      */
-    private CountingCuckooFilter(IndexTagCalc<T> hasher, FilterTable table, AtomicLong count, int expectedConcurrency) {
+    private CountingCuckooFilter(IndexTagCalc<T> hasher, FilterTable table, AtomicLong count, int expectedConcurrency,
+            BucketLocker bucketLocker) {
         this.hasher = hasher;
         this.table = table;
         this.count = count;
 
         this.expectedConcurrency = expectedConcurrency;
-        this.bucketLocker = new SegmentedBucketLocker(expectedConcurrency);
+        this.bucketLocker = bucketLocker;
     }
 
     /***
@@ -85,7 +152,17 @@ public final class CountingCuckooFilter<T> implements Serializable {
         private Utils.Algorithm hashAlgorithm;
         private double fpp = DEFAULT_FP;
         private int expectedConcurrency = DEFAULT_CONCURRENCY;
-
+        private int maxConcurrency;
+        private ObjectName jmxName;
+        private int maxDisplacements;
+        private Executor relocationExecutor;
+        private boolean threadConfined;
+        private boolean checkOwnerThread;
+        private long agingPeriod;
+        private boolean exactSize;
+        private boolean semiSorted;
+        private boolean cacheLineBlocked;
+        private double maxPadding;
 
 
         public Builder(Funnel<? super T> funnel, long maxKeys) {
@@ -121,19 +198,194 @@ public final class CountingCuckooFilter<T> implements Serializable {
             return this;
         }
 
+        /**
+         * Lets the filter add lock segments while it runs, up to what
+         * {@link #withExpectedConcurrency(int)} would give for maxConcurrency,
+         * when lock contention stays high. The filter starts with the segments
+         * for the expected concurrency.
+         */
+        public CountingCuckooFilter.Builder<T> withAdaptiveConcurrency(int maxConcurrency) {
+            checkArgument(maxConcurrency > 0, "maxConcurrency (%s) must be > 0.", maxConcurrency);
+            checkArgument((maxConcurrency & (maxConcurrency - 1)) == 0,
+                    "maxConcurrency (%s) must be a power of two.", maxConcurrency);
+            this.maxConcurrency = maxConcurrency;
+            return this;
+        }
+
+        /**
+         * Registers a {@link CountingCuckooFilterMXBean} for the filter on the
+         * platform MBean server under this name when it is built, e.g.
+         * {@code "com.example:type=CountingCuckooFilter,name=sessions"}. Use
+         * {@link CountingCuckooFilter#unregisterJmx()} when the filter is discarded.
+         */
+        public CountingCuckooFilter.Builder<T> withJmxName(String jmxName) {
+            checkNotNull(jmxName);
+            try {
+                this.jmxName = new ObjectName(jmxName);
+            } catch (MalformedObjectNameException e) {
+                throw new IllegalArgumentException("jmxName (" + jmxName + ") is not a valid ObjectName", e);
+            }
+            return this;
+        }
+
+        /**
+         * Bounds the work a {@link CountingCuckooFilter#put(Object)} does when
+         * both buckets of an item are full. The caller moves at most
+         * maxDisplacements entries, and if that doesn't free a slot the item is
+         * held in a small area that lookups and deletes also check, and
+         * relocationExecutor finishes the eviction path search. When the
+         * holding area is full put falls back to searching itself.
+         */
+        public CountingCuckooFilter.Builder<T> withBoundedInsert(int maxDisplacements, Executor relocationExecutor) {
+            checkArgument(maxDisplacements >= 0, "maxDisplacements (%s) must be >= 0", maxDisplacements);
+            checkArgument(maxDisplacements <= MAX_PATH_DEPTH, "maxDisplacements (%s) must be <= %s", maxDisplacements,
+                    MAX_PATH_DEPTH);
+            checkNotNull(relocationExecutor);
+            this.maxDisplacements = maxDisplacements;
+            this.relocationExecutor = relocationExecutor;
+            return this;
+        }
+
+        /**
+         * Builds a filter without any locking, for filters owned by a single
+         * thread. Every method of the filter, including lookups, must then be
+         * called from one thread at a time, and handing the filter to another
+         * thread needs a happens-before edge (a volatile write, a queue...).
+         * Any expected concurrency set on the builder is ignored.
+         *
+         * @param checkOwnerThread
+         *            debug aid, when true the filter remembers the first thread
+         *            that uses it and throws {@link IllegalStateException} if
+         *            another thread calls it later
+         */
+        public CountingCuckooFilter.Builder<T> withThreadConfinement(boolean checkOwnerThread) {
+            this.threadConfined = true;
+            this.checkOwnerThread = checkOwnerThread;
+            return this;
+        }
+
+        /**
+         * Ages the counts for frequency estimation (TinyLFU style): every
+         * agingPeriod increments the counts are halved as by
+         * {@link CountingCuckooFilter#decay()}. The pass is spread over the
+         * puts that follow, each halving a few dozen buckets, so no put scans
+         * the table. About ten times the number of entries being ranked is a
+         * common choice.
+         */
+        public CountingCuckooFilter.Builder<T> withAgingPeriod(long agingPeriod) {
+            checkArgument(agingPeriod > 0, "agingPeriod (%s) must be > 0", agingPeriod);
+            this.agingPeriod = agingPeriod;
+            return this;
+        }
+
+        /**
+         * Sizes the table to the buckets maxKeys needs instead of rounding up
+         * to the next power of two, which can waste up to half the memory.
+         * Indexes are then mapped with a multiplication instead of a mask.
+         */
+        public CountingCuckooFilter.Builder<T> withExactSize() {
+            this.exactSize = true;
+            return this;
+        }
+
+        /**
+         * Stores buckets semi-sorted, saving one bit per slot at the cost of
+         * decoding buckets on access. Below 9 bit tags, i.e. false positive
+         * rates above about 0.25%, a tagBox then saturates at a lower count,
+         * see {@link SemiSortedFilterTable}.
+         */
+        public CountingCuckooFilter.Builder<T> withSemiSortedBuckets() {
+            this.semiSorted = true;
+            return this;
+        }
+
+        /**
+         * Lays buckets out so none crosses a 64 byte cache line, padding the
+         * end of each block of buckets. maxPadding is the fraction of the
+         * table's memory that may go to padding: more of it gets smaller
+         * blocks, where fewer buckets also span two words. When the tag width
+         * needs more padding than that the table stays packed, see
+         * {@link FilterTable#createBlocked(int, long, double)}. Doesn't apply to
+         * semi-sorted buckets.
+         */
+        public CountingCuckooFilter.Builder<T> withCacheLineBlockedBuckets(double maxPadding) {
+            checkArgument(maxPadding >= 0 && maxPadding < 1, "maxPadding (%s) must be >= 0 and < 1", maxPadding);
+            this.cacheLineBlocked = true;
+            this.maxPadding = maxPadding;
+            return this;
+        }
+
         public CountingCuckooFilter<T> build() {
+            return build(null);
+        }
+
+        /**
+         * Builds a filter that shares sharedHasher, and so its seed, with
+         * another filter built from the same settings. Filters sharing a
+         * hasher put an item in the same buckets with the same tag, so an item
+         * hashed once can be looked up in all of them.
+         */
+        CountingCuckooFilter<T> build(IndexTagCalc<T> sharedHasher) {
+            checkArgument(!(threadConfined && relocationExecutor != null),
+                    "a thread-confined filter can't relocate entries in the background");
+            checkArgument(!(semiSorted && cacheLineBlocked), "semi-sorted buckets can't be cache-line-blocked");
             int tagBits = Utils.getBitsPerItemForFpRate(fpp, LOAD_FACTOR);
-            numBuckets = Utils.getBucketsNeeded(maxKeys, LOAD_FACTOR, BUCKET_SIZE);
+            numBuckets = exactSize ? Utils.getExactBucketsNeeded(maxKeys, LOAD_FACTOR, BUCKET_SIZE)
+                    : Utils.getBucketsNeeded(maxKeys, LOAD_FACTOR, BUCKET_SIZE);
             IndexTagCalc<T> hasher;
-            if (hashAlgorithm == null) {
+            if (sharedHasher != null) {
+                checkArgument(sharedHasher.getNumBuckets() == numBuckets,
+                        "shared hasher was built for a different number of buckets");
+                hasher = sharedHasher;
+            } else if (hashAlgorithm == null) {
                 hasher = IndexTagCalc.create(funnel, numBuckets, tagBits);
             } else
                 hasher = IndexTagCalc.create(hashAlgorithm, funnel, numBuckets, tagBits);
-            FilterTable filtertbl = FilterTable.create(tagBits, numBuckets);
-            return new CountingCuckooFilter<>(hasher, filtertbl, new AtomicLong(0), expectedConcurrency);
+            FilterTable filtertbl;
+            if (semiSorted) {
+                filtertbl = SemiSortedFilterTable.create(tagBits, numBuckets);
+            } else if (cacheLineBlocked) {
+                filtertbl = FilterTable.createBlocked(tagBits, numBuckets, maxPadding);
+            } else {
+                filtertbl = FilterTable.create(tagBits, numBuckets);
+            }
+            BucketLocker locker;
+            if (!threadConfined) {
+                locker = new SegmentedBucketLocker(expectedConcurrency, Math.max(expectedConcurrency, maxConcurrency));
+            } else if (checkOwnerThread) {
+                locker = UnsynchronizedBucketLocker.ownerChecking();
+            } else {
+                locker = UnsynchronizedBucketLocker.INSTANCE;
+            }
+            CountingCuckooFilter<T> filter = new CountingCuckooFilter<>(hasher, filtertbl, new AtomicLong(0),
+                    expectedConcurrency, locker);
+            if (relocationExecutor != null) {
+                filter.relocationExecutor = relocationExecutor;
+                filter.maxDisplacements = maxDisplacements;
+                filter.relocationScheduled = new AtomicBoolean();
+                filter.holding = new HoldingArea(HOLDING_CAPACITY);
+            }
+            if (agingPeriod > 0) {
+                filter.agingPeriod = agingPeriod;
+                filter.incrementsSinceDecay = new AtomicLong();
+                filter.agingStepsDue = new AtomicLong();
+                filter.agingStepsTaken = new AtomicLong();
+                filter.agingSteps = (hasher.getNumBuckets() + AGING_STEP_BUCKETS - 1) / AGING_STEP_BUCKETS;
+                // a pass finishes within one period however small it is
+                filter.agingStepsPerIncrement = (filter.agingSteps - 1) / agingPeriod + 1;
+            }
+            if (jmxName != null) {
+                filter.registerJmx(jmxName);
+            }
+            return filter;
         }
     }
 
+    /**
+     * Number of copies in the table or waiting for background relocation.
+     * Copies dropped by a saturated tagBox (see {@link #getSaturationCount()})
+     * or saved as victims aren't counted.
+     */
     public long getCount() {
         // can return more than maxKeys if running above design limit!
         return count.get();
@@ -151,181 +403,1163 @@ public final class CountingCuckooFilter<T> implements Serializable {
         return table.getStorageSize();
     }
 
+    public long getVictimCount() {
+        return victims.size();
+    }
+
+    /**
+     * Number of distinct entries a bounded insert left for background
+     * relocation that haven't been placed in the table yet.
+     */
+    public int getPendingRelocationCount() {
+        HoldingArea h = holding;
+        return h == null ? 0 : h.size();
+    }
+
+    int getLockSegmentCount() {
+        return bucketLocker.getSegmentCount();
+    }
+
+    long getLockAcquisitionCount() {
+        return bucketLocker.getAcquisitionCount();
+    }
+
+    long getLockContentionCount() {
+        return bucketLocker.getContentionCount();
+    }
+
     /**
-     * 进行单次插入，插入成功返回null
+     * Number of inserts that were dropped because the tagBox of the item
+     * already held the largest count the tag width can represent.
+     */
+    public long getSaturationCount() {
+        return saturationCount.get();
+    }
+
+    /**
+     * True once an item that was put may no longer be found by
+     * {@link #mightContain(Object)} although it was never deleted: an insert
+     * went to the victim list, a saturated count was deleted from, decay or
+     * aging halved a count of 1 to 0, or the filter was cleared. Stays true
+     * from then on, as the filter can't tell which items went missing.
+     */
+    public boolean mayHaveLostKeys() {
+        return keysDropped || saturationCount.get() > 0 || !victims.isEmpty();
+    }
+
+    /**
+     * Estimated heap size of the filter. Only the victim list varies after
+     * construction, so this doesn't touch the table.
+     */
+    long ramBytesUsed() {
+        return RamUsageEstimator.shallowSizeOf(this) + table.ramBytesUsed()
+                + victims.size() * RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + 4L * Long.BYTES);
+    }
+
+    private void registerJmx(ObjectName name) {
+        FilterStats s = new FilterStats(this);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(s, name);
+        } catch (JMException e) {
+            throw new IllegalStateException("Unable to register filter MBean " + name, e);
+        }
+        this.jmxName = name;
+        this.stats = s;
+    }
+
+    /**
+     * Removes the MBean registered through {@link Builder#withJmxName(String)}.
+     * Does nothing if the filter wasn't registered.
+     */
+    public synchronized void unregisterJmx() {
+        if (jmxName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(jmxName);
+        } catch (JMException e) {
+            throw new IllegalStateException("Unable to unregister filter MBean " + jmxName, e);
+        } finally {
+            jmxName = null;
+            stats = null;
+        }
+    }
+
+    /**
+     * 进行单次插入，插入成功返回true.
+     * 两个bucket都满时不踢出任何tag，返回false，还需要安置的tag写入scratch.pendingTag/pendingCount.
      * **/
-    long[] insertTagToBucket(long curIndex,long altIndex,long curTag){
-        long vs[] = new long[3];
-        long tagCount = table.countTag(curIndex,altIndex,curTag) + 1; //包含了待插入的那一个
+    boolean insertTagToBucket(long curIndex,long altIndex,long curTag,OpScratch scratch){
+        return insertTags(curIndex, altIndex, curTag, 1, Long.MAX_VALUE, false, scratch) == 0;
+    }
+
+    /**
+     * 把tag插入n次，只加一次锁，返回没能放下的副本数.
+     * 已有tagBox时直接累加计数(超过上限的部分计入saturationCount).
+     * 普通tag放入空位更多的bucket；总数达到4时升级为tagBox，但只有某个bucket不用踢出就能放下3个slot时才升级，
+     * 否则推迟升级，继续以普通tag插入(普通tag的个数因此可能超过3).
+     * 返回值大于0时不踢出任何tag，下一个要安置的单元写入scratch.pendingTag/pendingCount：
+     * 两个bucket的空位放不下n个普通tag时是一个包含n个新副本的tagBox，现有的普通tag留在table中，
+     * 直到tagBox放下时才合并，搬移期间查询仍能找到它们；否则是一个普通tag.
+     * 插入前的计数已达到limit(或tagBox已饱和，无法知道真实计数)时不插入，返回-1.
+     * countHeld时计数包括holding中等待后台搬移的副本：holding非空时按加锁顺序先锁victimLock，
+     * 检查期间后台任务不能把副本从holding移到table. 后台搬移持有victimLock时也会调用这里，所以它不能传countHeld.
+     * 插入后的计数写入scratch.itemCount.
+     * **/
+    private long insertTags(long curIndex,long altIndex,long curTag,long n,long limit,boolean countHeld,OpScratch scratch){
+        HoldingArea h = holding;
+        long victimStamp = 0;
+        if(countHeld && h != null && h.size() > 0){
+            victimStamp = victimLock.readLock();
+        }
         bucketLocker.lockBucketsWrite(curIndex, altIndex);
         try{
-           if(tagCount <= 3){
-               if(table.insertTagToBucket(curIndex,curTag) || table.insertTagToBucket(altIndex,curTag)){
-                   return null;
+           long existing = table.countTag(curIndex,altIndex,curTag);
+           //held只用于判断和返回计数，写入table的计数不包括它，搬进table时才加上
+           long held = 0;
+           if(victimStamp != 0){
+               int pos = h.find(curIndex,altIndex,curTag);
+               if(pos >= 0){
+                   held = h.countAt(pos);
                }
+           }
+           if(limit != Long.MAX_VALUE && (existing + held >= limit || existing >= table.getMaxTagCount())){
+               scratch.itemCount = existing + held;
+               return -1;
+           }
+           long tagCount = existing + n; //包含了待插入的
+           scratch.itemCount = Math.min(tagCount, table.getMaxTagCount()) + held;
+           if(table.hasTagBox(curIndex,curTag) || table.hasTagBox(altIndex,curTag)){
+               if(tagCount > table.getMaxTagCount()){
+                   //计数已达上限，保持饱和
+                   saturate(tagCount - table.getMaxTagCount(), scratch);
+                   tagCount = table.getMaxTagCount();
+               }
+               if(table.updateTagCount(curIndex,curTag,tagCount) || table.updateTagCount(altIndex,curTag,tagCount)){ }
                else{
-                   vs = table.swapRandomInBucket(altIndex,curTag);
+                   //tagBox更新失败，新副本存为victim，不计入count
+                   saveVictim(curIndex,curTag,n,scratch);
                }
+               return 0;
            }
-           else if(tagCount == 4){
-               table.removeTags(curIndex,curTag);
-               table.removeTags(altIndex,curTag);
-               if(table.insertTagBoxToBucket(curIndex,curTag,tagCount) || table.insertTagBoxToBucket(altIndex,curTag,tagCount)){
-                   return null;
+           if(tagCount >= 4){
+               if(promoteToTagBox(curIndex,altIndex,curTag,tagCount,scratch)){
+                   return 0;
                }
-               else {
-                   vs = table.swapRandomInBucket(altIndex,curTag,tagCount);
+               if(n > 1 && n > table.freeSlots(curIndex) + table.freeSlots(altIndex)){
+                   scratch.pendingTag = curTag;
+                   scratch.pendingCount = n;
+                   return n;
                }
            }
-           else{
-
-               if(table.updateTagCount(curIndex,curTag,tagCount) || table.updateTagCount(altIndex,curTag,tagCount)){ }
-               else{
-                   //TODO:这里未处理越界，添加到list中
-                   vs[0] = curTag;
-                   saveVictims(curIndex,vs);
+           for (long left = n; left > 0; left--) {
+               if(!insertTagToEmptier(curIndex,altIndex,curTag)){
+                   scratch.pendingTag = curTag;
+                   scratch.pendingCount = 1;
+                   return left;
                }
-               return null;
            }
+           return 0;
         }finally {
             bucketLocker.unlockBucketsWrite(curIndex, altIndex);
+            if(victimStamp != 0){
+                victimLock.unlockRead(victimStamp);
+            }
         }
-
-       return vs;
     }
 
-    long[] insertTagBoxToBucket(long curIndex,long altIndex, long curTag,long count){
+    private boolean insertTagToEmptier(long curIndex,long altIndex,long curTag){
+        if(table.freeSlots(altIndex) > table.freeSlots(curIndex)){
+            return table.insertTagToBucket(altIndex,curTag);
+        }
+        return table.insertTagToBucket(curIndex,curTag) || table.insertTagToBucket(altIndex,curTag);
+    }
 
-        long vs[] = new long[3];
-        long tagCount = table.countTag(curIndex,altIndex,curTag); //包含了待插入的那一个
+    /**
+     * 插入一个tagBox，插入成功返回true.
+     * 放下时合并table中现有的普通副本. 两个bucket都没有3个空位时不做修改，返回false，
+     * count个副本仍写入scratch.pendingTag/pendingCount(不包含现有副本，重试时不会重复计数).
+     * **/
+    boolean insertTagBoxToBucket(long curIndex,long altIndex, long curTag,long count,OpScratch scratch){
         bucketLocker.lockBucketsWrite(curIndex, altIndex);
         try{
-            if(tagCount >=4){  //如果>=4说明已经存在tagBox，直接更新
-                if(table.updateTagCount(curIndex,curTag,tagCount + count)||
-                        table.updateTagCount(curIndex,altIndex,tagCount + count)){ }
+            long tagCount = table.countTag(curIndex,altIndex,curTag);
+            if(table.hasTagBox(curIndex,curTag) || table.hasTagBox(altIndex,curTag)){  //已经存在tagBox，直接更新
+                long newCount = tagCount + count;
+                if(newCount > table.getMaxTagCount()){
+                    saturate(newCount - table.getMaxTagCount(), scratch);
+                    newCount = table.getMaxTagCount();
+                }
+                if(table.updateTagCount(curIndex,curTag,newCount)||
+                        table.updateTagCount(altIndex,curTag,newCount)){ }
                 else{
-                    //TODO:这里未处理越界，添加到list中
-                    vs[0] = curTag;
-                    vs[2] = count;
-                    saveVictims(curIndex,vs);
+                    //tagBox更新失败，新副本存为victim，不计入count
+                    saveVictim(curIndex,curTag,count,scratch);
                 }
-                return null;
-            }else if(tagCount > 0 && tagCount <= 3){
-                //清空，添加到现有的tagCount中
-                table.removeTags(curIndex, curTag);
-                table.removeTags(altIndex, curTag);
-                count += tagCount;
+                return true;
             }
-            //尝试插入
-            if(table.insertTagBoxToBucket(curIndex,curTag,count) || table.insertTagBoxToBucket(altIndex,curTag,count)){
-                return null;
+            //合并现有的普通tag
+            if(promoteToTagBox(curIndex,altIndex,curTag,tagCount + count,scratch)){
+                return true;
             }
-            //插入失败，踢出
-            vs = table.swapRandomInBucket(altIndex,curTag,count);
-
+            scratch.pendingTag = curTag;
+            scratch.pendingCount = count;
+            return false;
         }finally {
             bucketLocker.unlockBucketsWrite(curIndex, altIndex);
         }
-        return vs;
     }
 
-    private void victimsHandler(long curIndex, long[] vs, int index){
-        if(vs == null){ return; }
-       // System.out.println(Long.toBinaryString(vs[0])+","+Long.toBinaryString(vs[1])+","+Long.toBinaryString(vs[2]));
-        if(index >= INSERT_ATTEMPTS){
-            saveVictims(curIndex,vs);
-            return;
+    /**
+     * 把tag的所有普通副本合并成一个count的tagBox，放入能容纳3个slot且剩余空间更多的bucket.
+     * 两个bucket都放不下时不做任何修改，返回false. 调用前需要加写锁.
+     * **/
+    private boolean promoteToTagBox(long curIndex, long altIndex, long curTag, long count, OpScratch scratch){
+        int curRoom = tagBoxRoom(curIndex, curTag);
+        int altRoom = altIndex == curIndex ? 0 : tagBoxRoom(altIndex, curTag);
+        if(curRoom < 3 && altRoom < 3){
+            return false;
         }
+        long target = altRoom > curRoom ? altIndex : curIndex;
+        if(count > table.getMaxTagCount()){
+            //批量写入时可能一次超过上限
+            saturate(count - table.getMaxTagCount(), scratch);
+            count = table.getMaxTagCount();
+        }
+        table.removeTags(curIndex, curTag);
+        table.removeTags(altIndex, curTag);
+        return table.insertTagBoxToBucket(target, curTag, count);
+    }
 
-        if(isTagBox(vs)){
-            long[] tVs = insertTagBoxToBucket(curIndex,hasher.altIndex(curIndex,vs[0]),vs[0],vs[2]);
-            victimsHandler(curIndex,tVs,index + 1);
+    /**
+     * 删除tag的普通副本后bucket能空出的slot数，已有其他tagBox的bucket放不下第二个tagBox.
+     * **/
+    private int tagBoxRoom(long bucket, long tag){
+        if(table.checkTagBox(bucket, 0)){
+            return 0;
+        }
+        return table.freeSlots(bucket) + (int) table.countTag(bucket, bucket, tag);
+    }
 
-        }else{
-            for (int i = 0; i <3 ; i++) {
-                if(vs[i]!=0L){
-                    long[] tVs = insertTagToBucket(curIndex,hasher.altIndex(curIndex,vs[i]),vs[i]);
-                    victimsHandler(curIndex,tVs,index + 1);
+    private boolean insertPending(long curIndex, long altIndex, OpScratch scratch){
+        if(scratch.pendingCount > 1){
+            return insertTagBoxToBucket(curIndex, altIndex, scratch.pendingTag, scratch.pendingCount, scratch);
+        }
+        return insertTagToBucket(curIndex, altIndex, scratch.pendingTag, scratch);
+    }
+
+    /**
+     * 两个候选bucket都满时，先用广度优先搜索找出一条以空位结尾的踢出路径，
+     * 找到后才执行搬移，然后重新插入scratch中的pending项.
+     * tagBox需要3个空位，可能要执行几条路径才能腾出来.
+     * 搬移期间其他线程可能修改了路径上的bucket，此时重新搜索，总共最多PATH_SEARCH_RETRIES次，仍失败则保存到victims中.
+     * **/
+    private void relocateAndInsert(long curIndex, long altIndex, OpScratch scratch){
+        for (int attempt = 0; attempt < PATH_SEARCH_RETRIES; attempt++) {
+            int goal = findEvictionPath(curIndex, altIndex, MAX_PATH_DEPTH, scratch);
+            if(goal < 0){
+                break;
+            }
+            applyEvictionPath(goal, scratch);
+            if(insertPending(curIndex, altIndex, scratch)){
+                return;
+            }
+        }
+        saveVictim(curIndex, scratch.pendingTag, scratch.pendingCount, scratch);
+    }
+
+    /**
+     * 广度优先搜索踢出路径，返回终点节点的下标，找不到返回-1.
+     * 每个节点是一个还差nodeNeed个空位的bucket，子节点由把其中一个单元(普通tag占1个slot，tagBox占3个)
+     * 移到它的另一个bucket得到，只有腾出的空位足够的单元才会被展开.
+     * 搜索深度(即搬移次数)不超过maxDepth，节点数不超过MAX_SEARCH_NODES.
+     * 搜索时每次只给一个bucket加读锁，不会嵌套加锁.
+     * **/
+    private int findEvictionPath(long curIndex, long altIndex, int maxDepth, OpScratch s){
+        s.ensureSearchSpace();
+        int width = s.pendingWidth();
+        int size = addRootNode(s, 0, curIndex, width);
+        if(altIndex != curIndex){
+            size = addRootNode(s, size, altIndex, width);
+        }
+        for (int head = 0; head < size; head++) {
+            if(s.nodeNeed[head] <= 0) return head; //已经有空位了(其他线程删除了tag)
+            if(s.nodeDepth[head] >= maxDepth) continue;
+            long bucket = s.nodeBucket[head];
+            int units = readUnits(bucket, s);
+            for (int u = 0; u < units && size < MAX_SEARCH_NODES; u++) {
+                long unitTag = s.unitTag[u];
+                int unitWidth = s.unitWidth[u];
+                if(unitWidth < s.nodeNeed[head]) continue;
+                long child = hasher.altIndex(bucket, unitTag);
+                if(child == bucket || isOnPath(s, head, child)) continue;
+                int childNeed;
+                bucketLocker.lockSingleBucketRead(child);
+                try{
+                    if(isMoveConflict(child, unitTag, unitWidth)) continue;
+                    childNeed = neededSlots(child, unitWidth);
+                }finally {
+                    bucketLocker.unlockSingleBucketRead(child);
                 }
+                s.nodeBucket[size] = child;
+                s.nodeParent[size] = head;
+                s.nodeNeed[size] = childNeed;
+                s.nodeDepth[size] = s.nodeDepth[head] + 1;
+                s.edgeTag[size] = unitTag;
+                s.edgeWidth[size] = unitWidth;
+                if(s.nodeNeed[size] <= 0) return size;
+                size++;
             }
         }
+        return -1;
+    }
+
+    private int addRootNode(OpScratch s, int size, long bucket, int width){
+        bucketLocker.lockSingleBucketRead(bucket);
+        try{
+            s.nodeNeed[size] = neededSlots(bucket, width);
+        }finally {
+            bucketLocker.unlockSingleBucketRead(bucket);
+        }
+        s.nodeBucket[size] = bucket;
+        s.nodeParent[size] = -1;
+        s.nodeDepth[size] = 0;
+        return size + 1;
+    }
+
+    /**
+     * 放入width个slot的单元前bucket还需要腾出的slot数，调用前需要加锁.
+     * 没有tagBox时一条路径只能腾出一个slot，所以最多返回1；tagBox需要的3个空位由几轮搜索分别腾出，
+     * 这样的路径执行到这个bucket时会校验失败并停下，已完成的部分搬移就是这一轮的进展.
+     * **/
+    private int neededSlots(long bucket, int width){
+        int need = width - table.freeSlots(bucket);
+        if(need > 1 && !table.checkTagBox(bucket, 0)){
+            need = 1;
+        }
+        return need;
     }
 
-    private void saveVictims(long curIndex, long[] vs){
-        if(isTagBox(vs)){
-            long[]v = new long[4];
-            v[0] = curIndex;
-            v[1] = hasher.altIndex(curIndex,vs[0]);
-            v[2] = vs[0];
-            v[3] = vs[2];
-            victims.add(v);
+    /**
+     * 把bucket中的单元读到s.unitTag/unitWidth中，返回单元个数.
+     * **/
+    private int readUnits(long bucket, OpScratch s){
+        bucketLocker.lockSingleBucketRead(bucket);
+        try{
+            int units = 0;
+            int pos = 0;
+            if(table.checkTagBox(bucket, 0)){
+                s.unitTag[units] = table.readTag(bucket, 0);
+                s.unitWidth[units++] = 3;
+                pos = 3;
+            }
+            for (; pos < BUCKET_SIZE; pos++) {
+                long tag = table.readTag(bucket, pos);
+                if(tag == 0) break;
+                s.unitTag[units] = tag;
+                s.unitWidth[units++] = 1;
+            }
+            return units;
+        }finally {
+            bucketLocker.unlockSingleBucketRead(bucket);
+        }
+    }
+
+    private static boolean isOnPath(OpScratch s, int node, long bucket){
+        for (; node >= 0; node = s.nodeParent[node]) {
+            if(s.nodeBucket[node] == bucket) return true;
+        }
+        return false;
+    }
+
+    /**
+     * 从终点往回执行搬移：终点的单元先移入有空位的bucket，再依次把上一层的单元移入刚腾出的位置.
+     * 每一步单独加写锁并重新校验，校验失败就停止(已完成的搬移都是合法的)，由调用者重新搜索.
+     * **/
+    private boolean applyEvictionPath(int node, OpScratch s){
+        while (s.nodeParent[node] >= 0) {
+            int parent = s.nodeParent[node];
+            if(!moveUnit(s.nodeBucket[parent], s.nodeBucket[node], s.edgeTag[node], s.edgeWidth[node])){
+                return false;
+            }
+            node = parent;
+        }
+        return true;
+    }
+
+    /**
+     * 同一个tag不能同时以tagBox和普通tag出现：普通tag不能移入有同tag的tagBox的bucket，tagBox不能移入有同tag的bucket.
+     * **/
+    private boolean isMoveConflict(long to, long tag, int width){
+        if(width == 1){
+            return table.hasTagBox(to, tag);
+        }
+        return table.findTag(to, tag);
+    }
+
+    private boolean moveUnit(long from, long to, long tag, int width){
+        bucketLocker.lockBucketsWrite(from, to);
+        try{
+            if(table.freeSlots(to) < width || isMoveConflict(to, tag, width)){
+                return false;
+            }
+            if(width == 1){
+                if(!table.removeTag(from, tag)) return false;
+                table.insertTagToBucket(to, tag);
+            }else{
+                long boxCount = table.removeTagBox(from, tag);
+                if(boxCount == 0) return false;
+                table.insertTagBoxToBucket(to, tag, boxCount);
+            }
+            return true;
+        }finally {
+            bucketLocker.unlockBucketsWrite(from, to);
+        }
+    }
+
+    /**
+     * 有界插入：调用者最多搬移maxDisplacements次，仍没有空位就把pending项放入holding，交给relocationExecutor完成.
+     * holding已满时退回relocateAndInsert.
+     * **/
+    private void boundedRelocateAndInsert(long curIndex, long altIndex, OpScratch scratch){
+        int goal = findEvictionPath(curIndex, altIndex, maxDisplacements, scratch);
+        if(goal >= 0){
+            applyEvictionPath(goal, scratch);
+            if(insertPending(curIndex, altIndex, scratch)){
+                return;
+            }
+        }
+        boolean held;
+        long stamp = victimLock.writeLock();
+        try{
+            held = holding.add(curIndex, scratch.pendingTag, scratch.pendingCount);
+        }finally {
+            victimLock.unlockWrite(stamp);
+        }
+        if(held){
+            scheduleRelocation();
         }else{
-            for (int i = 0; i <3 ; i++) {
-                if(vs[i]!=0L){
-                    long[]v = new long[4];
-                    v[0] = curIndex;
-                    v[1] = hasher.altIndex(curIndex,vs[i]);
-                    v[2] = vs[i];
-                    v[3] = 1;
-                    victims.add(v);
+            relocateAndInsert(curIndex, altIndex, scratch);
+        }
+    }
+
+    private void scheduleRelocation(){
+        if(!relocationScheduled.compareAndSet(false, true)){
+            return;
+        }
+        try{
+            relocationExecutor.execute(this::relocateHeld);
+        }catch (RejectedExecutionException e){
+            //executor不可用时由调用者完成
+            relocateHeld();
+        }
+    }
+
+    /**
+     * 后台任务：逐个把holding中的项搬进table，每次搬一个副本.
+     * 搜索和搬移路径不需要victimLock；最后一步按文档中的加锁顺序先锁victimLock再锁bucket，
+     * 确认项还在(可能已被delete删除)后插入table并从holding中去掉，所以查询总能在二者之一中找到它.
+     * **/
+    private void relocateHeld(){
+        OpScratch scratch = OpScratch.get();
+        try{
+            for (int pos = 0; ; pos++) {
+                long curIndex, tag;
+                long stamp = victimLock.readLock();
+                try{
+                    pos = holding.next(pos);
+                    if(pos < 0) return;
+                    curIndex = holding.bucketAt(pos);
+                    tag = holding.tagAt(pos);
+                }finally {
+                    victimLock.unlockRead(stamp);
+                }
+                relocateHeldCopy(curIndex, hasher.altIndex(curIndex, tag), tag, scratch);
+            }
+        }finally {
+            relocationScheduled.set(false);
+            //结束前又有新的项加入
+            if(holding.size() > 0){
+                scheduleRelocation();
+            }
+        }
+    }
+
+    /**
+     * held的副本已经计入count，搬移时饱和或保存到victims的要从count中减掉.
+     * 调用者的线程可能正在插入(executor拒绝时)，所以不动它的lostCopies.
+     * **/
+    private void relocateHeldCopy(long curIndex, long altIndex, long tag, OpScratch scratch){
+        long lostBefore = scratch.lostCopies;
+        try{
+            moveHeldCopy(curIndex, altIndex, tag, scratch);
+        }finally {
+            count.addAndGet(lostBefore - scratch.lostCopies);
+            scratch.lostCopies = lostBefore;
+        }
+    }
+
+    private void moveHeldCopy(long curIndex, long altIndex, long tag, OpScratch scratch){
+        for (int attempt = 0; attempt <= PATH_SEARCH_RETRIES; attempt++) {
+            scratch.pendingTag = tag;
+            scratch.pendingCount = 1;
+            int goal = -1;
+            if(attempt > 0){  //第一次先直接插入，可能已经有空位了
+                goal = findEvictionPath(curIndex, altIndex, MAX_PATH_DEPTH, scratch);
+                if(goal < 0) break;
+                applyEvictionPath(goal, scratch);
+            }
+            long stamp = victimLock.writeLock();
+            try{
+                int pos = holding.find(curIndex, altIndex, tag);
+                if(pos < 0) return;
+                if(insertTagToBucket(curIndex, altIndex, tag, scratch)){
+                    holding.decrement(pos);
+                    return;
                 }
+            }finally {
+                victimLock.unlockWrite(stamp);
+            }
+        }
+        long stamp = victimLock.writeLock();
+        try{
+            int pos = holding.find(curIndex, altIndex, tag);
+            if(pos >= 0){
+                holding.decrement(pos);
+                saveVictim(curIndex, tag, 1, scratch);
             }
+        }finally {
+            victimLock.unlockWrite(stamp);
         }
     }
 
+    /**
+     * 保存放不下的副本，它们不计入count.
+     * **/
+    private void saveVictim(long curIndex, long tag, long tagCount, OpScratch scratch){
+        scratch.lostCopies += tagCount;
+        long[]v = new long[4];
+        v[0] = curIndex;
+        v[1] = hasher.altIndex(curIndex,tag);
+        v[2] = tag;
+        v[3] = tagCount;
+        victims.add(v);
+    }
+
+    /**
+     * tagBox的计数已达上限，超出的副本只计入saturationCount，不计入count.
+     * **/
+    private void saturate(long copies, OpScratch scratch){
+        saturationCount.addAndGet(copies);
+        scratch.lostCopies += copies;
+    }
+
 
     public boolean put(T item){
-        BucketAndTag pos = hasher.generate(item);
-        long curTag = pos.tag;
-        long curIndex = pos.index;
-        long altIndex = hasher.altIndex(curIndex, curTag);
+        OpScratch scratch = OpScratch.get();
+        hasher.generate(item, scratch);
+        putTag(scratch.index, scratch.tag, 1, Long.MAX_VALUE);
+        return victims.isEmpty();
+    }
 
-        long[] vs = insertTagToBucket(curIndex,altIndex,curTag);
+    /**
+     * put并返回插入后item的计数，计数与插入在同一次加锁中完成，
+     * 所以每个计数值只会被一个调用者看到(除非与其他item的tag冲突)，适合"第N次出现时触发".
+     * 计数饱和后一直返回上限. 有界插入模式下还在等待后台搬移的副本也计入，与incrementIfBelow一致.
+     * **/
+    public long putAndGetCount(T item){
+        OpScratch scratch = OpScratch.get();
+        hasher.generate(item, scratch);
+        return putTag(scratch.index, hasher.altIndex(scratch.index, scratch.tag), scratch.tag, 1, Long.MAX_VALUE, true);
+    }
 
-        //上方是从curTag踢出的
-        victimsHandler(altIndex,vs,0);
+    /**
+     * item当前计数小于limit时插入一次并返回true，否则不做修改并返回false，检查和插入在同一次加锁中完成，可用于限流.
+     * tagBox计数饱和后无法知道真实计数，总是返回false，所以limit超过tagBox上限时只能按上限生效.
+     * 有界插入模式下还在等待后台搬移的副本也计入.
+     * **/
+    public boolean incrementIfBelow(T item, long limit){
+        checkArgument(limit >= 0, "limit (%s) must be >= 0", limit);
+        OpScratch scratch = OpScratch.get();
+        hasher.generate(item, scratch);
+        return putTag(scratch.index, scratch.tag, 1, limit) >= 0;
+    }
 
-        if(victims.size() > 0){
-            return false;
-        }else {
-            return true;
+    /**
+     * 把filter当集合用: fingerprint已存在时不修改table并返回false，否则插入一次并返回true，查找和插入在同一次加锁中完成.
+     * 只用putIfAbsent写入的filter每个key只占一个slot，不会生成tagBox.
+     * **/
+    public boolean putIfAbsent(T item){
+        return incrementIfBelow(item, 1);
+    }
+
+    /**
+     * 相当于调用n次put，但只计算一次hash，放得下时只加一次锁、只改写一次bucket.
+     * 计数超过tagBox上限的部分被丢弃并计入{@link #getSaturationCount()}.
+     * **/
+    public boolean add(T item, long n){
+        checkArgument(n >= 0, "n (%s) must be >= 0", n);
+        if(n > 0){
+            OpScratch scratch = OpScratch.get();
+            hasher.generate(item, scratch);
+            putTag(scratch.index, scratch.tag, n, Long.MAX_VALUE);
+        }
+        return victims.isEmpty();
+    }
+
+    /**
+     * 批量put，用于启动时预热. items在ForkJoin公共线程池中分批并行插入，线程封闭的filter在调用线程中顺序插入.
+     * items只在调用期间被遍历，不需要线程安全.
+     * **/
+    public boolean putAll(Iterator<? extends T> items){
+        checkNotNull(items);
+        boolean parallel = !(bucketLocker instanceof UnsynchronizedBucketLocker);
+        StreamSupport.stream(Spliterators.spliteratorUnknownSize(items, Spliterator.NONNULL), parallel)
+                .forEach(this::put);
+        return victims.isEmpty();
+    }
+
+    /*
+     * 原始字节key的接口: 直接从数组或ByteBuffer(包括direct buffer)的[off, off+len)计算hash，不复制key也不创建对象.
+     * 放置位置和用只写入这些字节的funnel(如Funnels.byteArrayFunnel())时相同，所以可以和put(T)等混用.
+     * ByteBuffer按绝对下标读取，不改变position、limit和byte order.
+     */
+
+    public boolean put(byte[] key, int off, int len){
+        OpScratch scratch = generateBytes(key, null, off, len);
+        putTag(scratch.index, scratch.tag, 1, Long.MAX_VALUE);
+        return victims.isEmpty();
+    }
+
+    public boolean put(ByteBuffer key, int off, int len){
+        OpScratch scratch = generateBytes(null, key, off, len);
+        putTag(scratch.index, scratch.tag, 1, Long.MAX_VALUE);
+        return victims.isEmpty();
+    }
+
+    public boolean mightContain(byte[] key, int off, int len){
+        OpScratch scratch = generateBytes(key, null, off, len);
+        return containsTag(scratch.index, scratch.tag);
+    }
+
+    public boolean mightContain(ByteBuffer key, int off, int len){
+        OpScratch scratch = generateBytes(null, key, off, len);
+        return containsTag(scratch.index, scratch.tag);
+    }
+
+    public boolean delete(byte[] key, int off, int len){
+        OpScratch scratch = generateBytes(key, null, off, len);
+        return deleteTag(scratch.index, scratch.tag);
+    }
+
+    public boolean delete(ByteBuffer key, int off, int len){
+        OpScratch scratch = generateBytes(null, key, off, len);
+        return deleteTag(scratch.index, scratch.tag);
+    }
+
+    public long count(byte[] key, int off, int len){
+        OpScratch scratch = generateBytes(key, null, off, len);
+        return countTag(scratch.index, scratch.tag);
+    }
+
+    public long count(ByteBuffer key, int off, int len){
+        OpScratch scratch = generateBytes(null, key, off, len);
+        return countTag(scratch.index, scratch.tag);
+    }
+
+    /*
+     * CharSequence key的接口，要求filter的funnel是Funnels.unencodedCharsFunnel()或Funnels.stringFunnel(UTF_8)，
+     * 放置位置和通过funnel put同样的字符时相同. 使用xxHash64时按UTF-16 code unit每次读4个字符
+     * (UTF-8且全是ASCII时每次8个字符)直接计算hash，不编码、不复制. 这两种funnel的put(T)等也自动走这条路径.
+     */
+
+    public boolean putChars(CharSequence key){
+        OpScratch scratch = generateChars(key);
+        putTag(scratch.index, scratch.tag, 1, Long.MAX_VALUE);
+        return victims.isEmpty();
+    }
+
+    public boolean mightContainChars(CharSequence key){
+        OpScratch scratch = generateChars(key);
+        return containsTag(scratch.index, scratch.tag);
+    }
+
+    public boolean deleteChars(CharSequence key){
+        OpScratch scratch = generateChars(key);
+        return deleteTag(scratch.index, scratch.tag);
+    }
+
+    public long countChars(CharSequence key){
+        OpScratch scratch = generateChars(key);
+        return countTag(scratch.index, scratch.tag);
+    }
+
+    private OpScratch generateChars(CharSequence key){
+        checkNotNull(key);
+        checkState(hasher.supportsChars(),
+                "the filter's funnel must be Funnels.unencodedCharsFunnel() or Funnels.stringFunnel(UTF_8)");
+        OpScratch scratch = OpScratch.get();
+        hasher.generate(key, scratch);
+        return scratch;
+    }
+
+    private OpScratch generateBytes(byte[] array, ByteBuffer buffer, int off, int len){
+        checkPositionIndexes(off, off + len, array != null ? array.length : buffer.limit());
+        OpScratch scratch = OpScratch.get();
+        hasher.generate(array, buffer, off, len, scratch);
+        return scratch;
+    }
+
+    /*
+     * 已经算好hash的接口，用于上游已经为分区计算过key的64位或128位hash的场景，不再对item计算hash.
+     * 传入的hash先用filter的seed混合，再像item的hash一样拆分成index和tag，tag为0时换salt重新混合.
+     * 同一个key要始终传入同一个hash，这些接口放置的位置与put(T)等不同，不能混用.
+     * 64位hash要求index和tag的位数之和不超过64，否则抛出IllegalStateException，此时应传入128位hash.
+     */
+
+    public boolean putHash(long hash){
+        OpScratch scratch = OpScratch.get();
+        hasher.generateFromHash(hash, scratch);
+        putTag(scratch.index, scratch.tag, 1, Long.MAX_VALUE);
+        return victims.isEmpty();
+    }
+
+    public boolean mightContainHash(long hash){
+        OpScratch scratch = OpScratch.get();
+        hasher.generateFromHash(hash, scratch);
+        return containsTag(scratch.index, scratch.tag);
+    }
+
+    public boolean deleteHash(long hash){
+        OpScratch scratch = OpScratch.get();
+        hasher.generateFromHash(hash, scratch);
+        return deleteTag(scratch.index, scratch.tag);
+    }
+
+    public long countHash(long hash){
+        OpScratch scratch = OpScratch.get();
+        hasher.generateFromHash(hash, scratch);
+        return countTag(scratch.index, scratch.tag);
+    }
+
+    public boolean putHash(long low, long high){
+        OpScratch scratch = OpScratch.get();
+        hasher.generateFromHash(low, high, scratch);
+        putTag(scratch.index, scratch.tag, 1, Long.MAX_VALUE);
+        return victims.isEmpty();
+    }
+
+    public boolean mightContainHash(long low, long high){
+        OpScratch scratch = OpScratch.get();
+        hasher.generateFromHash(low, high, scratch);
+        return containsTag(scratch.index, scratch.tag);
+    }
+
+    public boolean deleteHash(long low, long high){
+        OpScratch scratch = OpScratch.get();
+        hasher.generateFromHash(low, high, scratch);
+        return deleteTag(scratch.index, scratch.tag);
+    }
+
+    public long countHash(long low, long high){
+        OpScratch scratch = OpScratch.get();
+        hasher.generateFromHash(low, high, scratch);
+        return countTag(scratch.index, scratch.tag);
+    }
+
+    /**
+     * 计算item的两个bucket和tag并保存在KeyHandle中，对同一个key重复操作时用handle代替item，不再计算hash和altIndex.
+     * handle的放置位置和item相同，可以和put(T)等混用.
+     * **/
+    public KeyHandle prepare(T item){
+        OpScratch scratch = OpScratch.get();
+        hasher.generate(item, scratch);
+        return new KeyHandle(hasher, scratch.index, hasher.altIndex(scratch.index, scratch.tag), scratch.tag);
+    }
+
+    public boolean put(KeyHandle key){
+        checkHandle(key);
+        putTag(key.index, key.altIndex, key.tag, 1, Long.MAX_VALUE);
+        return victims.isEmpty();
+    }
+
+    public long putAndGetCount(KeyHandle key){
+        checkHandle(key);
+        return putTag(key.index, key.altIndex, key.tag, 1, Long.MAX_VALUE, true);
+    }
+
+    public boolean mightContain(KeyHandle key){
+        checkHandle(key);
+        return containsTag(key.index, key.altIndex, key.tag);
+    }
+
+    public boolean delete(KeyHandle key){
+        checkHandle(key);
+        return deleteTag(key.index, key.altIndex, key.tag);
+    }
+
+    public long count(KeyHandle key){
+        checkHandle(key);
+        return countTag(key.index, key.altIndex, key.tag);
+    }
+
+    private void checkHandle(KeyHandle key){
+        checkNotNull(key);
+        checkArgument(key.hasher == hasher || key.hasher.equals(hasher),
+                "key handle was prepared by a filter with a different hasher");
+    }
+
+    /**
+     * 把tag插入times次，相当于对同一个item调用times次put，WriteCombiningCuckooFilter批量写入也用它.
+     * 返回插入后的计数；插入前计数已达到limit时不插入，返回-1.
+     * **/
+    long putTag(long curIndex, long curTag, long times, long limit){
+        return putTag(curIndex, hasher.altIndex(curIndex, curTag), curTag, times, limit);
+    }
+
+    private long putTag(long curIndex, long altIndex, long curTag, long times, long limit){
+        return putTag(curIndex, altIndex, curTag, times, limit, limit != Long.MAX_VALUE);
+    }
+
+    /**
+     * countHeld时返回的计数和limit判断包括holding中的副本，见insertTags.
+     * **/
+    private long putTag(long curIndex, long altIndex, long curTag, long times, long limit, boolean countHeld){
+        OpScratch scratch = OpScratch.get();
+        scratch.lostCopies = 0;
+        long left = insertTags(curIndex,altIndex,curTag,times,limit,countHeld,scratch);
+        if(left < 0){
+            return -1;
+        }
+        long itemCount = scratch.itemCount;
+        while (left > 0) {
+            //tagBox包含了全部剩余副本
+            boolean box = scratch.pendingCount > 1;
+            placePending(curIndex,altIndex,scratch);
+            left = box ? 0 : left - 1;
+            if(left > 0){
+                left = insertTags(curIndex,altIndex,curTag,left,Long.MAX_VALUE,false,scratch);
+            }
+        }
+        //饱和或保存到victims的副本不计入
+        count.addAndGet(times - scratch.lostCopies);
+        FilterStats s = stats;
+        if (s != null) {
+            s.puts.add(times);
         }
+        if (agingPeriod > 0) {
+            maybeDecay(times);
+        }
+        return itemCount;
     }
 
+    /**
+     * 每agingPeriod次增加请求一遍老化，由之后的put分步完成：每次增加最多处理agingStepsPerIncrement步，
+     * 每步减半AGING_STEP_BUCKETS个bucket，一遍的最后一步再减半holding中的副本. 不在调用线程上扫描整个table.
+     * **/
+    private void maybeDecay(long times){
+        AtomicLong since = incrementsSinceDecay;
+        long v = since.addAndGet(times);
+        while (v >= agingPeriod) {
+            if (since.compareAndSet(v, v - agingPeriod)) {
+                agingStepsDue.addAndGet(agingSteps);
+                break;
+            }
+            v = since.get();
+        }
+        long budget = Math.min(times, agingSteps) * agingStepsPerIncrement;
+        for (long done = 0; done < budget; done++) {
+            long step = agingStepsTaken.get();
+            if (step >= agingStepsDue.get()) {
+                return;
+            }
+            if (agingStepsTaken.compareAndSet(step, step + 1)) {
+                agingStep(step % agingSteps);
+            }
+        }
+    }
 
+    private void agingStep(long step){
+        long buckets = hasher.getNumBuckets();
+        decayBuckets(step * AGING_STEP_BUCKETS, Math.min(buckets, (step + 1) * AGING_STEP_BUCKETS));
+        if (step == agingSteps - 1) {
+            decayHolding();
+        }
+    }
 
-    private boolean isTagBox(long[] tb){
-        if(tb[0]!=0 && tb[1]==0 && tb[2]!=0){
-            return true;
+    /**
+     * 把每个tag和tagBox的计数减半(向下取整)，用于TinyLFU式的频率老化.
+     * tagBox的计数降到3以下时退回为普通tag，降到0的项被删除. 等待后台搬移的副本同样减半，victims不变.
+     * 按bucket分块并行扫描一遍table，每个tag在持有它两个bucket写锁时处理，可以与其他操作并发，
+     * 但并发期间被put或搬移的tag可能被减半两次或不被减半. 线程封闭的filter在调用线程中顺序扫描.
+     * **/
+    public void decay(){
+        long buckets = hasher.getNumBuckets();
+        long chunks = (buckets + DECAY_CHUNK_BUCKETS - 1) / DECAY_CHUNK_BUCKETS;
+        if (bucketLocker instanceof UnsynchronizedBucketLocker) {
+            decayBuckets(0, buckets);
+        } else {
+            LongStream.range(0, chunks).parallel().forEach(
+                    c -> decayBuckets(c * DECAY_CHUNK_BUCKETS, Math.min(buckets, (c + 1) * DECAY_CHUNK_BUCKETS)));
+        }
+        decayHolding();
+    }
+
+    private void decayHolding(){
+        HoldingArea h = holding;
+        if (h != null && h.size() > 0) {
+            long stamp = victimLock.writeLock();
+            try {
+                int held = h.size();
+                count.addAndGet(-h.halve());
+                if (h.size() < held) {
+                    keysDropped = true;
+                }
+            } finally {
+                victimLock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    private void decayBuckets(long from, long to){
+        OpScratch s = OpScratch.get();
+        for (long b = from; b < to; b++) {
+            int units = readUnits(b, s);
+            for (int u = 0; u < units; u++) {
+                long tag = s.unitTag[u];
+                boolean seen = false;
+                for (int v = 0; v < u && !seen; v++) {
+                    seen = s.unitTag[v] == tag;
+                }
+                if (!seen) {
+                    decayTag(b, tag);
+                }
+            }
+        }
+    }
+
+    /**
+     * 减半bucket中tag的计数(包括它在另一个bucket中的副本).
+     * 两个bucket都有副本时只在编号小的bucket处理，所以先从编号大的bucket删，剩下的副本留在编号小的bucket，
+     * 扫描到编号大的bucket时不会再处理一次.
+     * **/
+    private void decayTag(long bucket, long tag){
+        long alt = hasher.altIndex(bucket, tag);
+        long lo = Math.min(bucket, alt);
+        long hi = Math.max(bucket, alt);
+        bucketLocker.lockBucketsWrite(bucket, alt);
+        try {
+            if (!table.findTag(bucket, tag) || (bucket == hi && lo != hi && table.findTag(lo, tag))) {
+                return;
+            }
+            long total = table.countTag(bucket, alt, tag);
+            long removed = total - total / 2;
+            if (total / 2 == 0) {
+                keysDropped = true;
+            }
+            long box = table.hasTagBox(bucket, tag) ? bucket : table.hasTagBox(alt, tag) ? alt : -1;
+            if (box >= 0) {
+                table.resizeTagBox(box, tag, total / 2);
+            } else {
+                for (long i = 0; i < removed; i++) {
+                    if (!table.removeTag(hi, tag)) {
+                        table.removeTag(lo, tag);
+                    }
+                }
+            }
+            count.addAndGet(-removed);
+        } finally {
+            bucketLocker.unlockBucketsWrite(bucket, alt);
+        }
+    }
+
+    /**
+     * TinyLFU的准入判断：候选项的估计频率高于要淘汰的项时才准入.
+     * **/
+    public boolean admit(T candidate, T victim){
+        return count(candidate) > count(victim);
+    }
+
+    private void placePending(long curIndex, long altIndex, OpScratch scratch){
+        if(relocationExecutor != null){
+            boundedRelocateAndInsert(curIndex,altIndex,scratch);
         }else{
-            return false;
+            relocateAndInsert(curIndex,altIndex,scratch);
         }
     }
 
+
     public boolean mightContain(T item) {
-        BucketAndTag pos = hasher.generate(item);
-        long i1 = pos.index;
-        long i2 = hasher.altIndex(pos.index, pos.tag);
+        OpScratch scratch = OpScratch.get();
+        hasher.generate(item, scratch);
+        return containsTag(scratch.index, scratch.tag);
+    }
+
+    /**
+     * 已经算好index和tag的mightContain，共用hasher的filter(如SlidingWindowCountingCuckooFilter的各代)只需计算一次hash.
+     * **/
+    boolean containsTag(long i1, long tag) {
+        return containsTag(i1, hasher.altIndex(i1, tag), tag);
+    }
+
+    private boolean containsTag(long i1, long i2, long tag) {
+        FilterStats s = stats;
+        if (s != null) {
+            s.lookups.increment();
+        }
+        //先查holding再查table：后台搬移先写入table再从holding删除，所以不会漏掉
+        HoldingArea h = holding;
+        if (h != null && h.size() > 0 && isHeld(i1, i2, tag)) {
+            return true;
+        }
+        long[] slots = OpScratch.get().probeSlots;
         bucketLocker.lockBucketsRead(i1, i2);
         try {
             // return table.findTag(i1,pos.tag) || table.findTag(i2,pos.tag) ;
-            if (table.findTag(i1, pos.tag) || table.findTag(i2, pos.tag)) {
-                return true;
-            }
+            table.readCandidates(i1, i2, slots, 0);
         } finally {
             bucketLocker.unlockBucketsRead(i1, i2);
         }
         // return checkIsVictim(pos);
-        return false;
+        return BucketProbe.contains(slots, 0, tag);
+    }
+
+    /**
+     * 批量mightContain，items[i]的结果写入results[i]. 每PROBE_BATCH个item先逐个在读锁下读出两个bucket，
+     * 再一起与tag比较，JDK 17以上用--add-modules jdk.incubator.vector启动时用向量比较，结果与mightContain相同.
+     * **/
+    public void mightContainAll(T[] items, boolean[] results){
+        checkNotNull(items);
+        checkArgument(results.length >= items.length, "results (%s) is shorter than items (%s)", results.length,
+                items.length);
+        OpScratch scratch = OpScratch.get();
+        scratch.ensureProbeBatch();
+        long[] slots = scratch.batchSlots;
+        for (int from = 0; from < items.length; from += PROBE_BATCH) {
+            int n = Math.min(PROBE_BATCH, items.length - from);
+            for (int j = 0; j < n; j++) {
+                hasher.generate(items[from + j], scratch);
+                long i1 = scratch.index;
+                long tag = scratch.tag;
+                long i2 = hasher.altIndex(i1, tag);
+                int at = j * BucketProbe.PROBE_SLOTS;
+                scratch.batchTags[j] = tag;
+                FilterStats s = stats;
+                if (s != null) {
+                    s.lookups.increment();
+                }
+                HoldingArea h = holding;
+                if (h != null && h.size() > 0 && isHeld(i1, i2, tag)) {
+                    //等待后台搬移的副本算作命中，直接把tag放进比较的slot
+                    Arrays.fill(slots, at, at + BucketProbe.PROBE_SLOTS, 0);
+                    slots[at] = tag;
+                    continue;
+                }
+                bucketLocker.lockBucketsRead(i1, i2);
+                try {
+                    table.readCandidates(i1, i2, slots, at);
+                } finally {
+                    bucketLocker.unlockBucketsRead(i1, i2);
+                }
+            }
+            BucketProbe.containsAll(slots, scratch.batchTags, n, results, from);
+        }
     }
 
     public boolean delete(T item){
-        BucketAndTag pos = hasher.generate(item);
-        long i1 = pos.index;
-        long i2 = hasher.altIndex(pos.index, pos.tag);
+        OpScratch scratch = OpScratch.get();
+        hasher.generate(item, scratch);
+        return deleteTag(scratch.index, scratch.tag);
+    }
+
+    /**
+     * 已经算好index和tag的delete.
+     * **/
+    boolean deleteTag(long i1, long tag) {
+        return deleteTag(i1, hasher.altIndex(i1, tag), tag);
+    }
+
+    private boolean deleteTag(long i1, long i2, long tag) {
+        FilterStats s = stats;
+        if (s != null) {
+            s.deletes.increment();
+        }
+        HoldingArea h = holding;
+        if (h != null && h.size() > 0) {
+            return deleteWithHolding(i1, i2, tag);
+        }
+        return deleteFromTable(i1, i2, tag);
+    }
+
+    /**
+     * 删除item的n个副本，返回实际删除的个数(不超过n). 只计算一次hash、加一次锁.
+     * tagBox的计数降到3以下时退回为普通tag. 计数饱和的tagBox只记录了上限，从上限开始减.
+     * **/
+    public long remove(T item, long n){
+        checkArgument(n >= 0, "n (%s) must be >= 0", n);
+        if(n == 0){
+            return 0;
+        }
+        FilterStats s = stats;
+        if (s != null) {
+            s.deletes.increment();
+        }
+        OpScratch scratch = OpScratch.get();
+        hasher.generate(item, scratch);
+        long tag = scratch.tag;
+        long i1 = scratch.index;
+        long i2 = hasher.altIndex(i1, tag);
+        long removed;
+        HoldingArea h = holding;
+        if (h != null && h.size() > 0) {
+            long stamp = victimLock.writeLock();
+            try {
+                removed = removeFromTable(i1, i2, tag, n);
+                for (int pos = h.find(i1, i2, tag); pos >= 0 && removed < n; pos = h.find(i1, i2, tag)) {
+                    h.decrement(pos);
+                    removed++;
+                }
+            } finally {
+                victimLock.unlockWrite(stamp);
+            }
+        } else {
+            removed = removeFromTable(i1, i2, tag, n);
+        }
+        count.addAndGet(-removed);
+        return removed;
+    }
+
+    /**
+     * 删除item的所有副本，返回删除的个数.
+     * **/
+    public long removeAll(T item){
+        return remove(item, Long.MAX_VALUE);
+    }
+
+    private long removeFromTable(long i1, long i2, long tag, long n){
         bucketLocker.lockBucketsWrite(i1, i2);
         try {
-            if(table.deleteFromBucket(i1,pos.tag) || table.deleteFromBucket(i2,pos.tag)){
+            long box = table.hasTagBox(i1, tag) ? i1 : table.hasTagBox(i2, tag) ? i2 : -1;
+            if(box >= 0){
+                long tagCount = table.countTag(box, box, tag);
+                long removed = Math.min(tagCount, n);
+                table.resizeTagBox(box, tag, tagCount - removed);
+                return removed;
+            }
+            long removed = 0;
+            while (removed < n && (table.removeTag(i1, tag) || table.removeTag(i2, tag))) {
+                removed++;
+            }
+            return removed;
+        } finally {
+            bucketLocker.unlockBucketsWrite(i1, i2);
+        }
+    }
+
+    private boolean deleteFromTable(long i1, long i2, long tag){
+        bucketLocker.lockBucketsWrite(i1, i2);
+        try {
+            if(table.deleteFromBucket(i1,tag) || table.deleteFromBucket(i2,tag)){
                 count.decrementAndGet();
                 return true;
             }
@@ -335,6 +1569,118 @@ public final class CountingCuckooFilter<T> implements Serializable {
         return false;
     }
 
+    /**
+     * 有项等待后台搬移时，按加锁顺序先锁victimLock，这样后台任务不能在查table和查holding之间搬走它.
+     * **/
+    private boolean deleteWithHolding(long i1, long i2, long tag){
+        long stamp = victimLock.writeLock();
+        try {
+            if(deleteFromTable(i1, i2, tag)){
+                return true;
+            }
+            int pos = holding.find(i1, i2, tag);
+            if(pos >= 0){
+                holding.decrement(pos);
+                count.decrementAndGet();
+                return true;
+            }
+            return false;
+        } finally {
+            victimLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * 返回item被put的次数(减去delete的次数)，与mightContain一样可能因tag冲突偏大.
+     * 没能放进table而保存在victims中的副本不计入；tagBox计数饱和后返回上限.
+     * **/
+    public long count(T item) {
+        OpScratch scratch = OpScratch.get();
+        hasher.generate(item, scratch);
+        return countTag(scratch.index, scratch.tag);
+    }
+
+    /**
+     * 已经算好index和tag的count.
+     * **/
+    long countTag(long i1, long tag) {
+        return countTag(i1, hasher.altIndex(i1, tag), tag);
+    }
+
+    private long countTag(long i1, long i2, long tag) {
+        FilterStats s = stats;
+        if (s != null) {
+            s.lookups.increment();
+        }
+        HoldingArea h = holding;
+        if (h != null && h.size() > 0) {
+            //按加锁顺序先锁victimLock，后台搬移不能在两次读之间把副本从holding移到table
+            long stamp = victimLock.readLock();
+            try {
+                int pos = h.find(i1, i2, tag);
+                return (pos < 0 ? 0 : h.countAt(pos)) + countInTable(i1, i2, tag);
+            } finally {
+                victimLock.unlockRead(stamp);
+            }
+        }
+        return countInTable(i1, i2, tag);
+    }
+
+    /**
+     * 清空filter，用于复用已分配的table. 直接按word清零LongBitSet，不重新分配.
+     * 按加锁顺序先锁victimLock，再给所有segment加写锁，并发的写入要么在清空前完成，要么在清空后才开始，
+     * 不会把旧的word写回已清空的table. 没有加锁的查询可能读到清空前后的混合.
+     * 清空非空的filter后{@link #mayHaveLostKeys()}为true.
+     * **/
+    void clear(){
+        long stamp = victimLock.writeLock();
+        bucketLocker.lockAllBucketsWrite();
+        try {
+            if (count.get() != 0) {
+                keysDropped = true;
+            }
+            table.clear();
+            HoldingArea h = holding;
+            if (h != null) {
+                h.clear();
+            }
+            victims.clear();
+            count.set(0);
+            saturationCount.set(0);
+        } finally {
+            bucketLocker.unlockAllBucketsWrite();
+            victimLock.unlockWrite(stamp);
+        }
+    }
+
+    private long countInTable(long i1, long i2, long tag){
+        bucketLocker.lockBucketsRead(i1, i2);
+        try {
+            return table.countTag(i1, i2, tag);
+        } finally {
+            bucketLocker.unlockBucketsRead(i1, i2);
+        }
+    }
+
+    /**
+     * 先乐观读holding，期间没有写入(validate成功)时不加锁；后台搬移或插入正在修改holding时才加读锁.
+     * **/
+    private boolean isHeld(long i1, long i2, long tag){
+        long stamp = victimLock.tryOptimisticRead();
+        if (stamp != 0) {
+            boolean held = holding.find(i1, i2, tag) >= 0;
+            if (victimLock.validate(stamp)) {
+                return held;
+            }
+        }
+        stamp = victimLock.readLock();
+        try {
+            return holding.find(i1, i2, tag) >= 0;
+        } finally {
+            victimLock.unlockRead(stamp);
+        }
+    }
+
 
     public void printMemBlock(String title){
         System.out.println("-------"+title +"---------");
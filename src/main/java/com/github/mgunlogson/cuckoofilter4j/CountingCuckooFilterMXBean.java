@@ -0,0 +1,84 @@
+package com.github.mgunlogson.cuckoofilter4j;
+
+/**
+ * Management interface exposed for a {@link CountingCuckooFilter} built with
+ * {@link CountingCuckooFilter.Builder#withJmxName(String)}.
+ * <p>
+ * Every attribute is read from counters the filter already maintains, so
+ * polling never scans the table.
+ *
+ */
+public interface CountingCuckooFilterMXBean {
+
+    /**
+     * Number of items currently counted by the filter.
+     */
+    long getCount();
+
+    /**
+     * Slots available in the table, see {@link CountingCuckooFilter#getActualCapacity()}.
+     */
+    long getActualCapacity();
+
+    /**
+     * {@link #getCount()} divided by {@link #getActualCapacity()}.
+     */
+    double getLoadFactor();
+
+    /**
+     * Size of the bit table in bytes, derived from {@link CountingCuckooFilter#getStorageSize()}.
+     */
+    long getStorageBytes();
+
+    /**
+     * Estimated deep heap size of the filter in bytes.
+     */
+    long getHeapBytes();
+
+    /**
+     * Number of entries that could not be placed in the table.
+     */
+    long getVictimCount();
+
+    /**
+     * Number of inserts dropped because a tagBox count was already at its maximum.
+     */
+    long getSaturationCount();
+
+    /**
+     * Number of lock segments guarding the table. Grows over time when the
+     * filter was built with adaptive concurrency.
+     */
+    int getLockSegmentCount();
+
+    /**
+     * Segment locks acquired by filter operations.
+     */
+    long getLockAcquisitionCount();
+
+    /**
+     * Segment lock acquisitions that had to wait for another thread.
+     */
+    long getLockContentionCount();
+
+    long getPutCount();
+
+    long getDeleteCount();
+
+    long getLookupCount();
+
+    /**
+     * Puts per second since the previous poll.
+     */
+    double getPutRate();
+
+    /**
+     * Deletes per second since the previous poll.
+     */
+    double getDeleteRate();
+
+    /**
+     * Lookups per second since the previous poll.
+     */
+    double getLookupRate();
+}
@@ -4,6 +4,8 @@ import com.github.mgunlogson.cuckoofilter4j.CountingCuckooFilter;
 import com.github.mgunlogson.cuckoofilter4j.FilterTable;
 import com.google.common.hash.Funnels;
 
+import java.util.concurrent.ThreadLocalRandom;
+
 public class Example {
 
     public static void main(String[] args) {
@@ -91,7 +93,9 @@ public class Example {
         ft.clearTagAndSet(0,4,0);
         ft.clearTagAndSet(0,5,5);
         ft.printMemBlock();
-        ft.swapRandomInBucket(0,7);
+        //随机踢出一个tag,换成7
+        int rPos = ThreadLocalRandom.current().nextInt(CountingCuckooFilter.BUCKET_SIZE);
+        System.out.println(ft.readTagAndSet(0,rPos,7));
 
         ft.printMemBlock();
     }
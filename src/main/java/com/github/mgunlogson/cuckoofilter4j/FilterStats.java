@@ -0,0 +1,140 @@
+package com.github.mgunlogson.cuckoofilter4j;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Operation counters and the JMX view of a {@link CountingCuckooFilter}. Only
+ * created when the filter is built with a JMX name, so filters without
+ * monitoring don't pay for the counters.
+ * <p>
+ * Rates are computed from counter deltas between polls. Polls closer together
+ * than {@link #MIN_SAMPLE_NANOS} return the previous rates so that several
+ * dashboards polling the same bean don't produce noisy values.
+ */
+final class FilterStats implements CountingCuckooFilterMXBean {
+
+    static final long MIN_SAMPLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final CountingCuckooFilter<?> filter;
+
+    final LongAdder puts = new LongAdder();
+    final LongAdder deletes = new LongAdder();
+    final LongAdder lookups = new LongAdder();
+
+    // guarded by this
+    private long lastSampleNanos;
+    private long lastPuts;
+    private long lastDeletes;
+    private long lastLookups;
+    private double putRate;
+    private double deleteRate;
+    private double lookupRate;
+
+    FilterStats(CountingCuckooFilter<?> filter) {
+        this.filter = filter;
+        this.lastSampleNanos = System.nanoTime();
+    }
+
+    @Override
+    public long getCount() {
+        return filter.getCount();
+    }
+
+    @Override
+    public long getActualCapacity() {
+        return filter.getActualCapacity();
+    }
+
+    @Override
+    public double getLoadFactor() {
+        return filter.getLoadFactor();
+    }
+
+    @Override
+    public long getStorageBytes() {
+        return (filter.getStorageSize() + Byte.SIZE - 1) / Byte.SIZE;
+    }
+
+    @Override
+    public long getHeapBytes() {
+        return filter.ramBytesUsed();
+    }
+
+    @Override
+    public long getVictimCount() {
+        return filter.getVictimCount();
+    }
+
+    @Override
+    public long getSaturationCount() {
+        return filter.getSaturationCount();
+    }
+
+    @Override
+    public int getLockSegmentCount() {
+        return filter.getLockSegmentCount();
+    }
+
+    @Override
+    public long getLockAcquisitionCount() {
+        return filter.getLockAcquisitionCount();
+    }
+
+    @Override
+    public long getLockContentionCount() {
+        return filter.getLockContentionCount();
+    }
+
+    @Override
+    public long getPutCount() {
+        return puts.sum();
+    }
+
+    @Override
+    public long getDeleteCount() {
+        return deletes.sum();
+    }
+
+    @Override
+    public long getLookupCount() {
+        return lookups.sum();
+    }
+
+    @Override
+    public synchronized double getPutRate() {
+        sample();
+        return putRate;
+    }
+
+    @Override
+    public synchronized double getDeleteRate() {
+        sample();
+        return deleteRate;
+    }
+
+    @Override
+    public synchronized double getLookupRate() {
+        sample();
+        return lookupRate;
+    }
+
+    private void sample() {
+        long now = System.nanoTime();
+        long elapsed = now - lastSampleNanos;
+        if (elapsed < MIN_SAMPLE_NANOS) {
+            return;
+        }
+        double seconds = elapsed / (double) TimeUnit.SECONDS.toNanos(1);
+        long p = puts.sum();
+        long d = deletes.sum();
+        long l = lookups.sum();
+        putRate = (p - lastPuts) / seconds;
+        deleteRate = (d - lastDeletes) / seconds;
+        lookupRate = (l - lastLookups) / seconds;
+        lastPuts = p;
+        lastDeletes = d;
+        lastLookups = l;
+        lastSampleNanos = now;
+    }
+}
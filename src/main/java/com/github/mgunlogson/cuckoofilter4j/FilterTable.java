@@ -19,8 +19,8 @@ package com.github.mgunlogson.cuckoofilter4j;
 import static com.google.common.base.Preconditions.checkArgument;
 
 import java.io.Serializable;
+import java.math.RoundingMode;
 import java.util.Objects;
-import java.util.concurrent.ThreadLocalRandom;
 
 
 import javax.annotation.Nullable;
@@ -30,12 +30,20 @@ import com.google.common.math.LongMath;
 
 /**
  * This class represents the link to access methods on the underlying BitSet.
+ * {@link SemiSortedFilterTable} stores the same buckets compressed.
+ * <p>
+ * Buckets are packed back to back by default, so with tag widths that don't
+ * divide 512 some buckets span two cache lines. A table made by
+ * {@link #createBlocked(int, long, double)} groups buckets into blocks of up
+ * to one cache line instead, padding the end of each block, so a bucket read
+ * touches one line.
  *
  * @author Mark Gunlogson
  *
  */
-final class FilterTable implements Serializable {
+class FilterTable implements Serializable {
 	private static final long serialVersionUID = 4172048932165857538L;
+	static final int CACHE_LINE_BYTES = 64;
 	/*
 	 * NOTE: Google's Guava library uses a custom BitSet implementation that
 	 * looks to be adapted from the Lucene project. Guava project notes show
@@ -46,18 +54,38 @@ final class FilterTable implements Serializable {
 	 * NOTE: for speed, we don't check for inserts into invalid bucket indexes
 	 * or bucket positions!
 	 */
-	private final LongBitSet memBlock;
-	private final int bitsPerTag;
-	private final long numBuckets;
+	final LongBitSet memBlock;
+	final int bitsPerTag;
+	final long numBuckets;
+	/*
+	 * cache-line-blocked layout: bucketsPerBlock buckets in each blockBits
+	 * bits, starting baseBits into memBlock. All 0 for the packed layout,
+	 * which is also what tables serialized before this layout read back as.
+	 */
+	private final int blockBits;
+	private final int bucketsPerBlock;
+	private final long baseBits;
 
 	//进一步，如果我们默认tagBox模式下基数为2，考虑到0也算一种情况，则最多可存储3+2^bitsPerTag-1
 	private final int maxTagCount;
 
 	private FilterTable(LongBitSet memBlock, int bitsPerTag, long numBuckets) {
+		this(memBlock, bitsPerTag, numBuckets, (int)(Math.pow(2,bitsPerTag))+2);
+	}
+
+	FilterTable(LongBitSet memBlock, int bitsPerTag, long numBuckets, int maxTagCount) {
+		this(memBlock, bitsPerTag, numBuckets, maxTagCount, 0, 0);
+	}
+
+	private FilterTable(LongBitSet memBlock, int bitsPerTag, long numBuckets, int maxTagCount, int blockBits,
+			long baseBits) {
 		this.bitsPerTag = bitsPerTag;
 		this.memBlock = memBlock;
 		this.numBuckets = numBuckets;
-		this.maxTagCount = (int)(Math.pow(2,bitsPerTag))+2;
+		this.maxTagCount = maxTagCount;
+		this.blockBits = blockBits;
+		this.bucketsPerBlock = blockBits / (CountingCuckooFilter.BUCKET_SIZE * bitsPerTag);
+		this.baseBits = baseBits;
 	}
 
 	/**
@@ -83,12 +111,80 @@ final class FilterTable implements Serializable {
 		return new FilterTable(memBlock, bitsPerTag, numBuckets);
 	}
 
+	/**
+	 * Creates a FilterTable whose buckets don't cross a cache line. Buckets
+	 * are grouped in blocks of 64 to 512 bits, a power of two so blocks never
+	 * straddle a line, with the unused bits at the end of each block as
+	 * padding. The smallest block whose padding is at most maxPadding of its
+	 * bits is used; smaller blocks also keep more buckets inside one word. If
+	 * even a 512 bit block pads more than that, the table is packed as by
+	 * {@link #create(int, long)}.
+	 * <p>
+	 * The first block starts after the long[] header's remainder of a line, so
+	 * blocks line up with cache lines when the array itself starts on one, as
+	 * G1 does for arrays of half a region or more. Otherwise a block still
+	 * touches at most two lines.
+	 *
+	 * @param maxPadding
+	 *            the fraction of the table, from 0 to 1, that may be spent on
+	 *            padding
+	 */
+	static FilterTable createBlocked(int bitsPerTag, long numBuckets, double maxPadding) {
+		checkArgument(maxPadding >= 0 && maxPadding < 1, "maxPadding (%s) must be >= 0 and < 1", maxPadding);
+		checkArgument(bitsPerTag < 48, "tagBits (%s) should be less than 48 bits", bitsPerTag);
+		checkArgument(bitsPerTag > 4, "tagBits (%s) must be > 4", bitsPerTag);
+		checkArgument(numBuckets > 1, "numBuckets (%s) must be > 1", numBuckets);
+		int blockBits = blockBitsFor(bitsPerTag, maxPadding);
+		if (blockBits == 0) {
+			return create(bitsPerTag, numBuckets);
+		}
+		long bucketsPerBlock = blockBits / (CountingCuckooFilter.BUCKET_SIZE * bitsPerTag);
+		long blocks = LongMath.divide(numBuckets, bucketsPerBlock, RoundingMode.CEILING);
+		long baseBits = (long) Byte.SIZE
+				* ((CACHE_LINE_BYTES - RamUsageEstimator.NUM_BYTES_ARRAY_HEADER % CACHE_LINE_BYTES) % CACHE_LINE_BYTES);
+		LongBitSet memBlock = new LongBitSet(LongMath.checkedAdd(baseBits, LongMath.checkedMultiply(blockBits, blocks)));
+		return new FilterTable(memBlock, bitsPerTag, numBuckets, (int) (Math.pow(2, bitsPerTag)) + 2, blockBits,
+				baseBits);
+	}
+
+	/**
+	 * Block size createBlocked uses for the tag width, 0 for none.
+	 */
+	static int blockBitsFor(int bitsPerTag, double maxPadding) {
+		int bucketBits = CountingCuckooFilter.BUCKET_SIZE * bitsPerTag;
+		for (int block = Long.SIZE; block <= CACHE_LINE_BYTES * Byte.SIZE; block <<= 1) {
+			if (bucketBits <= block && block % bucketBits <= maxPadding * block) {
+				return block;
+			}
+		}
+		return 0;
+	}
+
 	long getStorageSize() {
 		// NOTE: checked source in current Lucene LongBitSet class for thread
 		// safety, make sure it stays this way if you update the class.
 		return memBlock.length();
 	}
 
+	int getMaxTagCount() {
+		return maxTagCount;
+	}
+
+	/**
+	 * Empties every bucket. Callers must keep other threads out of the table
+	 * while it runs.
+	 */
+	void clear() {
+		memBlock.clear();
+	}
+
+	/**
+	 * Estimated heap size of the table, including the backing bitset.
+	 */
+	long ramBytesUsed() {
+		return RamUsageEstimator.shallowSizeOfInstance(getClass()) + memBlock.ramBytesUsed();
+	}
+
 
 	boolean insertTagToBucket(long bucketIndex, long tag) {
 		for (int i = 0; i < CountingCuckooFilter.BUCKET_SIZE;) {
@@ -150,14 +246,7 @@ final class FilterTable implements Serializable {
 		for (int i = 0; i < CountingCuckooFilter.BUCKET_SIZE; i++) {
 			if(checkTag(bucketIndex,i,tag)){
 				if(checkTagBox(bucketIndex,i)){
-					long count = readTag(bucketIndex,i+2);
-					if(count == 1L){
-						clearTagAndSet(bucketIndex,i,tag);
-						clearTagAndSet(bucketIndex,i+1,tag);
-						clearTagAndSet(bucketIndex,i+2,tag);
-					}else{
-						clearTagAndSet(bucketIndex,i+2,count - 1);
-					}
+					resizeTagBox(bucketIndex,tag,readTag(bucketIndex,i+2) + 3 - 1);
 				}else{
 					moveTagForward(bucketIndex,i);
 				}
@@ -192,50 +281,85 @@ final class FilterTable implements Serializable {
 	}
 	
 	/**
-	 * 随机踢出一个tag或tagbox.
-	 * 对一个tag而言，由于已经执行了插入操作，且插入失败，说明bucket中已经没有空的空间了，此时需要踢出一个tag或tagBox
-	 * 对于tagBox而言，可能存在空间已满,需要踢出一个tagBox或3个tag
-	 * 					还有1/2个空间,需要踢出2个或1个tag
-	 * **/
-	long [] swapRandomInBucket(long bucketIndex, long tag){
-		int tagBoxNum = getTagBoxNum(bucketIndex);
-		int rPos = ThreadLocalRandom.current().nextInt(CountingCuckooFilter.BUCKET_SIZE - (tagBoxNum*2));
+	 * Writes the four slots of bucket i1 and then those of i2 to into, from
+	 * at, for {@link BucketProbe}. The count slot of a tagBox is zeroed, and a
+	 * tag is never 0, so any slot equal to a tag means findTag would find it.
+	 */
+	void readCandidates(long i1, long i2, long[] into, int at) {
+		readBucketTags(i1, into, at);
+		readBucketTags(i2, into, at + CountingCuckooFilter.BUCKET_SIZE);
+	}
+
+	void readBucketTags(long bucketIndex, long[] into, int at) {
+		long base = bucketOffset(bucketIndex);
+		for (int i = 0; i < CountingCuckooFilter.BUCKET_SIZE; i++) {
+			into[at + i] = memBlock.readBits(base + i * bitsPerTag, bitsPerTag);
+		}
+		if (into[at + 1] == 0) {
+			into[at + 2] = 0;
+		}
+	}
 
-		long victims[] = new long[3];
-		if(rPos >= tagBoxNum){//为tag直接替换
-			//(rPos - tagBoxNum) + (tagBoxNum * 3)
-			victims[0] = readTagAndSet(bucketIndex,rPos+(tagBoxNum * 2),tag);
-		}else{
-			victims = readTagBoxAndDelete(bucketIndex,rPos*3);
-			//insertTagToBucket(bucketIndex,tag);
-			//由于插入时是满的，而我们又删掉了一个tagBox,所以可以直接插入到倒数第3个位置
-			writeTagNoClear(bucketIndex,CountingCuckooFilter.BUCKET_SIZE-3,tag);
+	/**
+	 * 已占用的slot数，tagBox占3个.
+	 * **/
+	int usedSlots(long bucketIndex){
+		int pos = checkTagBox(bucketIndex,0) ? 3 : 0;
+		while (pos < CountingCuckooFilter.BUCKET_SIZE && !checkTag(bucketIndex,pos,0)) {
+			pos++;
 		}
-		return victims;
+		return pos;
+	}
+
+	int freeSlots(long bucketIndex){
+		return CountingCuckooFilter.BUCKET_SIZE - usedSlots(bucketIndex);
 	}
 
 	/**
-	 * tagBox首先会尝试直接插入，挤出1-3个tag,如果直接插入失败，则会尝试踢掉一个tagBox.
+	 * bucket头部是否是这个tag的tagBox.
 	 * **/
-	long [] swapRandomInBucket(long bucketIndex, long tag, long count){
+	boolean hasTagBox(long bucketIndex, long tag){
+		return checkTagBox(bucketIndex,0) && checkTag(bucketIndex,0,tag);
+	}
 
-		long victims[] = new long[3];
-		//检查是否有3个单位的空间,如果剩余空间小于3个，则无法开辟
-		if(CountingCuckooFilter.BUCKET_SIZE - (getTagBoxNum(bucketIndex) * 3) >= 3 ){
-			for (int i = 0; i < 3; i++) {	//直接读取最后3个tag
-				victims[i] = readTag(bucketIndex,CountingCuckooFilter.BUCKET_SIZE-3+i);
+	/**
+	 * 删除一个普通tag(不是tagBox)，后面的tag前移.
+	 * **/
+	boolean removeTag(long bucketIndex, long tag){
+		for (int i = checkTagBox(bucketIndex,0) ? 3 : 0; i < CountingCuckooFilter.BUCKET_SIZE; i++) {
+			if(checkTag(bucketIndex,i,tag)){
+				moveTagForward(bucketIndex,i);
+				return true;
 			}
-			createTagBox(bucketIndex,tag,count);//此时会踢掉最后3个；
-			return victims;
 		}
+		return false;
+	}
 
-		//bucket_size = 7,则可存放的tagbox的个数为2 = bucket_size / 3
-		int rPos = ThreadLocalRandom.current().nextInt(CountingCuckooFilter.BUCKET_SIZE / 3) * 3;
+	/**
+	 * 删除整个tagBox，返回它的count，不存在则返回0.
+	 * **/
+	long removeTagBox(long bucketIndex, long tag){
+		if(!hasTagBox(bucketIndex,tag)) return 0;
+		long count = readTag(bucketIndex,2) + 3;
+		for (int i = 0; i < 3; i++) {
+			moveTagForward(bucketIndex,0);
+		}
+		return count;
+	}
 
-		victims[0] = readTagAndSet(bucketIndex,rPos,tag);
-		//读取的tagCount需要+3
-		victims[2] = readTagAndSet(bucketIndex,rPos+2,count - 3) + 3;
-		return victims;
+	/**
+	 * 把bucket头部tag的tagBox的计数改为count，count小于4时退回为count个普通tag，为0时删除.
+	 * tagBox占的3个slot足够放下退回的普通tag.
+	 * **/
+	void resizeTagBox(long bucketIndex, long tag, long count){
+		if(count >= 4){
+			clearTagAndSet(bucketIndex,2,count - 3);
+			return;
+		}
+		removeTagBox(bucketIndex,tag);
+		for (long i = 0; i < count; i++) {
+			insertTagToBucket(bucketIndex,tag);
+		}
 	}
 
 	//获取tagBoxNum;
@@ -259,21 +383,25 @@ final class FilterTable implements Serializable {
 		long tag = 0;
 		long tagEndIdx = tagStartIdx + bitsPerTag;
 		// looping over true bits per nextBitSet javadocs
-		for (long i = memBlock.nextSetBit(tagStartIdx); i >= 0 && i < tagEndIdx; i = memBlock.nextSetBit(i + 1L)) {
+		for (long i = memBlock.nextSetBit(tagStartIdx); i >= 0 && i < tagEndIdx; i = i + 1L < tagEndIdx ? memBlock.nextSetBit(i + 1L) : -1) {
 			// set corresponding bit in tag
-			tag |= 1 << (i - tagStartIdx);
+			tag |= 1L << (i - tagStartIdx);
 		}
 		return tag;
 	}
 
-	long[] readTagBoxAndDelete(long bucketIndex,int tagPosInBucket){
-		long tagBox[] = new long[3];
-		for (int i = 0; i < 3; i++) {
-			tagBox[i] = readTag(bucketIndex,tagPosInBucket);
-			moveTagForward(bucketIndex,tagPosInBucket);
-		}
-		tagBox[2] += 3;
-		return tagBox;
+	/**
+	 * readTag with word reads instead of a bit loop.
+	 */
+	long readSlot(long bucketIndex, int posInBucket) {
+		return memBlock.readBits(getTagOffset(bucketIndex, posInBucket), bitsPerTag);
+	}
+
+	/**
+	 * clearTagAndSet with word writes instead of a bit loop.
+	 */
+	void writeSlot(long bucketIndex, int posInBucket, long tag) {
+		memBlock.writeBits(getTagOffset(bucketIndex, posInBucket), bitsPerTag, tag);
 	}
 
 	/**
@@ -319,11 +447,11 @@ final class FilterTable implements Serializable {
 		for (long i = tagStartIdx; i < tagEndIdx; i++) {
 			if ((newTag & (1L << tagPos)) != 0) {
 				if (memBlock.getAndSet(i)) {
-					tag |= 1 << tagPos;
+					tag |= 1L << tagPos;
 				}
 			} else {
 				if (memBlock.getAndClear(i)) {
-					tag |= 1 << tagPos;
+					tag |= 1L << tagPos;
 				}
 			}
 			tagPos++;
@@ -435,7 +563,18 @@ final class FilterTable implements Serializable {
 	 * @return
 	 */
 	private long getTagOffset(long bucketIndex, int posInBucket) {
-		return (bucketIndex * CountingCuckooFilter.BUCKET_SIZE * bitsPerTag) + (posInBucket * bitsPerTag);
+		return bucketOffset(bucketIndex) + (posInBucket * bitsPerTag);
+	}
+
+	/**
+	 * Bit offset of the first slot of a bucket.
+	 */
+	long bucketOffset(long bucketIndex) {
+		if (bucketsPerBlock == 0) {
+			return bucketIndex * CountingCuckooFilter.BUCKET_SIZE * bitsPerTag;
+		}
+		return baseBits + (bucketIndex / bucketsPerBlock) * blockBits
+				+ (bucketIndex % bucketsPerBlock) * CountingCuckooFilter.BUCKET_SIZE * bitsPerTag;
 	}
 
 
@@ -445,21 +584,22 @@ final class FilterTable implements Serializable {
 		if (object == this) {
 			return true;
 		}
-		if (object instanceof FilterTable) {
+		if (object != null && object.getClass() == getClass()) {
 			FilterTable that = (FilterTable) object;
 			return this.bitsPerTag == that.bitsPerTag && this.memBlock.equals(that.memBlock)
-					&& this.numBuckets == that.numBuckets;
+					&& this.numBuckets == that.numBuckets && this.blockBits == that.blockBits
+					&& this.baseBits == that.baseBits;
 		}
 		return false;
 	}
 
 	@Override
 	public int hashCode() {
-		return Objects.hash(bitsPerTag, memBlock, numBuckets);
+		return Objects.hash(bitsPerTag, memBlock, numBuckets, blockBits);
 	}
 
 	public FilterTable copy() {
-		return new FilterTable(memBlock.clone(), bitsPerTag, numBuckets);
+		return new FilterTable(memBlock.clone(), bitsPerTag, numBuckets, maxTagCount, blockBits, baseBits);
 	}
 
 
@@ -0,0 +1,186 @@
+package com.github.mgunlogson.cuckoofilter4j;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Entries a bounded insert couldn't place within its displacement budget,
+ * kept here until the background relocation moves them into the table.
+ * Lookups and deletes consult it, so a held entry is never missing from the
+ * filter. {@link WriteCombiningCuckooFilter} also uses one per thread to
+ * collect increments before applying them.
+ * <p>
+ * A small open addressing table keyed by home bucket and tag, so lookups stay
+ * constant time while it fills. It is kept at most half full. Not thread
+ * safe, callers guard it with the filter's victim lock. Only {@link #size()}
+ * may be read without the lock, to skip the lock entirely while nothing is
+ * held, and {@link #find(long, long, long)} under an optimistic read of it,
+ * whose answer only counts if the stamp still validates.
+ */
+final class HoldingArea implements Serializable {
+    private static final long serialVersionUID = 5120771361032868470L;
+
+    private final long[] buckets;
+    private final long[] tags;
+    // 0 marks a free slot
+    private final long[] counts;
+    private final int mask;
+    private final int maxSize;
+    private volatile int size;
+
+    HoldingArea(int capacity) {
+        checkArgument(capacity > 0 && (capacity & (capacity - 1)) == 0, "capacity (%s) must be a power of two",
+                capacity);
+        this.buckets = new long[capacity * 2];
+        this.tags = new long[capacity * 2];
+        this.counts = new long[capacity * 2];
+        this.mask = capacity * 2 - 1;
+        this.maxSize = capacity;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Adds count copies of tag, merging with an entry already held for the
+     * same bucket. Returns false if the area is full.
+     */
+    boolean add(long bucket, long tag, long count) {
+        int pos = slot(bucket, tag);
+        for (; counts[pos] != 0; pos = (pos + 1) & mask) {
+            if (buckets[pos] == bucket && tags[pos] == tag) {
+                counts[pos] += count;
+                return true;
+            }
+        }
+        if (size == maxSize) {
+            return false;
+        }
+        buckets[pos] = bucket;
+        tags[pos] = tag;
+        counts[pos] = count;
+        size++;
+        return true;
+    }
+
+    /**
+     * Position of the entry for tag whose home is i1 or i2, or -1.
+     */
+    int find(long i1, long i2, long tag) {
+        int pos = find(i1, tag);
+        return pos >= 0 || i1 == i2 ? pos : find(i2, tag);
+    }
+
+    private int find(long bucket, long tag) {
+        // bounded so a read racing a writer can't go round forever
+        int pos = slot(bucket, tag);
+        for (int probes = 0; counts[pos] != 0 && probes <= mask; pos = (pos + 1) & mask, probes++) {
+            if (buckets[pos] == bucket && tags[pos] == tag) {
+                return pos;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Number of positions, for iterating with {@link #countAt(int)}, which is
+     * 0 for free positions.
+     */
+    int slots() {
+        return mask + 1;
+    }
+
+    void clear() {
+        Arrays.fill(counts, 0L);
+        size = 0;
+    }
+
+    /**
+     * Position of any held entry at or after from, wrapping around, or -1 if
+     * nothing is held.
+     */
+    int next(int from) {
+        if (size == 0) {
+            return -1;
+        }
+        for (int i = 0; i <= mask; i++) {
+            int pos = (from + i) & mask;
+            if (counts[pos] != 0) {
+                return pos;
+            }
+        }
+        return -1;
+    }
+
+    long bucketAt(int pos) {
+        return buckets[pos];
+    }
+
+    long tagAt(int pos) {
+        return tags[pos];
+    }
+
+    long countAt(int pos) {
+        return counts[pos];
+    }
+
+    /**
+     * Halves every count, rounding down and dropping entries that reach 0.
+     * Returns how much was taken off in total.
+     */
+    long halve() {
+        long[] oldBuckets = buckets.clone();
+        long[] oldTags = tags.clone();
+        long[] oldCounts = counts.clone();
+        clear();
+        long removed = 0;
+        for (int pos = 0; pos < oldCounts.length; pos++) {
+            long c = oldCounts[pos];
+            if (c != 0) {
+                removed += c - c / 2;
+                if (c / 2 > 0) {
+                    add(oldBuckets[pos], oldTags[pos], c / 2);
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Takes one off the count at pos, dropping the entry when it reaches 0.
+     */
+    void decrement(int pos) {
+        if (--counts[pos] == 0) {
+            removeAt(pos);
+        }
+    }
+
+    /**
+     * Backward shift deletion, so probe sequences never need tombstones.
+     */
+    private void removeAt(int pos) {
+        int hole = pos;
+        for (int i = (pos + 1) & mask; counts[i] != 0; i = (i + 1) & mask) {
+            int home = slot(buckets[i], tags[i]);
+            // move the entry into the hole unless its home lies cyclically in (hole, i]
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                buckets[hole] = buckets[i];
+                tags[hole] = tags[i];
+                counts[hole] = counts[i];
+                hole = i;
+            }
+        }
+        counts[hole] = 0;
+        size--;
+    }
+
+    private int slot(long bucket, long tag) {
+        long h = (bucket * 0x9E3779B97F4A7C15L) ^ tag;
+        h ^= h >>> 29;
+        h *= 0xBF58476D1CE4E5B9L;
+        return (int) (h >>> 32) & mask;
+    }
+}
@@ -18,35 +18,20 @@ package com.github.mgunlogson.cuckoofilter4j;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Objects;
 
 import javax.annotation.Nullable;
 
 import com.github.mgunlogson.cuckoofilter4j.Utils.Algorithm;
 import com.google.common.hash.Funnel;
-import com.google.common.hash.HashCode;
 import com.google.common.primitives.Longs;
 
-/**
- * Hopefully keeping this class as simple as possible will allow JVM to prevent
- * allocating these entirely.
- * 
- * @author Mark Gunlogson
- *
- */
-final class BucketAndTag {
-
-	final long index;
-	final long tag;
-
-	BucketAndTag(long bucketIndex, long tag) {
-		this.index = bucketIndex;
-		this.tag = tag;
-	}
-}
-
 /**
  * This class calculates tag and bucket indexes for items.
  * 
@@ -62,11 +47,14 @@ final class IndexTagCalc<T> implements Serializable {
 	private final long numBuckets;
 	private final int tagBits;
 	private final int hashLength;
+	/**
+	 * numBuckets - 1 when the table has a power of two buckets, -1 otherwise.
+	 * Derived from numBuckets.
+	 */
+	private transient long indexMask;
 
 	IndexTagCalc(SerializableSaltedHasher<T> hasher, long numBuckets, int tagBits) {
 		checkNotNull(hasher);
-		checkArgument((numBuckets & -numBuckets) == numBuckets, "Number of buckets (%s) must be a power of two",
-				numBuckets);
 		checkArgument(tagBits > 0, "Number of tag bits (%s) must be positive", tagBits);
 		// no matter the hash function we use index and tag are always longs.
 		// So, make sure user didn't choose obscenely large fingerprints
@@ -78,6 +66,16 @@ final class IndexTagCalc<T> implements Serializable {
 		this.hashLength = hasher.codeBitSize();
 		checkArgument(isHashConfigurationIsSupported(numBuckets, tagBits, hashLength),
 				"Unsupported Hash Configuration! Hash must be 32, 64, or more than 128 bits and index and tag must fit within hash size. Make table smaller, or use a longer hash.");
+		this.indexMask = indexMaskOf(numBuckets);
+	}
+
+	private void readObject(ObjectInputStream ois) throws ClassNotFoundException, IOException {
+		ois.defaultReadObject();
+		indexMask = indexMaskOf(numBuckets);
+	}
+
+	private static long indexMaskOf(long numBuckets) {
+		return (numBuckets & (numBuckets - 1)) == 0 ? numBuckets - 1 : -1;
 	}
 
 	static <T> IndexTagCalc<T> create(Algorithm hasherAlg, Funnel<? super T> funnel, long numBuckets, int tagBits) {
@@ -131,9 +129,17 @@ final class IndexTagCalc<T> implements Serializable {
 	 * {@code #getTotalBitsNeeded(long, int) in
 	 * {@code #isHashConfigurationIsSupported(long, int, int)} makes sure we
 	 * have enough bits for the filter size when the table is constructed.
+	 * <p>
+	 * The result is written to {@code out.index} and {@code out.tag} instead of
+	 * a new object so that lookups and inserts don't allocate.
 	 * 
 	 */
-	BucketAndTag generate(T item) {
+	void generate(T item, OpScratch out) {
+		if (item instanceof CharSequence && hasher.charsEncoding() != SerializableSaltedHasher.CharsEncoding.NONE) {
+			// same bytes the funnel would put, without the per char calls
+			generate((CharSequence) item, out);
+			return;
+		}
 		/*
 		 * How do we get tag and bucketIndex from a single 32 bit hash? Max
 		 * filter size is constrained to 32 bits of bits (by BitSet) So, the bit
@@ -143,33 +149,31 @@ final class IndexTagCalc<T> implements Serializable {
 		 */
 		long tag = 0;
 		long bucketIndex = 0;
-		HashCode code = hasher.hashObj(item);
 		// 32 bit hash
-//		if (hashLength == 32) {
-//			int hashVal = code.asInt();
-//			bucketIndex = getBucketIndex32(hashVal);
-//			// loop until tag isn't equal to empty bucket (0)
-//			tag = getTagValue32(hashVal);
-//			for (int salt = 1; tag == 0; salt++) {
-//				hashVal = hasher.hashObjWithSalt(item, salt).asInt();
-//				tag = getTagValue32(hashVal);
-//				assert salt < 100;// shouldn't happen in our timeline
-//			}
-//		} else 
-		if (hashLength == 64) {//TODO fix hashLength 32 not 64
-			long hashVal = code.asLong();
+		if (hashLength == 32) {
+			int hashVal = hasher.hashObjInt(item);
+			bucketIndex = getBucketIndex32(hashVal);
+			// loop until tag isn't equal to empty bucket (0)
+			tag = getTagValue32(hashVal);
+			for (int salt = 1; tag == 0; salt++) {
+				hashVal = hasher.hashObjWithSaltInt(item, salt);
+				tag = getTagValue32(hashVal);
+				assert salt < 100;// shouldn't happen in our timeline
+			}
+		} else if (hashLength == 64) {
+			long hashVal = hasher.hashObjLong(item);
 			bucketIndex = getBucketIndex64(hashVal);
 			// loop until tag isn't equal to empty bucket (0)
 			tag = getTagValue64(hashVal);
 			for (int salt = 1; tag == 0; salt++) {
-				hashVal = hasher.hashObjWithSalt(item, salt).asLong();
+				hashVal = hasher.hashObjWithSaltLong(item, salt);
 				tag = getTagValue64(hashVal);
 				assert salt < 100;// shouldn't happen in our timeline
 			}
 		}
 		// >=128
 		else {
-			byte[] hashVal = code.asBytes();
+			byte[] hashVal = hasher.hashObj(item).asBytes();
 			bucketIndex = getBucketIndex64(longFromLowBytes(hashVal));
 			// loop until tag isn't equal to empty bucket (0)
 			tag = getTagValue64(longFromHighBytes(hashVal));
@@ -179,7 +183,134 @@ final class IndexTagCalc<T> implements Serializable {
 				assert salt < 100;// shouldn't happen in our timeline
 			}
 		}
-		return new BucketAndTag(bucketIndex, tag);
+		out.index = bucketIndex;
+		out.tag = tag;
+	}
+
+	/**
+	 * {@link #generate(Object, OpScratch)} for a raw byte key, placed like an
+	 * item whose funnel puts exactly these bytes. Exactly one of array and
+	 * buffer is set, buffer is read at absolute indexes.
+	 */
+	void generate(byte[] array, ByteBuffer buffer, int off, int len, OpScratch out) {
+		long tag = 0;
+		long bucketIndex = 0;
+		if (hashLength == 32) {
+			int hashVal = hasher.hashBytesInt(array, buffer, off, len);
+			bucketIndex = getBucketIndex32(hashVal);
+			tag = getTagValue32(hashVal);
+			for (int salt = 1; tag == 0; salt++) {
+				hashVal = hasher.hashBytesWithSalt(array, buffer, off, len, salt).asInt();
+				tag = getTagValue32(hashVal);
+				assert salt < 100;// shouldn't happen in our timeline
+			}
+		} else if (hashLength == 64) {
+			long hashVal = hasher.hashBytesLong(array, buffer, off, len);
+			bucketIndex = getBucketIndex64(hashVal);
+			tag = getTagValue64(hashVal);
+			for (int salt = 1; tag == 0; salt++) {
+				hashVal = hasher.hashBytesWithSaltLong(array, buffer, off, len, salt);
+				tag = getTagValue64(hashVal);
+				assert salt < 100;// shouldn't happen in our timeline
+			}
+		}
+		// >=128
+		else {
+			byte[] hashVal = hasher.hashBytes(array, buffer, off, len).asBytes();
+			bucketIndex = getBucketIndex64(longFromLowBytes(hashVal));
+			tag = getTagValue64(longFromHighBytes(hashVal));
+			for (int salt = 1; tag == 0; salt++) {
+				hashVal = hasher.hashBytesWithSalt(array, buffer, off, len, salt).asBytes();
+				tag = getTagValue64(longFromHighBytes(hashVal));
+				assert salt < 100;// shouldn't happen in our timeline
+			}
+		}
+		out.index = bucketIndex;
+		out.tag = tag;
+	}
+
+	/**
+	 * {@link #generate(Object, OpScratch)} for chars, placed exactly like a
+	 * CharSequence item put through the filter's funnel. Only valid when the
+	 * funnel is one {@link SerializableSaltedHasher#charsEncoding()}
+	 * recognizes.
+	 */
+	void generate(CharSequence chars, OpScratch out) {
+		long tag = 0;
+		long bucketIndex = 0;
+		if (hashLength == 32) {
+			int hashVal = hasher.hashCharsInt(chars);
+			bucketIndex = getBucketIndex32(hashVal);
+			tag = getTagValue32(hashVal);
+			for (int salt = 1; tag == 0; salt++) {
+				hashVal = hasher.hashCharsWithSalt(chars, salt).asInt();
+				tag = getTagValue32(hashVal);
+				assert salt < 100;// shouldn't happen in our timeline
+			}
+		} else if (hashLength == 64) {
+			long hashVal = hasher.hashCharsLong(chars);
+			bucketIndex = getBucketIndex64(hashVal);
+			tag = getTagValue64(hashVal);
+			for (int salt = 1; tag == 0; salt++) {
+				hashVal = hasher.hashCharsWithSaltLong(chars, salt);
+				tag = getTagValue64(hashVal);
+				assert salt < 100;// shouldn't happen in our timeline
+			}
+		}
+		// >=128
+		else {
+			byte[] hashVal = hasher.hashChars(chars).asBytes();
+			bucketIndex = getBucketIndex64(longFromLowBytes(hashVal));
+			tag = getTagValue64(longFromHighBytes(hashVal));
+			for (int salt = 1; tag == 0; salt++) {
+				hashVal = hasher.hashCharsWithSalt(chars, salt).asBytes();
+				tag = getTagValue64(longFromHighBytes(hashVal));
+				assert salt < 100;// shouldn't happen in our timeline
+			}
+		}
+		out.index = bucketIndex;
+		out.tag = tag;
+	}
+
+	/**
+	 * Index and tag from a 64 bit hash the caller computed, seeded with
+	 * {@link SerializableSaltedHasher#mixHash(long, int)} and split like a 64
+	 * bit hash of the item. Only valid while index and tag fit in 64 bits,
+	 * which takes a table of over 2^(64 - tagBits) buckets to break.
+	 */
+	void generateFromHash(long hash, OpScratch out) {
+		checkState(getTotalBitsNeeded(numBuckets, tagBits) <= 64,
+				"table needs more than 64 bits of hash, pass a 128 bit hash");
+		long hashVal = hasher.mixHash(hash, 0);
+		long tag = getTagValue64(hashVal);
+		for (int salt = 1; tag == 0; salt++) {
+			tag = getTagValue64(hasher.mixHash(hash, salt));
+			assert salt < 100;// shouldn't happen in our timeline
+		}
+		out.index = getBucketIndex64(hashVal);
+		out.tag = tag;
+	}
+
+	/**
+	 * Index and tag from a 128 bit hash the caller computed, the index from
+	 * the low half and the tag from the high half like a 128 bit hash of the
+	 * item.
+	 */
+	void generateFromHash(long low, long high, OpScratch out) {
+		long tag = getTagValue64(hasher.mixHash(high, 0));
+		for (int salt = 1; tag == 0; salt++) {
+			tag = getTagValue64(hasher.mixHash(high, salt));
+			assert salt < 100;// shouldn't happen in our timeline
+		}
+		out.index = getBucketIndex64(hasher.mixHash(low, 0));
+		out.tag = tag;
+	}
+
+	/**
+	 * Whether {@link #generate(CharSequence, OpScratch)} can be used.
+	 */
+	boolean supportsChars() {
+		return hasher.charsEncoding() != SerializableSaltedHasher.CharsEncoding.NONE;
 	}
 
 	long getTagValue32(int hashVal) {
@@ -197,7 +328,13 @@ final class IndexTagCalc<T> implements Serializable {
 	long getBucketIndex32(int hashVal) {
 		// take index bits from left end of hash
 		// just use everything we're not using for tag, why not
-		return hashIndex(hashVal >>> tagBits);
+		int indexBits = hashVal >>> tagBits;
+		if (indexMask >= 0)
+			return indexBits & indexMask;
+		// Lemire's multiply-shift range reduction, index bits moved back to
+		// the top of the word. The product fits an unsigned long since
+		// numBuckets < 2^32 when a 32 bit hash is enough
+		return ((indexBits << tagBits) & 0xFFFFFFFFL) * numBuckets >>> 32;
 	}
 
 	long getTagValue64(long hashVal) {
@@ -217,7 +354,12 @@ final class IndexTagCalc<T> implements Serializable {
 	long getBucketIndex64(long hashVal) {
 		// take index bits from left end of hash
 		// just use everything we're not using for tag, why not
-		return hashIndex(hashVal >>> tagBits);
+		long indexBits = hashVal >>> tagBits;
+		if (indexMask >= 0)
+			return indexBits & indexMask;
+		// Lemire's multiply-shift range reduction: no division, and no more
+		// bias than a modulo of the same bits
+		return Utils.unsignedMultiplyHigh(indexBits << tagBits, numBuckets);
 	}
 
 	private long longFromHighBytes(byte[] bytes) {
@@ -234,21 +376,20 @@ final class IndexTagCalc<T> implements Serializable {
 		 * MurmurHash3...interesting. Similar value used in reference
 		 * implementation https://github.com/efficient/cuckoofilter/
 		 */
-		long altIndex = bucketIndex ^ (tag * 0xc4ceb9fe1a85ec53L);
-		// flip bits if negative
-		if (altIndex < 0)
-			altIndex = ~altIndex;
-		// now pull into valid range
-		return hashIndex(altIndex);
-	}
-
-	long hashIndex(long altIndex) {
+		long tagHash = tag * 0xc4ceb9fe1a85ec53L;
+		if (indexMask >= 0) {
+			long altIndex = bucketIndex ^ tagHash;
+			// flip bits if negative, then pull into valid range
+			return (altIndex ^ (altIndex >> 63)) & indexMask;
+		}
 		/*
-		 * we always need to return a bucket index within table range if we try
-		 * to range it later during read/write things will go terribly wrong
-		 * since the index becomes circular
+		 * XOR can leave the range when numBuckets isn't a power of two, so
+		 * reflect the index around an offset picked by the tag instead. Going
+		 * from offset - i back gives offset - (offset - i) = i, so the two
+		 * buckets of a tag still point at each other.
 		 */
-		return altIndex % numBuckets;
+		long altIndex = Utils.unsignedMultiplyHigh(tagHash, numBuckets) - bucketIndex;
+		return altIndex < 0 ? altIndex + numBuckets : altIndex;
 	}
 
 	@Override
@@ -0,0 +1,27 @@
+package com.github.mgunlogson.cuckoofilter4j;
+
+/**
+ * A key's two candidate buckets and tag, worked out once by
+ * {@link CountingCuckooFilter#prepare(Object)} so repeated operations on the
+ * same key skip hashing. Immutable, so it can be cached and shared between
+ * threads.
+ * <p>
+ * A handle belongs to the hasher of the filter that prepared it and is
+ * rejected by filters with a different one. Filters sharing a hasher, like
+ * the generations of a {@link SlidingWindowCountingCuckooFilter}, accept each
+ * other's handles.
+ */
+public final class KeyHandle {
+
+    final IndexTagCalc<?> hasher;
+    final long index;
+    final long altIndex;
+    final long tag;
+
+    KeyHandle(IndexTagCalc<?> hasher, long index, long altIndex, long tag) {
+        this.hasher = hasher;
+        this.index = index;
+        this.altIndex = altIndex;
+        this.tag = tag;
+    }
+}
@@ -130,6 +130,11 @@ final class LongBitSet implements Serializable {
 		return numBits;
 	}
 
+	/** Returns the estimated heap size of this bitset in bytes. */
+	long ramBytesUsed() {
+		return RamUsageEstimator.shallowSizeOfInstance(LongBitSet.class) + RamUsageEstimator.sizeOf(bits);
+	}
+
 	/** Expert. */
 	long[] getBits() {
 		return bits;
@@ -177,6 +182,38 @@ final class LongBitSet implements Serializable {
 		return val;
 	}
 
+	/**
+	 * Reads the n bits (1 to 64) starting at index as a number, the bit at
+	 * index being the lowest. At most two words are touched.
+	 */
+	long readBits(long index, int n) {
+		assert index >= 0 && index + n <= numBits : "index=" + index + ", n=" + n + ", numBits=" + numBits;
+		int wordNum = (int) (index >> 6);
+		int shift = (int) (index & 0x3f);
+		long value = bits[wordNum] >>> shift;
+		if (shift + n > 64) {
+			value |= bits[wordNum + 1] << (64 - shift);
+		}
+		return n == 64 ? value : value & ((1L << n) - 1);
+	}
+
+	/**
+	 * Overwrites the n bits (1 to 64) starting at index with the low n bits
+	 * of value, the inverse of {@link #readBits(long, int)}.
+	 */
+	void writeBits(long index, int n, long value) {
+		assert index >= 0 && index + n <= numBits : "index=" + index + ", n=" + n + ", numBits=" + numBits;
+		long mask = n == 64 ? -1L : (1L << n) - 1;
+		value &= mask;
+		int wordNum = (int) (index >> 6);
+		int shift = (int) (index & 0x3f);
+		bits[wordNum] = (bits[wordNum] & ~(mask << shift)) | (value << shift);
+		if (shift + n > 64) {
+			long highMask = mask >>> (64 - shift);
+			bits[wordNum + 1] = (bits[wordNum + 1] & ~highMask) | (value >>> (64 - shift));
+		}
+	}
+
 	/**
 	 * Returns the index of the first set bit starting at the index specified.
 	 * -1 is returned if there are no more set bits.
@@ -385,6 +422,11 @@ final class LongBitSet implements Serializable {
 		bits[endWord] |= endmask;
 	}
 
+	/** Clears all bits, one word at a time. */
+	void clear() {
+		Arrays.fill(bits, 0L);
+	}
+
 	/**
 	 * Clears a range of bits.
 	 *
@@ -0,0 +1,116 @@
+package com.github.mgunlogson.cuckoofilter4j;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded multi-producer, single-consumer ring buffer of filter operations,
+ * the inbox of one {@link ShardedCountingCuckooFilter} shard.
+ * <p>
+ * Every slot carries a sequence number (Vyukov's bounded queue): producers
+ * claim a slot by advancing the shared tail and publish it by bumping the
+ * slot's sequence, so they never wait on each other while writing. The
+ * operation is stored in parallel arrays rather than an object per entry, so
+ * fire-and-forget operations don't allocate.
+ */
+final class MpscOpQueue {
+
+    static final byte PUT = 0;
+    static final byte DELETE = 1;
+    static final byte COUNT = 2;
+    static final byte FLUSH = 3;
+
+    /**
+     * Applies drained operations, called on the consumer thread.
+     */
+    interface Handler {
+        void apply(byte op, Object item, CompletableFuture<?> future);
+    }
+
+    private final int mask;
+    private final byte[] ops;
+    private final Object[] items;
+    private final CompletableFuture<?>[] futures;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    // only touched by the consumer
+    private long head;
+
+    MpscOpQueue(int capacity) {
+        checkArgument(capacity > 1 && (capacity & (capacity - 1)) == 0, "capacity (%s) must be a power of two > 1",
+                capacity);
+        this.mask = capacity - 1;
+        this.ops = new byte[capacity];
+        this.items = new Object[capacity];
+        this.futures = new CompletableFuture<?>[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Returns false if the queue is full.
+     */
+    boolean offer(byte op, Object item, CompletableFuture<?> future) {
+        for (;;) {
+            long pos = tail.get();
+            int slot = (int) pos & mask;
+            long seq = sequences.get(slot);
+            if (seq < pos) {
+                // the consumer hasn't freed this slot yet
+                return false;
+            }
+            if (seq == pos && tail.compareAndSet(pos, pos + 1)) {
+                ops[slot] = op;
+                items[slot] = item;
+                futures[slot] = future;
+                // publishes the plain writes above to the consumer
+                sequences.set(slot, pos + 1);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Applies up to max published operations in order and returns how many
+     * were applied. Consumer thread only.
+     */
+    int drain(Handler handler, int max) {
+        int n = 0;
+        for (; n < max; n++) {
+            int slot = (int) head & mask;
+            if (sequences.get(slot) != head + 1) {
+                break;
+            }
+            byte op = ops[slot];
+            Object item = items[slot];
+            CompletableFuture<?> future = futures[slot];
+            items[slot] = null;
+            futures[slot] = null;
+            sequences.lazySet(slot, head + mask + 1);
+            head++;
+            handler.apply(op, item, future);
+        }
+        return n;
+    }
+
+    /**
+     * Exact on the consumer thread, a snapshot anywhere else.
+     */
+    boolean isEmpty() {
+        long h = head;
+        return sequences.get((int) h & mask) != h + 1;
+    }
+
+    /**
+     * Approximate number of queued operations, for monitoring.
+     */
+    int size() {
+        long size = tail.get() - head;
+        return (int) Math.max(0, Math.min(size, mask + 1));
+    }
+}
@@ -0,0 +1,224 @@
+package com.github.mgunlogson.cuckoofilter4j;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Puts a {@link CountingCuckooFilter} in front of an expensive backing store
+ * (disk, a remote service...) so lookups of keys the store doesn't have
+ * usually never reach it. A key the filter has never seen is reported missing
+ * straight away; any other key is passed to the loader, which returns null
+ * when the store doesn't have it either, a false positive of the filter.
+ * <p>
+ * Keep the filter in step with the store with {@link #recordInsert(Object)}
+ * when a key is added and {@link #recordDelete(Object)} when it is removed.
+ * Because the filter counts, keys sharing a fingerprint each hold their own
+ * copy and deleting one never hides the other. Recording an
+ * update of an existing key as an insert only leaves an extra copy, which can
+ * cause false positives but never a wrong miss. Call recordInsert before the
+ * key is written to the store and recordDelete after it is gone from it, so
+ * no reader can find the store ahead of the filter.
+ * <p>
+ * The filter can still lose keys: an insert it couldn't place goes to its
+ * victim list, which lookups don't check ({@link #recordInsert(Object)}
+ * returns false), a saturated count can be deleted down to zero while other
+ * keys with the same fingerprint remain, and {@link CountingCuckooFilter#decay()}
+ * or the aging of {@code withAgingPeriod} halves a count of 1 to 0. Once
+ * {@link CountingCuckooFilter#mayHaveLostKeys()} is true the guard stops
+ * answering misses itself and sends every lookup to the loader, see
+ * {@link #getBypassedCount()}. Don't guard a store with a decaying filter, and
+ * rebuild an overfull filter bigger to get the savings back.
+ *
+ * @param <K>
+ *            key type
+ * @param <V>
+ *            value type
+ */
+public final class NegativeLookupGuard<K, V> {
+
+    private final CountingCuckooFilter<K> filter;
+    private final Function<? super K, ? extends V> loader;
+    private final Function<? super K, ? extends CompletionStage<? extends V>> asyncLoader;
+
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder savedCalls = new LongAdder();
+    private final LongAdder falsePositives = new LongAdder();
+    private final LongAdder bypassed = new LongAdder();
+
+    // admit results
+    private static final int MISS = 0;
+    private static final int HIT = 1;
+    // the filter missed but may have lost the key
+    private static final int BYPASS = 2;
+
+    private NegativeLookupGuard(CountingCuckooFilter<K> filter, Function<? super K, ? extends V> loader,
+            Function<? super K, ? extends CompletionStage<? extends V>> asyncLoader) {
+        this.filter = checkNotNull(filter);
+        this.loader = loader;
+        this.asyncLoader = asyncLoader;
+    }
+
+    /**
+     * Guards a blocking loader, which returns null for keys the store doesn't
+     * have.
+     */
+    public static <K, V> NegativeLookupGuard<K, V> of(CountingCuckooFilter<K> filter,
+            Function<? super K, ? extends V> loader) {
+        return new NegativeLookupGuard<K, V>(filter, checkNotNull(loader), null);
+    }
+
+    /**
+     * Guards an asynchronous loader, whose stage completes with null for keys
+     * the store doesn't have. Only {@link #getAsync(Object)} can be used.
+     */
+    public static <K, V> NegativeLookupGuard<K, V> ofAsync(CountingCuckooFilter<K> filter,
+            Function<? super K, ? extends CompletionStage<? extends V>> asyncLoader) {
+        return new NegativeLookupGuard<K, V>(filter, null, checkNotNull(asyncLoader));
+    }
+
+    public CountingCuckooFilter<K> getFilter() {
+        return filter;
+    }
+
+    /**
+     * Loads key, or returns null without calling the loader when the filter
+     * says the store can't have it.
+     */
+    public V get(K key) {
+        checkState(loader != null, "built with an asynchronous loader, use getAsync");
+        int admitted = admit(key);
+        if (admitted == MISS) {
+            return null;
+        }
+        V value = loader.apply(key);
+        if (value == null && admitted == HIT) {
+            falsePositives.increment();
+        }
+        return value;
+    }
+
+    /**
+     * Asynchronous {@link #get(Object)}. A miss in the filter completes
+     * immediately with null; with a blocking loader the load runs in the
+     * calling thread.
+     */
+    public CompletableFuture<V> getAsync(K key) {
+        int admitted = admit(key);
+        if (admitted == MISS) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<V> result = new CompletableFuture<>();
+        CompletionStage<? extends V> stage;
+        try {
+            stage = asyncLoader != null ? asyncLoader.apply(key)
+                    : CompletableFuture.completedFuture(loader.apply(key));
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+        stage.whenComplete((value, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+                return;
+            }
+            if (value == null && admitted == HIT) {
+                falsePositives.increment();
+            }
+            result.complete(value);
+        });
+        return result;
+    }
+
+    /**
+     * Adds key to the filter. Call before a new key is written to the store,
+     * updates of existing keys need no call.
+     *
+     * @return false if the filter is over capacity, see
+     *         {@link CountingCuckooFilter#put(Object)}. The key is still safe,
+     *         but from then on every lookup goes to the loader.
+     */
+    public boolean recordInsert(K key) {
+        return filter.put(key);
+    }
+
+    /**
+     * Takes one copy of key out of the filter. Call once key is deleted from
+     * the store.
+     */
+    public void recordDelete(K key) {
+        filter.delete(key);
+    }
+
+    /**
+     * Fills the filter with the keys the store holds, typically at startup
+     * before lookups start. Keys are inserted in parallel, see
+     * {@link CountingCuckooFilter#putAll(Iterator)}, each key once.
+     */
+    public boolean warm(Iterator<? extends K> keys) {
+        return filter.putAll(keys);
+    }
+
+    public long getLookupCount() {
+        return lookups.sum();
+    }
+
+    /**
+     * Lookups answered by the filter alone.
+     */
+    public long getSavedCallCount() {
+        return savedCalls.sum();
+    }
+
+    /**
+     * Lookups that went to the loader.
+     */
+    public long getBackendCallCount() {
+        return lookups.sum() - savedCalls.sum();
+    }
+
+    /**
+     * Loader calls that found nothing although the filter reported the key.
+     */
+    public long getFalsePositiveCount() {
+        return falsePositives.sum();
+    }
+
+    /**
+     * Lookups the filter missed that still went to the loader because the
+     * filter may have lost keys, see the class doc.
+     */
+    public long getBypassedCount() {
+        return bypassed.sum();
+    }
+
+    /**
+     * Share of lookups for missing keys that still reached the loader, to
+     * compare with the rate the filter was built for. A miss is only answered
+     * while the filter can't have lost keys, so every saved call was a missing
+     * key.
+     */
+    public double getObservedFalsePositiveRate() {
+        long fp = falsePositives.sum();
+        long missing = fp + savedCalls.sum();
+        return missing == 0 ? 0 : fp / (double) missing;
+    }
+
+    private int admit(K key) {
+        lookups.increment();
+        if (filter.mightContain(key)) {
+            return HIT;
+        }
+        if (filter.mayHaveLostKeys()) {
+            bypassed.increment();
+            return BYPASS;
+        }
+        savedCalls.increment();
+        return MISS;
+    }
+}
@@ -0,0 +1,93 @@
+package com.github.mgunlogson.cuckoofilter4j;
+
+/**
+ * Per-thread working state for filter operations, so the hot paths don't
+ * allocate. One instance is shared by every filter used on a thread, which
+ * is safe because filter operations never call back into another filter
+ * while they hold it.
+ * <p>
+ * {@link #index} and {@link #tag} are written by
+ * {@link IndexTagCalc#generate(Object, OpScratch)}. When an insert finds both
+ * buckets full it leaves the entry it still has to place in
+ * {@link #pendingTag}/{@link #pendingCount}, and the breadth-first eviction
+ * path search keeps its nodes in the arrays below.
+ */
+final class OpScratch {
+
+    private static final ThreadLocal<OpScratch> LOCAL = ThreadLocal.withInitial(OpScratch::new);
+
+    long index;
+    long tag;
+
+    /**
+     * Entry an insert couldn't place: a plain tag when the count is 1, a
+     * tagBox otherwise.
+     */
+    long pendingTag;
+    long pendingCount;
+
+    /**
+     * Count of the item in the table right after an insert, read in the same
+     * locked pass.
+     */
+    long itemCount;
+
+    /**
+     * Copies the running insert couldn't keep, dropped by a saturated tagBox
+     * or saved as victims. They aren't added to the filter's count.
+     */
+    long lostCopies;
+
+    /*
+     * BFS nodes. A node is a bucket that needs nodeNeed more free slots. Every
+     * node except the two roots was reached by moving the unit edgeTag (a
+     * plain tag or a tagBox of edgeWidth slots) out of the parent's bucket
+     * into this one. Allocated on the first search so threads that only look
+     * items up don't carry them.
+     */
+    long[] nodeBucket;
+    int[] nodeParent;
+    int[] nodeNeed;
+    int[] nodeDepth;
+    long[] edgeTag;
+    int[] edgeWidth;
+
+    // both candidate buckets of a lookup, see BucketProbe
+    final long[] probeSlots = new long[BucketProbe.PROBE_SLOTS];
+
+    // candidate buckets and tags of a mightContainAll batch, allocated on first use
+    long[] batchSlots;
+    long[] batchTags;
+
+    // units (plain tags or a tagBox) of the bucket being expanded
+    final long[] unitTag = new long[CountingCuckooFilter.BUCKET_SIZE];
+    final int[] unitWidth = new int[CountingCuckooFilter.BUCKET_SIZE];
+
+    static OpScratch get() {
+        return LOCAL.get();
+    }
+
+    void ensureSearchSpace() {
+        if (nodeBucket != null) {
+            return;
+        }
+        nodeBucket = new long[CountingCuckooFilter.MAX_SEARCH_NODES];
+        nodeParent = new int[CountingCuckooFilter.MAX_SEARCH_NODES];
+        nodeNeed = new int[CountingCuckooFilter.MAX_SEARCH_NODES];
+        nodeDepth = new int[CountingCuckooFilter.MAX_SEARCH_NODES];
+        edgeTag = new long[CountingCuckooFilter.MAX_SEARCH_NODES];
+        edgeWidth = new int[CountingCuckooFilter.MAX_SEARCH_NODES];
+    }
+
+    void ensureProbeBatch() {
+        if (batchSlots != null) {
+            return;
+        }
+        batchSlots = new long[CountingCuckooFilter.PROBE_BATCH * BucketProbe.PROBE_SLOTS];
+        batchTags = new long[CountingCuckooFilter.PROBE_BATCH];
+    }
+
+    int pendingWidth() {
+        return pendingCount > 1 ? 3 : 1;
+    }
+}
@@ -18,6 +18,9 @@ package com.github.mgunlogson.cuckoofilter4j;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.StampedLock;
 
 import com.google.common.annotations.VisibleForTesting;
@@ -28,138 +31,359 @@ import com.google.common.annotations.VisibleForTesting;
  * index into several segments which can be locked for reading/writing
  * individually for thread safety. This class holds the locks and contains
  * helper methods for unlocking and unlocking and avoiding deadlocks
+ * <p>
+ * Buckets are spread over segments with a multiplicative (Fibonacci) hash
+ * rather than a modulo, so runs of neighbouring buckets don't pile onto
+ * neighbouring locks. Each lock is padded out to its own cache lines.
+ * <p>
+ * If built with more segments allowed than it starts with, the locker samples
+ * how often an acquisition has to wait and doubles the segment count when the
+ * contended share stays above {@link #CONTENTION_THRESHOLD} for
+ * {@link #HOT_WINDOWS} windows in a row. Growing takes every write lock of the
+ * old array before publishing the new one, and every lock method re-checks
+ * the array after locking, so no two threads can hold different locks for
+ * the same bucket. Callers must not hold a segment when calling a lock method,
+ * which the filter never does.
  * 
  * @author Mark Gunlogson
  *
  */
-final class SegmentedBucketLocker {
-	private final StampedLock[] lockAry;
-	// must be a power of 2 so no modulo bias
-	private final int concurrentSegments;
+final class SegmentedBucketLocker implements BucketLocker {
+	// fraction of contended acquisitions that triggers growth
+	static final double CONTENTION_THRESHOLD = 0.02;
+	// acquisitions per contention sample window
+	static final long MIN_WINDOW = 1 << 16;
+	static final int HOT_WINDOWS = 2;
+	// one in this many contended acquisitions looks at the window
+	private static final int SAMPLE_RATE = 64;
+
+	// must be a power of 2 so the hash can take the top bits
+	private volatile Stripe[] lockAry;
+	private final int maxSegments;
+
+	private final LongAdder acquisitions = new LongAdder();
+	private final LongAdder contentions = new LongAdder();
+	private final AtomicBoolean growing = new AtomicBoolean();
+	private volatile boolean growRequested;
+	// guarded by this
+	private long windowAcquisitions;
+	private long windowContentions;
+	private int hotWindows;
 
 	SegmentedBucketLocker(int expectedConcurrency) {
+		this(expectedConcurrency, expectedConcurrency);
+	}
+
+	/**
+	 * @param maxConcurrency
+	 *            upper bound for adaptive growth, equal to expectedConcurrency
+	 *            to keep the segment count fixed
+	 */
+	SegmentedBucketLocker(int expectedConcurrency, int maxConcurrency) {
 		checkArgument(expectedConcurrency > 0, "expectedConcurrency (%s) must be > 0.", expectedConcurrency);
 		checkArgument((expectedConcurrency & (expectedConcurrency - 1)) == 0,
 				"expectedConcurrency (%s) must be a power of two.", expectedConcurrency);
+		checkArgument(maxConcurrency >= expectedConcurrency, "maxConcurrency (%s) must be >= expectedConcurrency (%s).",
+				maxConcurrency, expectedConcurrency);
+		checkArgument((maxConcurrency & (maxConcurrency - 1)) == 0, "maxConcurrency (%s) must be a power of two.",
+				maxConcurrency);
 		// most operations lock two buckets, so for X threads we should have
 		// roughly 2X segments.
-		this.concurrentSegments = expectedConcurrency * 2;
-		this.lockAry = new StampedLock[concurrentSegments];
-		for (int i = 0; i < lockAry.length; i++) {
-			lockAry[i] = new StampedLock();
+		this.lockAry = newStripes(expectedConcurrency * 2);
+		this.maxSegments = maxConcurrency * 2;
+	}
+
+	private static Stripe[] newStripes(int segments) {
+		Stripe[] stripes = new Stripe[segments];
+		for (int i = 0; i < stripes.length; i++) {
+			stripes[i] = new Stripe();
 		}
+		return stripes;
+	}
 
+	/**
+	 * A StampedLock padded so that locks allocated next to each other don't
+	 * share a cache line. The padding fields are never read.
+	 */
+	@SuppressWarnings("unused")
+	static final class Stripe extends StampedLock {
+		private static final long serialVersionUID = -2371862917213554925L;
+		long p1, p2, p3, p4, p5, p6, p7, p8;
 	}
 
 	/**
 	 *   returns the segment that bucket index belongs to
 	 */
 	@VisibleForTesting
-	private int getBucketLock(long bucketIndex) {
-		return (int) (bucketIndex % concurrentSegments);
+	static int getBucketLock(Stripe[] locks, long bucketIndex) {
+		return (int) ((bucketIndex * 0x9E3779B97F4A7C15L) >>> (64 - Integer.numberOfTrailingZeros(locks.length)));
+	}
+
+	@Override
+	public int getSegmentCount() {
+		return lockAry.length;
+	}
+
+	@Override
+	public long getAcquisitionCount() {
+		return acquisitions.sum();
+	}
+
+	@Override
+	public long getContentionCount() {
+		return contentions.sum();
+	}
+
+	private void writeLock(StampedLock lock) {
+		acquisitions.increment();
+		if (lock.tryWriteLock() == 0L) {
+			contended();
+			lock.writeLock();
+		}
+	}
+
+	private void readLock(StampedLock lock) {
+		acquisitions.increment();
+		if (lock.tryReadLock() == 0L) {
+			contended();
+			lock.readLock();
+		}
+	}
+
+	private void contended() {
+		contentions.increment();
+		if (lockAry.length < maxSegments && ThreadLocalRandom.current().nextInt(SAMPLE_RATE) == 0) {
+			sampleContention();
+		}
+	}
+
+	private synchronized void sampleContention() {
+		long a = acquisitions.sum();
+		long c = contentions.sum();
+		long window = a - windowAcquisitions;
+		if (window < MIN_WINDOW) {
+			return;
+		}
+		if (c - windowContentions > window * CONTENTION_THRESHOLD) {
+			if (++hotWindows >= HOT_WINDOWS) {
+				hotWindows = 0;
+				growRequested = true;
+			}
+		} else {
+			hotWindows = 0;
+		}
+		windowAcquisitions = a;
+		windowContentions = c;
+	}
+
+	/**
+	 * Called on entry to every lock method, when the caller holds no segment.
+	 */
+	private void growIfRequested() {
+		if (!growRequested || !growing.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			growRequested = false;
+			Stripe[] old = lockAry;
+			if (old.length >= maxSegments) {
+				return;
+			}
+			// ascending order, same as everyone else
+			for (Stripe lock : old) {
+				lock.writeLock();
+			}
+			try {
+				lockAry = newStripes(old.length * 2);
+			} finally {
+				for (Stripe lock : old) {
+					lock.tryUnlockWrite();
+				}
+			}
+		} finally {
+			growing.set(false);
+		}
 	}
 /**
  * Locks segments corresponding to bucket indexes in specific order to prevent deadlocks
  */
-	void lockBucketsWrite(long i1, long i2) {
-		int bucket1LockIdx = getBucketLock(i1);
-		int bucket2LockIdx = getBucketLock(i2);
-		// always lock segments in same order to avoid deadlocks
-		if (bucket1LockIdx < bucket2LockIdx) {
-			lockAry[bucket1LockIdx].writeLock();
-			lockAry[bucket2LockIdx].writeLock();
-		} else if (bucket1LockIdx > bucket2LockIdx) {
-			lockAry[bucket2LockIdx].writeLock();
-			lockAry[bucket1LockIdx].writeLock();
-		}
-		// if we get here both indexes are on same segment so only lock once!!!
-		else {
-			lockAry[bucket1LockIdx].writeLock();
+	public void lockBucketsWrite(long i1, long i2) {
+		growIfRequested();
+		for (;;) {
+			Stripe[] locks = lockAry;
+			int bucket1LockIdx = getBucketLock(locks, i1);
+			int bucket2LockIdx = getBucketLock(locks, i2);
+			// always lock segments in same order to avoid deadlocks
+			if (bucket1LockIdx < bucket2LockIdx) {
+				writeLock(locks[bucket1LockIdx]);
+				writeLock(locks[bucket2LockIdx]);
+			} else if (bucket1LockIdx > bucket2LockIdx) {
+				writeLock(locks[bucket2LockIdx]);
+				writeLock(locks[bucket1LockIdx]);
+			}
+			// if we get here both indexes are on same segment so only lock once!!!
+			else {
+				writeLock(locks[bucket1LockIdx]);
+			}
+			if (locks == lockAry) {
+				return;
+			}
+			// grown while we waited, the new array guards these buckets now
+			unlockBucketsWrite(locks, i1, i2);
 		}
 	}
 	/**
 	 * Locks segments corresponding to bucket indexes in specific order to prevent deadlocks
 	 */
-	void lockBucketsRead(long i1, long i2) {
-		int bucket1LockIdx = getBucketLock(i1);
-		int bucket2LockIdx = getBucketLock(i2);
-		// always lock segments in same order to avoid deadlocks
-		if (bucket1LockIdx < bucket2LockIdx) {
-			lockAry[bucket1LockIdx].readLock();
-			lockAry[bucket2LockIdx].readLock();
-		} else if (bucket1LockIdx > bucket2LockIdx) {
-			lockAry[bucket2LockIdx].readLock();
-			lockAry[bucket1LockIdx].readLock();
-		}
-		// if we get here both indexes are on same segment so only lock once!!!
-		else {
-			lockAry[bucket1LockIdx].readLock();
+	public void lockBucketsRead(long i1, long i2) {
+		growIfRequested();
+		for (;;) {
+			Stripe[] locks = lockAry;
+			int bucket1LockIdx = getBucketLock(locks, i1);
+			int bucket2LockIdx = getBucketLock(locks, i2);
+			// always lock segments in same order to avoid deadlocks
+			if (bucket1LockIdx < bucket2LockIdx) {
+				readLock(locks[bucket1LockIdx]);
+				readLock(locks[bucket2LockIdx]);
+			} else if (bucket1LockIdx > bucket2LockIdx) {
+				readLock(locks[bucket2LockIdx]);
+				readLock(locks[bucket1LockIdx]);
+			}
+			// if we get here both indexes are on same segment so only lock once!!!
+			else {
+				readLock(locks[bucket1LockIdx]);
+			}
+			if (locks == lockAry) {
+				return;
+			}
+			unlockBucketsRead(locks, i1, i2);
 		}
 	}
 
 	/**
 	 * Unlocks segments corresponding to bucket indexes in specific order to prevent deadlocks
 	 */
-	void unlockBucketsWrite(long i1, long i2) {
-		int bucket1LockIdx = getBucketLock(i1);
-		int bucket2LockIdx = getBucketLock(i2);
+	public void unlockBucketsWrite(long i1, long i2) {
+		// can't have grown while we hold a segment
+		unlockBucketsWrite(lockAry, i1, i2);
+	}
+
+	private static void unlockBucketsWrite(Stripe[] locks, long i1, long i2) {
+		int bucket1LockIdx = getBucketLock(locks, i1);
+		int bucket2LockIdx = getBucketLock(locks, i2);
 		// always unlock segments in same order to avoid deadlocks
 		if (bucket1LockIdx == bucket2LockIdx) {
-			lockAry[bucket1LockIdx].tryUnlockWrite();
+			locks[bucket1LockIdx].tryUnlockWrite();
 			return;
 		}
-		lockAry[bucket1LockIdx].tryUnlockWrite();
-		lockAry[bucket2LockIdx].tryUnlockWrite();
+		locks[bucket1LockIdx].tryUnlockWrite();
+		locks[bucket2LockIdx].tryUnlockWrite();
 	}
 	/**
 	 * Unlocks segments corresponding to bucket indexes in specific order to prevent deadlocks
 	 */
-	void unlockBucketsRead(long i1, long i2) {
-		int bucket1LockIdx = getBucketLock(i1);
-		int bucket2LockIdx = getBucketLock(i2);
+	public void unlockBucketsRead(long i1, long i2) {
+		unlockBucketsRead(lockAry, i1, i2);
+	}
+
+	private static void unlockBucketsRead(Stripe[] locks, long i1, long i2) {
+		int bucket1LockIdx = getBucketLock(locks, i1);
+		int bucket2LockIdx = getBucketLock(locks, i2);
 		// always unlock segments in same order to avoid deadlocks
 		if (bucket1LockIdx == bucket2LockIdx) {
-			lockAry[bucket1LockIdx].tryUnlockRead();
+			locks[bucket1LockIdx].tryUnlockRead();
 			return;
 		}
-		lockAry[bucket1LockIdx].tryUnlockRead();
-		lockAry[bucket2LockIdx].tryUnlockRead();
+		locks[bucket1LockIdx].tryUnlockRead();
+		locks[bucket2LockIdx].tryUnlockRead();
 	}
 	/**
 	 * Locks all segments in specific order to prevent deadlocks
 	 */
-	void lockAllBucketsRead() {
-		for (StampedLock lock : lockAry) {
-			lock.readLock();
+	public void lockAllBucketsRead() {
+		growIfRequested();
+		for (;;) {
+			Stripe[] locks = lockAry;
+			for (Stripe lock : locks) {
+				readLock(lock);
+			}
+			if (locks == lockAry) {
+				return;
+			}
+			for (Stripe lock : locks) {
+				lock.tryUnlockRead();
+			}
 		}
 	}
 	/**
 	 * Unlocks all segments
 	 */
-	void unlockAllBucketsRead() {
-		for (StampedLock lock : lockAry) {
+	public void unlockAllBucketsRead() {
+		for (Stripe lock : lockAry) {
 			lock.tryUnlockRead();
 		}
 	}
+	/**
+	 * Locks all segments for writing in specific order to prevent deadlocks
+	 */
+	public void lockAllBucketsWrite() {
+		growIfRequested();
+		for (;;) {
+			Stripe[] locks = lockAry;
+			for (Stripe lock : locks) {
+				writeLock(lock);
+			}
+			if (locks == lockAry) {
+				return;
+			}
+			for (Stripe lock : locks) {
+				lock.tryUnlockWrite();
+			}
+		}
+	}
+	/**
+	 * Unlocks all segments
+	 */
+	public void unlockAllBucketsWrite() {
+		for (Stripe lock : lockAry) {
+			lock.tryUnlockWrite();
+		}
+	}
 
-	void lockSingleBucketWrite(long i1) {
-		int bucketLockIdx = getBucketLock(i1);
-		lockAry[bucketLockIdx].writeLock();
+	public void lockSingleBucketWrite(long i1) {
+		growIfRequested();
+		for (;;) {
+			Stripe[] locks = lockAry;
+			Stripe lock = locks[getBucketLock(locks, i1)];
+			writeLock(lock);
+			if (locks == lockAry) {
+				return;
+			}
+			lock.tryUnlockWrite();
+		}
 	}
 
-	void unlockSingleBucketWrite(long i1) {
-		int bucketLockIdx = getBucketLock(i1);
-		lockAry[bucketLockIdx].tryUnlockWrite();
+	public void unlockSingleBucketWrite(long i1) {
+		Stripe[] locks = lockAry;
+		locks[getBucketLock(locks, i1)].tryUnlockWrite();
 	}
 
-	void lockSingleBucketRead(long i1) {
-		int bucketLockIdx = getBucketLock(i1);
-		lockAry[bucketLockIdx].readLock();
+	public void lockSingleBucketRead(long i1) {
+		growIfRequested();
+		for (;;) {
+			Stripe[] locks = lockAry;
+			Stripe lock = locks[getBucketLock(locks, i1)];
+			readLock(lock);
+			if (locks == lockAry) {
+				return;
+			}
+			lock.tryUnlockRead();
+		}
 	}
 
-	void unlockSingleBucketRead(long i1) {
-		int bucketLockIdx = getBucketLock(i1);
-		lockAry[bucketLockIdx].tryUnlockRead();
+	public void unlockSingleBucketRead(long i1) {
+		Stripe[] locks = lockAry;
+		locks[getBucketLock(locks, i1)].tryUnlockRead();
 	}
 
 }
\ No newline at end of file
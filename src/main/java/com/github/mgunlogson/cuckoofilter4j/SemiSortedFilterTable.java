@@ -0,0 +1,524 @@
+package com.github.mgunlogson.cuckoofilter4j;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+
+import com.google.common.math.LongMath;
+
+/**
+ * A {@link FilterTable} storing each bucket semi-sorted, as in section 5.2 of
+ * "Cuckoo Filter: Practically Better Than Bloom" (Fan, Andersen, Kaminsky,
+ * Mitzenmacher). A bucket's four tags are ordered by their low 4 bits, and
+ * the four sorted nibbles, one of 3876 combinations, are stored as a 12 bit
+ * index. The rest of each tag follows as a suffix, so a bucket takes
+ * 4 * bitsPerTag - 4 bits, one bit per slot less than a plain table.
+ * <p>
+ * The order of plain tags in a bucket carries no meaning, but a tagBox
+ * (tag, 0, count - 3) does, so buckets holding one use the 128 index values
+ * with the top five bits set, which no nibble combination takes. Their low 7
+ * bits and the suffix bits then hold the box's tag, the bucket's fourth slot
+ * and the count field, in that order. That leaves 2 * bitsPerTag - 9 bits for
+ * the count field, so below 9 bit tags a tagBox saturates earlier than in a
+ * plain table, see {@link #getMaxTagCount()}.
+ * <p>
+ * Lookups and slot reads decode the bucket in place through the nibble table.
+ * Updates unpack the bucket into a plain one-bucket table, run the plain
+ * table's code on it and pack the result, so both layouts behave the same.
+ * Slot positions are the ones unpacking gives, the tagBox first and plain tags
+ * ahead of empty slots, and slot-level writes go through the same unpack and
+ * pack, which puts the bucket back in that order.
+ */
+final class SemiSortedFilterTable extends FilterTable {
+	private static final long serialVersionUID = -4903358287405187265L;
+
+	private static final int PREFIX_BITS = 4;
+	private static final int INDEX_BITS = 12;
+	// index values 0xF80-0xFFF mark a bucket holding a tagBox
+	private static final int BOX_MARKER = 0x1F;
+	private static final int BOX_MARKER_SHIFT = 7;
+	private static final int BOX_MARKER_BITS = INDEX_BITS - BOX_MARKER_SHIFT;
+
+	/** index to the four sorted nibbles, lowest first, 4 bits each */
+	private static final short[] DECODE = new short[3876];
+	/** the four sorted nibbles packed like DECODE to their index */
+	private static final short[] ENCODE = new short[1 << 16];
+
+	static {
+		int index = 0;
+		for (int a = 0; a < 16; a++) {
+			for (int b = a; b < 16; b++) {
+				for (int c = b; c < 16; c++) {
+					for (int d = c; d < 16; d++) {
+						int nibbles = a | b << 4 | c << 8 | d << 12;
+						DECODE[index] = (short) nibbles;
+						ENCODE[nibbles] = (short) index;
+						index++;
+					}
+				}
+			}
+		}
+		// all zero bits must stay an empty bucket
+		assert DECODE[0] == 0 && index == DECODE.length;
+	}
+
+	private final int suffixBits;
+	private final int countBits;
+	private final long bitsPerBucket;
+	/** unpacked buckets for updates, 0 and 1 */
+	private transient ThreadLocal<FilterTable> work;
+
+	private SemiSortedFilterTable(LongBitSet memBlock, int bitsPerTag, long numBuckets) {
+		super(memBlock, bitsPerTag, numBuckets, maxTagCountFor(bitsPerTag));
+		this.suffixBits = bitsPerTag - PREFIX_BITS;
+		this.countBits = countBitsFor(bitsPerTag);
+		this.bitsPerBucket = bitsPerBucket(bitsPerTag);
+		this.work = newWork();
+	}
+
+	static SemiSortedFilterTable create(int bitsPerTag, long numBuckets) {
+		checkArgument(bitsPerTag < 48, "tagBits (%s) should be less than 48 bits", bitsPerTag);
+		checkArgument(bitsPerTag > PREFIX_BITS, "tagBits (%s) must be > 4", bitsPerTag);
+		checkArgument(numBuckets > 1, "numBuckets (%s) must be > 1", numBuckets);
+		long bitSetSize = LongMath.checkedMultiply(bitsPerBucket(bitsPerTag), numBuckets);
+		return new SemiSortedFilterTable(new LongBitSet(bitSetSize), bitsPerTag, numBuckets);
+	}
+
+	private static long bitsPerBucket(int bitsPerTag) {
+		return CountingCuckooFilter.BUCKET_SIZE * (long) bitsPerTag - PREFIX_BITS;
+	}
+
+	private static int countBitsFor(int bitsPerTag) {
+		// box tag and fourth slot take 2 * bitsPerTag of the 7 + 4 * bitsPerTag - 16
+		return Math.min(bitsPerTag, 2 * bitsPerTag - 9);
+	}
+
+	private static int maxTagCountFor(int bitsPerTag) {
+		return (int) Math.min(Integer.MAX_VALUE, (1L << countBitsFor(bitsPerTag)) + 2);
+	}
+
+	private ThreadLocal<FilterTable> newWork() {
+		int maxTagCount = getMaxTagCount();
+		int tagBits = bitsPerTag;
+		return ThreadLocal.withInitial(() -> new FilterTable(
+				new LongBitSet(2L * CountingCuckooFilter.BUCKET_SIZE * tagBits), tagBits, 2, maxTagCount));
+	}
+
+	private void readObject(ObjectInputStream ois) throws ClassNotFoundException, IOException {
+		ois.defaultReadObject();
+		work = newWork();
+	}
+
+	/*
+	 * Packing and unpacking
+	 */
+
+	private static boolean isBox(int index) {
+		return index >>> BOX_MARKER_SHIFT == BOX_MARKER;
+	}
+
+	/**
+	 * Writes the bucket's slots, in the positions the plain table would have
+	 * them, to bucket to of the work table: the tagBox first, and plain tags
+	 * ahead of empty slots.
+	 */
+	private void unpack(long bucketIndex, FilterTable to, long toBucket) {
+		long base = bucketIndex * bitsPerBucket;
+		int index = (int) memBlock.readBits(base, INDEX_BITS);
+		if (isBox(index)) {
+			to.writeSlot(toBucket, 0, readBoxField(base, 0, bitsPerTag));
+			to.writeSlot(toBucket, 1, 0);
+			to.writeSlot(toBucket, 2, readBoxField(base, 2 * bitsPerTag, countBits));
+			to.writeSlot(toBucket, 3, readBoxField(base, bitsPerTag, bitsPerTag));
+			return;
+		}
+		int nibbles = DECODE[index];
+		int pos = 0;
+		for (int i = 0; i < CountingCuckooFilter.BUCKET_SIZE; i++) {
+			long tag = (nibbles >>> (i * PREFIX_BITS) & 0xF) | readSuffix(base, i) << PREFIX_BITS;
+			if (tag != 0) {
+				to.writeSlot(toBucket, pos++, tag);
+			}
+		}
+		while (pos < CountingCuckooFilter.BUCKET_SIZE) {
+			to.writeSlot(toBucket, pos++, 0);
+		}
+	}
+
+	private void pack(long bucketIndex, FilterTable from, long fromBucket) {
+		long base = bucketIndex * bitsPerBucket;
+		memBlock.clear(base, base + bitsPerBucket);
+		long s0 = from.readSlot(fromBucket, 0);
+		long s1 = from.readSlot(fromBucket, 1);
+		long s2 = from.readSlot(fromBucket, 2);
+		long s3 = from.readSlot(fromBucket, 3);
+		if (s1 == 0 && s2 != 0) {
+			// the plain table's checkTagBox(bucket, 0)
+			memBlock.writeBits(base + BOX_MARKER_SHIFT, BOX_MARKER_BITS, BOX_MARKER);
+			writeBoxField(base, 0, bitsPerTag, s0);
+			writeBoxField(base, bitsPerTag, bitsPerTag, s3);
+			writeBoxField(base, 2 * bitsPerTag, countBits, s2);
+			return;
+		}
+		// sorting network on the nibbles
+		long t;
+		if ((s0 & 0xF) > (s1 & 0xF)) { t = s0; s0 = s1; s1 = t; }
+		if ((s2 & 0xF) > (s3 & 0xF)) { t = s2; s2 = s3; s3 = t; }
+		if ((s0 & 0xF) > (s2 & 0xF)) { t = s0; s0 = s2; s2 = t; }
+		if ((s1 & 0xF) > (s3 & 0xF)) { t = s1; s1 = s3; s3 = t; }
+		if ((s1 & 0xF) > (s2 & 0xF)) { t = s1; s1 = s2; s2 = t; }
+		int nibbles = (int) ((s0 & 0xF) | (s1 & 0xF) << 4 | (s2 & 0xF) << 8 | (s3 & 0xF) << 12);
+		memBlock.writeBits(base, INDEX_BITS, ENCODE[nibbles]);
+		writeSuffix(base, 0, s0 >>> PREFIX_BITS);
+		writeSuffix(base, 1, s1 >>> PREFIX_BITS);
+		writeSuffix(base, 2, s2 >>> PREFIX_BITS);
+		writeSuffix(base, 3, s3 >>> PREFIX_BITS);
+	}
+
+	private long readSuffix(long base, int i) {
+		return memBlock.readBits(base + INDEX_BITS + (long) i * suffixBits, suffixBits);
+	}
+
+	private void writeSuffix(long base, int i, long suffix) {
+		memBlock.writeBits(base + INDEX_BITS + (long) i * suffixBits, suffixBits, suffix);
+	}
+
+	/*
+	 * A tagBox bucket is one bit string laid over the bucket, skipping the
+	 * marker: its first 7 bits are the low bits of the index, the rest follow
+	 * the index.
+	 */
+
+	private long readBoxField(long base, int at, int width) {
+		if (at >= BOX_MARKER_SHIFT) {
+			return memBlock.readBits(base + at + BOX_MARKER_BITS, width);
+		}
+		int low = Math.min(width, BOX_MARKER_SHIFT - at);
+		long value = memBlock.readBits(base + at, low);
+		if (width > low) {
+			value |= memBlock.readBits(base + INDEX_BITS, width - low) << low;
+		}
+		return value;
+	}
+
+	private void writeBoxField(long base, int at, int width, long value) {
+		if (at >= BOX_MARKER_SHIFT) {
+			memBlock.writeBits(base + at + BOX_MARKER_BITS, width, value);
+			return;
+		}
+		int low = Math.min(width, BOX_MARKER_SHIFT - at);
+		memBlock.writeBits(base + at, low, value);
+		if (width > low) {
+			memBlock.writeBits(base + INDEX_BITS, width - low, value >>> low);
+		}
+	}
+
+	private FilterTable load(long bucketIndex) {
+		FilterTable w = work.get();
+		unpack(bucketIndex, w, 0);
+		return w;
+	}
+
+	/*
+	 * Lookups
+	 */
+
+	@Override
+	boolean findTag(long i1, long tag) {
+		long base = i1 * bitsPerBucket;
+		int index = (int) memBlock.readBits(base, INDEX_BITS);
+		if (isBox(index)) {
+			return readBoxField(base, 0, bitsPerTag) == tag || readBoxField(base, bitsPerTag, bitsPerTag) == tag;
+		}
+		int nibbles = DECODE[index];
+		long prefix = tag & 0xF;
+		long suffix = tag >>> PREFIX_BITS;
+		for (int i = 0; i < CountingCuckooFilter.BUCKET_SIZE; i++) {
+			if ((nibbles >>> (i * PREFIX_BITS) & 0xF) == prefix && readSuffix(base, i) == suffix) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	void readBucketTags(long bucketIndex, long[] into, int at) {
+		long base = bucketIndex * bitsPerBucket;
+		int index = (int) memBlock.readBits(base, INDEX_BITS);
+		if (isBox(index)) {
+			into[at] = readBoxField(base, 0, bitsPerTag);
+			into[at + 1] = 0;
+			into[at + 2] = 0;
+			into[at + 3] = readBoxField(base, bitsPerTag, bitsPerTag);
+			return;
+		}
+		int nibbles = DECODE[index];
+		for (int i = 0; i < CountingCuckooFilter.BUCKET_SIZE; i++) {
+			into[at + i] = (nibbles >>> (i * PREFIX_BITS) & 0xF) | readSuffix(base, i) << PREFIX_BITS;
+		}
+	}
+
+	@Override
+	boolean hasTagBox(long bucketIndex, long tag) {
+		long base = bucketIndex * bitsPerBucket;
+		return isBox((int) memBlock.readBits(base, INDEX_BITS)) && readBoxField(base, 0, bitsPerTag) == tag;
+	}
+
+	/**
+	 * Same result as the plain table's countTag, decoded in place.
+	 */
+	@Override
+	long countTag(long i1, long i2, long tag) {
+		long boxed = boxCount(i1, tag);
+		if (boxed > 0) {
+			return boxed;
+		}
+		long count = plainCount(i1, tag);
+		if (i1 != i2) {
+			boxed = boxCount(i2, tag);
+			if (boxed > 0) {
+				return boxed;
+			}
+			count += plainCount(i2, tag);
+		}
+		return count;
+	}
+
+	private long boxCount(long bucketIndex, long tag) {
+		long base = bucketIndex * bitsPerBucket;
+		if (isBox((int) memBlock.readBits(base, INDEX_BITS)) && readBoxField(base, 0, bitsPerTag) == tag) {
+			return readBoxField(base, 2 * bitsPerTag, countBits) + 3;
+		}
+		return 0;
+	}
+
+	private int plainCount(long bucketIndex, long tag) {
+		long base = bucketIndex * bitsPerBucket;
+		int index = (int) memBlock.readBits(base, INDEX_BITS);
+		if (isBox(index)) {
+			return readBoxField(base, bitsPerTag, bitsPerTag) == tag ? 1 : 0;
+		}
+		int nibbles = DECODE[index];
+		long prefix = tag & 0xF;
+		long suffix = tag >>> PREFIX_BITS;
+		int count = 0;
+		for (int i = 0; i < CountingCuckooFilter.BUCKET_SIZE; i++) {
+			if ((nibbles >>> (i * PREFIX_BITS) & 0xF) == prefix && readSuffix(base, i) == suffix) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Override
+	int usedSlots(long bucketIndex) {
+		long base = bucketIndex * bitsPerBucket;
+		int index = (int) memBlock.readBits(base, INDEX_BITS);
+		if (isBox(index)) {
+			return readBoxField(base, bitsPerTag, bitsPerTag) != 0 ? 4 : 3;
+		}
+		int nibbles = DECODE[index];
+		int used = 0;
+		for (int i = 0; i < CountingCuckooFilter.BUCKET_SIZE; i++) {
+			if ((nibbles >>> (i * PREFIX_BITS) & 0xF) != 0 || readSuffix(base, i) != 0) {
+				used++;
+			}
+		}
+		return used;
+	}
+
+	@Override
+	int getTagBoxNum(long bucketIndex) {
+		return isBox((int) memBlock.readBits(bucketIndex * bitsPerBucket, INDEX_BITS)) ? 1 : 0;
+	}
+
+	/**
+	 * Decodes the slots up to posInBucket, in the order unpack writes them.
+	 */
+	@Override
+	long readSlot(long bucketIndex, int posInBucket) {
+		long base = bucketIndex * bitsPerBucket;
+		int index = (int) memBlock.readBits(base, INDEX_BITS);
+		if (isBox(index)) {
+			switch (posInBucket) {
+			case 0:
+				return readBoxField(base, 0, bitsPerTag);
+			case 2:
+				return readBoxField(base, 2 * bitsPerTag, countBits);
+			case 3:
+				return readBoxField(base, bitsPerTag, bitsPerTag);
+			default:
+				return 0;
+			}
+		}
+		int nibbles = DECODE[index];
+		int pos = 0;
+		for (int i = 0; i < CountingCuckooFilter.BUCKET_SIZE; i++) {
+			long tag = (nibbles >>> (i * PREFIX_BITS) & 0xF) | readSuffix(base, i) << PREFIX_BITS;
+			if (tag != 0 && pos++ == posInBucket) {
+				return tag;
+			}
+		}
+		return 0;
+	}
+
+	@Override
+	long readTag(long bucketIndex, int posInBucket) {
+		return readSlot(bucketIndex, posInBucket);
+	}
+
+	@Override
+	boolean checkTag(long bucketIndex, int posInBucket, long tag) {
+		return readSlot(bucketIndex, posInBucket) == tag;
+	}
+
+	/**
+	 * Unpacked buckets keep plain tags ahead of empty slots, so only a tagBox
+	 * bucket has an empty slot 1 followed by a used slot 2.
+	 */
+	@Override
+	boolean checkTagBox(long bucketIndex, int posInBucket) {
+		return posInBucket == 0 && isBox((int) memBlock.readBits(bucketIndex * bitsPerBucket, INDEX_BITS));
+	}
+
+	/*
+	 * Updates
+	 */
+
+	@Override
+	boolean insertTagToBucket(long bucketIndex, long tag) {
+		FilterTable w = load(bucketIndex);
+		if (!w.insertTagToBucket(0, tag)) {
+			return false;
+		}
+		pack(bucketIndex, w, 0);
+		return true;
+	}
+
+	@Override
+	boolean insertTagBoxToBucket(long bucketIndex, long tag, long count) {
+		FilterTable w = load(bucketIndex);
+		if (!w.insertTagBoxToBucket(0, tag, count)) {
+			return false;
+		}
+		pack(bucketIndex, w, 0);
+		return true;
+	}
+
+	@Override
+	void createTagBox(long bucketIndex, long tag, long count) {
+		FilterTable w = load(bucketIndex);
+		w.createTagBox(0, tag, count);
+		pack(bucketIndex, w, 0);
+	}
+
+	@Override
+	boolean updateTagCount(long bucketIndex, long tag, long count) {
+		FilterTable w = load(bucketIndex);
+		if (!w.updateTagCount(0, tag, count)) {
+			return false;
+		}
+		pack(bucketIndex, w, 0);
+		return true;
+	}
+
+	@Override
+	boolean deleteFromBucket(long bucketIndex, long tag) {
+		FilterTable w = load(bucketIndex);
+		if (!w.deleteFromBucket(0, tag)) {
+			return false;
+		}
+		pack(bucketIndex, w, 0);
+		return true;
+	}
+
+	@Override
+	void removeTags(long bucketIndex, long tag) {
+		FilterTable w = load(bucketIndex);
+		w.removeTags(0, tag);
+		pack(bucketIndex, w, 0);
+	}
+
+	@Override
+	boolean removeTag(long bucketIndex, long tag) {
+		FilterTable w = load(bucketIndex);
+		if (!w.removeTag(0, tag)) {
+			return false;
+		}
+		pack(bucketIndex, w, 0);
+		return true;
+	}
+
+	@Override
+	long removeTagBox(long bucketIndex, long tag) {
+		FilterTable w = load(bucketIndex);
+		long count = w.removeTagBox(0, tag);
+		if (count > 0) {
+			pack(bucketIndex, w, 0);
+		}
+		return count;
+	}
+
+	@Override
+	void resizeTagBox(long bucketIndex, long tag, long count) {
+		FilterTable w = load(bucketIndex);
+		w.resizeTagBox(0, tag, count);
+		pack(bucketIndex, w, 0);
+	}
+
+	@Override
+	void writeSlot(long bucketIndex, int posInBucket, long tag) {
+		FilterTable w = load(bucketIndex);
+		w.writeSlot(0, posInBucket, tag);
+		pack(bucketIndex, w, 0);
+	}
+
+	@Override
+	void writeTagNoClear(long bucketIndex, int posInBucket, long tag) {
+		FilterTable w = load(bucketIndex);
+		w.writeTagNoClear(0, posInBucket, tag);
+		pack(bucketIndex, w, 0);
+	}
+
+	@Override
+	void clearTagAndSet(long bucketIndex, int posInBucket, long newTag) {
+		FilterTable w = load(bucketIndex);
+		w.clearTagAndSet(0, posInBucket, newTag);
+		pack(bucketIndex, w, 0);
+	}
+
+	@Override
+	long readTagAndSet(long bucketIndex, int posInBucket, long newTag) {
+		FilterTable w = load(bucketIndex);
+		long tag = w.readTagAndSet(0, posInBucket, newTag);
+		pack(bucketIndex, w, 0);
+		return tag;
+	}
+
+	@Override
+	void clearTag(long bucketIndex, int posInBucket) {
+		FilterTable w = load(bucketIndex);
+		w.clearTag(0, posInBucket);
+		pack(bucketIndex, w, 0);
+	}
+
+	@Override
+	void moveTagForward(long bucketIndex, int posInBucket) {
+		FilterTable w = load(bucketIndex);
+		w.moveTagForward(0, posInBucket);
+		pack(bucketIndex, w, 0);
+	}
+
+	@Override
+	void moveTagBack(long bucketIndex, int posInBucket) {
+		FilterTable w = load(bucketIndex);
+		w.moveTagBack(0, posInBucket);
+		pack(bucketIndex, w, 0);
+	}
+
+	@Override
+	public FilterTable copy() {
+		return new SemiSortedFilterTable(memBlock.clone(), bitsPerTag, numBuckets);
+	}
+}
@@ -22,6 +22,8 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
 import java.util.Objects;
 
@@ -29,10 +31,15 @@ import javax.annotation.Nullable;
 
 import com.github.mgunlogson.cuckoofilter4j.Utils.Algorithm;
 import com.google.common.hash.Funnel;
+import com.google.common.hash.Funnels;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
+import com.google.common.hash.ResettableHasher;
+import com.google.common.hash.ResettableMurmur3_32HashFunction;
+import com.google.common.hash.WyHashFunction;
+import com.google.common.hash.XXH3HashFunction;
 import com.google.common.hash.xxHashFunction;
 
 /**
@@ -55,7 +62,26 @@ final class SerializableSaltedHasher<T> implements Serializable {
 	private final long addlSipSeed;
 	private final Algorithm alg;
 	private transient HashFunction hasher;
+	/**
+	 * Reusable per-thread hasher, only set up for our own algorithms since
+	 * Guava's hashers can't be reset.
+	 */
+	private transient ThreadLocal<ResettableHasher> localHasher;
 	private final Funnel<? super T> funnel;
+	/**
+	 * Which bytes the funnel puts for a CharSequence, so chars can be hashed
+	 * without going through it. Derived from the funnel.
+	 */
+	private transient CharsEncoding charsEncoding;
+
+	enum CharsEncoding {
+		/** the funnel can't take chars directly */
+		NONE,
+		/** {@link Funnels#unencodedCharsFunnel()}, UTF-16LE code units */
+		UTF_16LE,
+		/** {@code Funnels.stringFunnel(UTF_8)} */
+		UTF_8
+	}
 
 	SerializableSaltedHasher(long seedNSalt, long addlSipSeed, Funnel<? super T> funnel, Algorithm alg) {
 		checkNotNull(alg);
@@ -65,10 +91,20 @@ final class SerializableSaltedHasher<T> implements Serializable {
 		this.seedNSalt = seedNSalt;
 		this.addlSipSeed = addlSipSeed;
 		hasher = configureHash(alg, seedNSalt, addlSipSeed);
+		localHasher = configureLocalHasher(hasher);
+		charsEncoding = charsEncodingOf(funnel);
 	}
 
+	/**
+	 * Picks the fastest algorithm giving enough bits, see
+	 * {@code Benchmarks.hashBenchmark()} in the tests. xxHash64 stays the 64
+	 * bit default: XXH3 and wyhash are no faster in Java without a 128 bit
+	 * multiply, and xxHash64 hashes byte and char keys in place. Small tables
+	 * get Murmur3_32, which mixes 32 bits at a time.
+	 */
 	static <T> SerializableSaltedHasher<T> create(int hashBitsNeeded, Funnel<? super T> funnel) {
-		if (hashBitsNeeded > 64) return create(Algorithm.Murmur3_128, funnel);
+		if (hashBitsNeeded > 64) return create(Algorithm.XXH3_128, funnel);
+		if (hashBitsNeeded <= 32) return create(Algorithm.Murmur3_32, funnel);
 		return create(Algorithm.xxHash64, funnel);
 	}
 
@@ -86,16 +122,38 @@ final class SerializableSaltedHasher<T> implements Serializable {
 		ois.defaultReadObject();
 		// not serializable so we rebuild here
 		hasher = configureHash(alg, seedNSalt, addlSipSeed);
+		localHasher = configureLocalHasher(hasher);
+		charsEncoding = charsEncodingOf(funnel);
+	}
+
+	private static CharsEncoding charsEncodingOf(Funnel<?> funnel) {
+		if (funnel.equals(Funnels.unencodedCharsFunnel()))
+			return CharsEncoding.UTF_16LE;
+		if (funnel.equals(Funnels.stringFunnel(StandardCharsets.UTF_8)))
+			return CharsEncoding.UTF_8;
+		return CharsEncoding.NONE;
+	}
+
+	private static ThreadLocal<ResettableHasher> configureLocalHasher(HashFunction hasher) {
+		if (!(hasher.newHasher() instanceof ResettableHasher))
+			return null;
+		return ThreadLocal.withInitial(() -> (ResettableHasher) hasher.newHasher());
 	}
 
 	private static HashFunction configureHash(Algorithm alg, long seedNSalt, long addlSipSeed) {
 		switch (alg) {
 		case xxHash64:
 			return new xxHashFunction(seedNSalt);
+		case XXH3_64:
+			return new XXH3HashFunction(seedNSalt, 64);
+		case XXH3_128:
+			return new XXH3HashFunction(seedNSalt, 128);
+		case wyhash:
+			return new WyHashFunction(seedNSalt);
 		case Murmur3_128:
 			return Hashing.murmur3_128((int) seedNSalt);
 		case Murmur3_32:
-			return Hashing.murmur3_32((int) seedNSalt);
+			return new ResettableMurmur3_32HashFunction((int) seedNSalt);
 		case sha256:
 			return Hashing.sha1();
 		case sipHash24:
@@ -126,6 +184,245 @@ final class SerializableSaltedHasher<T> implements Serializable {
 		return hashInst.hash();
 	}
 
+	/**
+	 * Same as {@code hashObj(object).asLong()}. Doesn't allocate with xxHash64,
+	 * XXH3 and wyhash.
+	 */
+	long hashObjLong(T object) {
+		if (localHasher == null)
+			return hashObj(object).asLong();
+		ResettableHasher hashInst = localHasher.get();
+		hashInst.reset();
+		hashInst.putObject(object, funnel);
+		hashInst.putLong(seedNSalt);
+		return hashInst.hashLong();
+	}
+
+	/**
+	 * Same as {@code hashObjWithSalt(object, moreSalt).asLong()}. Doesn't
+	 * allocate with xxHash64, XXH3 and wyhash.
+	 */
+	long hashObjWithSaltLong(T object, int moreSalt) {
+		if (localHasher == null)
+			return hashObjWithSalt(object, moreSalt).asLong();
+		ResettableHasher hashInst = localHasher.get();
+		hashInst.reset();
+		hashInst.putObject(object, funnel);
+		hashInst.putLong(seedNSalt);
+		hashInst.putInt(moreSalt);
+		return hashInst.hashLong();
+	}
+
+	/**
+	 * Same as {@code hashObj(object).asInt()}, for 32 bit hashes. Doesn't
+	 * allocate with Murmur3_32.
+	 */
+	int hashObjInt(T object) {
+		if (localHasher == null)
+			return hashObj(object).asInt();
+		ResettableHasher hashInst = localHasher.get();
+		hashInst.reset();
+		hashInst.putObject(object, funnel);
+		hashInst.putLong(seedNSalt);
+		return hashInst.hashInt();
+	}
+
+	/**
+	 * Same as {@code hashObjWithSalt(object, moreSalt).asInt()}. Doesn't
+	 * allocate with Murmur3_32.
+	 */
+	int hashObjWithSaltInt(T object, int moreSalt) {
+		if (localHasher == null)
+			return hashObjWithSalt(object, moreSalt).asInt();
+		ResettableHasher hashInst = localHasher.get();
+		hashInst.reset();
+		hashInst.putObject(object, funnel);
+		hashInst.putLong(seedNSalt);
+		hashInst.putInt(moreSalt);
+		return hashInst.hashInt();
+	}
+
+	/**
+	 * Hash of a raw byte key, the same as {@code hashObj} with a funnel that
+	 * puts exactly these bytes (e.g. {@code Funnels.byteArrayFunnel()}).
+	 * Exactly one of array and buffer is set, buffer is read at absolute
+	 * indexes.
+	 */
+	HashCode hashBytes(byte[] array, ByteBuffer buffer, int off, int len) {
+		Hasher hashInst = hasher.newHasher();
+		putBytes(hashInst, array, buffer, off, len);
+		hashInst.putLong(seedNSalt);
+		return hashInst.hash();
+	}
+
+	HashCode hashBytesWithSalt(byte[] array, ByteBuffer buffer, int off, int len, int moreSalt) {
+		Hasher hashInst = hasher.newHasher();
+		putBytes(hashInst, array, buffer, off, len);
+		hashInst.putLong(seedNSalt);
+		hashInst.putInt(moreSalt);
+		return hashInst.hash();
+	}
+
+	/**
+	 * Same as {@code hashBytes(array, buffer, off, len).asLong()}. With
+	 * xxHash64 the key is hashed in place, without copying it or allocating,
+	 * the other reusable hashers copy it into their buffer.
+	 */
+	long hashBytesLong(byte[] array, ByteBuffer buffer, int off, int len) {
+		if (localHasher == null)
+			return hashBytes(array, buffer, off, len).asLong();
+		ResettableHasher hashInst = localHasher.get();
+		if (hashInst instanceof xxHashFunction.xxHasher) {
+			xxHashFunction.xxHasher xx = (xxHashFunction.xxHasher) hashInst;
+			return array != null ? xx.hashBytes(array, off, len, seedNSalt) : xx.hashBytes(buffer, off, len, seedNSalt);
+		}
+		hashInst.reset();
+		putBytes(hashInst, array, buffer, off, len);
+		hashInst.putLong(seedNSalt);
+		return hashInst.hashLong();
+	}
+
+	/**
+	 * Same as {@code hashBytesWithSalt(array, buffer, off, len, moreSalt).asLong()}.
+	 * Only needed when the first hash gives a zero tag, so it doesn't bother
+	 * avoiding the copy.
+	 */
+	long hashBytesWithSaltLong(byte[] array, ByteBuffer buffer, int off, int len, int moreSalt) {
+		if (localHasher == null)
+			return hashBytesWithSalt(array, buffer, off, len, moreSalt).asLong();
+		ResettableHasher hashInst = localHasher.get();
+		hashInst.reset();
+		putBytes(hashInst, array, buffer, off, len);
+		hashInst.putLong(seedNSalt);
+		hashInst.putInt(moreSalt);
+		return hashInst.hashLong();
+	}
+
+	/**
+	 * Same as {@code hashBytes(array, buffer, off, len).asInt()}, for 32 bit
+	 * hashes. The reusable hasher takes whole blocks straight from the array.
+	 */
+	int hashBytesInt(byte[] array, ByteBuffer buffer, int off, int len) {
+		if (localHasher == null)
+			return hashBytes(array, buffer, off, len).asInt();
+		ResettableHasher hashInst = localHasher.get();
+		hashInst.reset();
+		putBytes(hashInst, array, buffer, off, len);
+		hashInst.putLong(seedNSalt);
+		return hashInst.hashInt();
+	}
+
+	private static void putBytes(Hasher hashInst, byte[] array, ByteBuffer buffer, int off, int len) {
+		if (array != null) {
+			hashInst.putBytes(array, off, len);
+			return;
+		}
+		for (int i = off; i < off + len; i++) {
+			hashInst.putByte(buffer.get(i));
+		}
+	}
+
+	CharsEncoding charsEncoding() {
+		return charsEncoding;
+	}
+
+	/**
+	 * Hash of a CharSequence, the same as {@code hashObj} gives it through
+	 * the funnel. Only valid when {@link #charsEncoding()} isn't NONE.
+	 */
+	HashCode hashChars(CharSequence chars) {
+		Hasher hashInst = hasher.newHasher();
+		putChars(hashInst, chars);
+		hashInst.putLong(seedNSalt);
+		return hashInst.hash();
+	}
+
+	HashCode hashCharsWithSalt(CharSequence chars, int moreSalt) {
+		Hasher hashInst = hasher.newHasher();
+		putChars(hashInst, chars);
+		hashInst.putLong(seedNSalt);
+		hashInst.putInt(moreSalt);
+		return hashInst.hash();
+	}
+
+	/**
+	 * Same as {@code hashChars(chars).asLong()}. With xxHash64 the chars are
+	 * hashed in place, several per step, except for non-ASCII chars under
+	 * UTF-8, which are encoded first.
+	 */
+	long hashCharsLong(CharSequence chars) {
+		if (localHasher == null)
+			return hashChars(chars).asLong();
+		ResettableHasher hashInst = localHasher.get();
+		if (hashInst instanceof xxHashFunction.xxHasher) {
+			xxHashFunction.xxHasher xx = (xxHashFunction.xxHasher) hashInst;
+			if (charsEncoding == CharsEncoding.UTF_16LE)
+				return xx.hashUnencodedChars(chars, seedNSalt);
+			if (isAscii(chars))
+				return xx.hashAsciiChars(chars, seedNSalt);
+		}
+		hashInst.reset();
+		putChars(hashInst, chars);
+		hashInst.putLong(seedNSalt);
+		return hashInst.hashLong();
+	}
+
+	long hashCharsWithSaltLong(CharSequence chars, int moreSalt) {
+		if (localHasher == null)
+			return hashCharsWithSalt(chars, moreSalt).asLong();
+		ResettableHasher hashInst = localHasher.get();
+		hashInst.reset();
+		putChars(hashInst, chars);
+		hashInst.putLong(seedNSalt);
+		hashInst.putInt(moreSalt);
+		return hashInst.hashLong();
+	}
+
+	/**
+	 * Same as {@code hashChars(chars).asInt()}, for 32 bit hashes.
+	 */
+	int hashCharsInt(CharSequence chars) {
+		if (localHasher == null)
+			return hashChars(chars).asInt();
+		ResettableHasher hashInst = localHasher.get();
+		hashInst.reset();
+		putChars(hashInst, chars);
+		hashInst.putLong(seedNSalt);
+		return hashInst.hashInt();
+	}
+
+	// what the matching funnel does
+	private void putChars(Hasher hashInst, CharSequence chars) {
+		if (charsEncoding == CharsEncoding.UTF_16LE)
+			hashInst.putUnencodedChars(chars);
+		else
+			hashInst.putString(chars, StandardCharsets.UTF_8);
+	}
+
+	private static boolean isAscii(CharSequence chars) {
+		for (int i = 0; i < chars.length(); i++) {
+			if (chars.charAt(i) >= 0x80)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Seeds a hash computed outside the filter, so precomputed hashes are
+	 * salted per filter like hashed items. moreSalt plays the part it has in
+	 * {@link #hashObjWithSalt(Object, int)}. A bijection for a given salt, so
+	 * distinct hashes stay distinct.
+	 */
+	long mixHash(long hash, int moreSalt) {
+		// Murmur3's fmix64
+		long h = hash ^ seedNSalt ^ (moreSalt * 0x9E3779B97F4A7C15L);
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		return h ^ (h >>> 33);
+	}
+
 	int codeBitSize() {
 		return hasher.bits();
 	}
@@ -0,0 +1,398 @@
+package com.github.mgunlogson.cuckoofilter4j;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import com.google.common.hash.Funnel;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * A {@link CountingCuckooFilter} split into independent shards for write heavy
+ * ingestion on many cores. Items are routed to a shard by the high bits of a
+ * hash that is independent of the shards' own hashes.
+ * <p>
+ * Each shard is written by a single worker thread that drains a bounded MPSC
+ * ring buffer in batches, so writers never contend on bucket locks; they only
+ * claim a slot in the ring. {@link #put(Object)} and {@link #delete(Object)}
+ * return once the operation is queued, and block (spinning politely) while the
+ * shard's queue is full. The {@code Async} variants complete their future on
+ * the worker thread once the operation is applied, so dependent stages run
+ * there unless you use the {@code Async} stage methods.
+ * <p>
+ * {@link #mightContain(Object)} and {@link #count(Object)} read the shard
+ * directly and may not see operations still queued. Use
+ * {@link #countAsync(Object)} or {@link #flush()} when you need to read your
+ * own writes.
+ * <p>
+ * Call {@link #close()} to stop the workers. It applies everything queued
+ * before returning, including operations whose call was already under way
+ * when close started.
+ */
+public final class ShardedCountingCuckooFilter<T> implements AutoCloseable {
+    static final int DEFAULT_QUEUE_CAPACITY = 1 << 14;
+    // operations a worker applies before looking at its queue state again
+    static final int DRAIN_BATCH = 256;
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Shard<T>[] shards;
+    private final SerializableSaltedHasher<T> router;
+    private final int shardShift;
+    private volatile boolean closed;
+
+    /**
+     * Builds a sharded filter. To create one, construct this then call
+     * {@code #build()}.
+     *
+     * @param <T>
+     *            the type of item {@code Funnel will use}
+     */
+    public static class Builder<T> {
+        // required arguments
+        private final Funnel<? super T> funnel;
+        private final long maxKeys;
+        // optional arguments
+        private int shards = defaultShards();
+        private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+        private Utils.Algorithm hashAlgorithm;
+        private Double fpp;
+
+        public Builder(Funnel<? super T> funnel, long maxKeys) {
+            checkArgument(maxKeys > 1, "maxKeys (%s) must be > 1, increase maxKeys", maxKeys);
+            checkNotNull(funnel);
+            this.funnel = funnel;
+            this.maxKeys = maxKeys;
+        }
+
+        public Builder(Funnel<? super T> funnel, int maxKeys) {
+            this(funnel, (long) maxKeys);
+        }
+
+        /**
+         * Number of shards, and so of worker threads. Defaults to the largest
+         * power of two not above the number of processors.
+         */
+        public ShardedCountingCuckooFilter.Builder<T> withShards(int shards) {
+            checkArgument(shards > 0, "shards (%s) must be > 0.", shards);
+            checkArgument((shards & (shards - 1)) == 0, "shards (%s) must be a power of two.", shards);
+            this.shards = shards;
+            return this;
+        }
+
+        /**
+         * Operations each shard can have queued before writers block.
+         */
+        public ShardedCountingCuckooFilter.Builder<T> withQueueCapacity(int queueCapacity) {
+            checkArgument(queueCapacity > 1, "queueCapacity (%s) must be > 1.", queueCapacity);
+            checkArgument((queueCapacity & (queueCapacity - 1)) == 0, "queueCapacity (%s) must be a power of two.",
+                    queueCapacity);
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        /**
+         * @see CountingCuckooFilter.Builder#withFalsePositiveRate(double)
+         */
+        public ShardedCountingCuckooFilter.Builder<T> withFalsePositiveRate(double fpp) {
+            checkArgument(fpp > 0, "fpp (%s) must be > 0, increase fpp", fpp);
+            checkArgument(fpp < .25, "fpp (%s) must be < 0.25, decrease fpp", fpp);
+            this.fpp = fpp;
+            return this;
+        }
+
+        /**
+         * @see CountingCuckooFilter.Builder#withHashAlgorithm(Utils.Algorithm)
+         */
+        public ShardedCountingCuckooFilter.Builder<T> withHashAlgorithm(Utils.Algorithm hashAlgorithm) {
+            checkNotNull(hashAlgorithm,
+                    "hashAlgorithm cannot be null. To use default, build without calling this method.");
+            this.hashAlgorithm = hashAlgorithm;
+            return this;
+        }
+
+        public ShardedCountingCuckooFilter<T> build() {
+            // hash routing spreads keys evenly enough that an even split is fine
+            long keysPerShard = Math.max(2, (maxKeys + shards - 1) / shards);
+            @SuppressWarnings("unchecked")
+            CountingCuckooFilter<T>[] filters = (CountingCuckooFilter<T>[]) new CountingCuckooFilter<?>[shards];
+            for (int i = 0; i < shards; i++) {
+                CountingCuckooFilter.Builder<T> builder = new CountingCuckooFilter.Builder<T>(funnel, keysPerShard)
+                        // one writer plus the direct readers
+                        .withExpectedConcurrency(1);
+                if (fpp != null) {
+                    builder.withFalsePositiveRate(fpp);
+                }
+                if (hashAlgorithm != null) {
+                    builder.withHashAlgorithm(hashAlgorithm);
+                }
+                filters[i] = builder.build();
+            }
+            return new ShardedCountingCuckooFilter<>(filters, queueCapacity,
+                    SerializableSaltedHasher.<T>create(Utils.Algorithm.xxHash64, funnel));
+        }
+
+        private static int defaultShards() {
+            return Integer.highestOneBit(Runtime.getRuntime().availableProcessors());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private ShardedCountingCuckooFilter(CountingCuckooFilter<T>[] filters, int queueCapacity,
+            SerializableSaltedHasher<T> router) {
+        this.router = router;
+        this.shardShift = 64 - Integer.numberOfTrailingZeros(filters.length);
+        this.shards = (Shard<T>[]) new Shard<?>[filters.length];
+        for (int i = 0; i < filters.length; i++) {
+            shards[i] = new Shard<>(filters[i], new MpscOpQueue(queueCapacity), this);
+            Thread worker = new Thread(shards[i], "sharded-cuckoo-filter-" + i);
+            worker.setDaemon(true);
+            shards[i].worker = worker;
+        }
+        for (Shard<T> shard : shards) {
+            shard.worker.start();
+        }
+    }
+
+    /**
+     * Queues an insert of item and returns without waiting for it.
+     */
+    public void put(T item) {
+        submit(shardFor(item), MpscOpQueue.PUT, item, null);
+    }
+
+    /**
+     * Queues an insert of item. The future completes with the result of
+     * {@link CountingCuckooFilter#put(Object)} once it is applied.
+     */
+    public CompletableFuture<Boolean> putAsync(T item) {
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        submit(shardFor(item), MpscOpQueue.PUT, item, future);
+        return future;
+    }
+
+    /**
+     * Queues a delete of item and returns without waiting for it.
+     */
+    public void delete(T item) {
+        submit(shardFor(item), MpscOpQueue.DELETE, item, null);
+    }
+
+    public CompletableFuture<Boolean> deleteAsync(T item) {
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        submit(shardFor(item), MpscOpQueue.DELETE, item, future);
+        return future;
+    }
+
+    /**
+     * Reads the shard directly, operations still queued may not be visible.
+     */
+    public boolean mightContain(T item) {
+        return shardFor(item).filter.mightContain(item);
+    }
+
+    /**
+     * Reads the shard directly, operations still queued may not be visible.
+     *
+     * @see CountingCuckooFilter#count(Object)
+     */
+    public long count(T item) {
+        return shardFor(item).filter.count(item);
+    }
+
+    /**
+     * Counts item after every operation queued on its shard before this call
+     * has been applied.
+     */
+    public CompletableFuture<Long> countAsync(T item) {
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        submit(shardFor(item), MpscOpQueue.COUNT, item, future);
+        return future;
+    }
+
+    /**
+     * Completes once every operation queued on any shard before this call has
+     * been applied.
+     */
+    public CompletableFuture<Void> flush() {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            submit(shards[i], MpscOpQueue.FLUSH, null, future);
+            futures[i] = future;
+        }
+        return CompletableFuture.allOf(futures);
+    }
+
+    /**
+     * Applies everything already queued and stops the worker threads. Further
+     * operations throw {@link IllegalStateException}. Waits for the workers
+     * even if interrupted, and then restores the interrupt status.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Shard<T> shard : shards) {
+            LockSupport.unpark(shard.worker);
+        }
+        for (Shard<T> shard : shards) {
+            Uninterruptibles.joinUninterruptibly(shard.worker);
+        }
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (Shard<T> shard : shards) {
+            count += shard.filter.getCount();
+        }
+        return count;
+    }
+
+    /**
+     * Items counted by each shard, to check how evenly keys are spread.
+     */
+    public long[] getShardCounts() {
+        long[] counts = new long[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            counts[i] = shards[i].filter.getCount();
+        }
+        return counts;
+    }
+
+    /**
+     * Operations waiting in each shard's queue. A shard that stays deep while
+     * the others are empty is the one holding ingestion back.
+     */
+    public int[] getShardQueueDepths() {
+        int[] depths = new int[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            depths[i] = shards[i].queue.size();
+        }
+        return depths;
+    }
+
+    /**
+     * Count of the fullest shard over the mean shard count, 1.0 when perfectly
+     * balanced and 0 while the filter is empty.
+     */
+    public double getShardImbalance() {
+        long max = 0;
+        long total = 0;
+        for (Shard<T> shard : shards) {
+            long c = shard.filter.getCount();
+            max = Math.max(max, c);
+            total += c;
+        }
+        return total == 0 ? 0 : max / (total / (double) shards.length);
+    }
+
+    private Shard<T> shardFor(T item) {
+        if (shardShift == 64) {
+            return shards[0];
+        }
+        return shards[(int) (router.hashObjLong(item) >>> shardShift)];
+    }
+
+    /**
+     * Registers in the shard's submitters before checking closed. A worker
+     * that sees closed then either sees this caller still registered, and
+     * keeps draining, or sees the operation in its queue.
+     */
+    private void submit(Shard<T> shard, byte op, T item, CompletableFuture<?> future) {
+        shard.submitters.incrementAndGet();
+        try {
+            checkState(!closed, "filter is closed");
+            // the worker keeps draining while we're registered, even after close()
+            while (!shard.queue.offer(op, item, future)) {
+                LockSupport.unpark(shard.worker);
+                Thread.yield();
+            }
+        } finally {
+            shard.submitters.decrementAndGet();
+        }
+        if (shard.sleeping) {
+            LockSupport.unpark(shard.worker);
+        }
+    }
+
+    private static final class Shard<T> implements Runnable, MpscOpQueue.Handler {
+        final CountingCuckooFilter<T> filter;
+        final MpscOpQueue queue;
+        // callers inside submit, the worker doesn't stop on close until it's 0
+        final AtomicInteger submitters = new AtomicInteger();
+        private final ShardedCountingCuckooFilter<T> owner;
+        Thread worker;
+        volatile boolean sleeping;
+
+        Shard(CountingCuckooFilter<T> filter, MpscOpQueue queue, ShardedCountingCuckooFilter<T> owner) {
+            this.filter = filter;
+            this.queue = queue;
+            this.owner = owner;
+        }
+
+        @Override
+        public void run() {
+            for (;;) {
+                if (queue.drain(this, DRAIN_BATCH) > 0) {
+                    continue;
+                }
+                if (owner.closed) {
+                    // a writer may have queued just before close(), or still be about to
+                    if (submitters.get() == 0 && queue.isEmpty()) {
+                        return;
+                    }
+                    Thread.yield();
+                    continue;
+                }
+                sleeping = true;
+                // re-check after publishing sleeping, a writer that missed the flag queued before this read
+                if (queue.isEmpty() && !owner.closed) {
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                }
+                sleeping = false;
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void apply(byte op, Object item, CompletableFuture<?> future) {
+            try {
+                switch (op) {
+                case MpscOpQueue.PUT:
+                    boolean placed = filter.put((T) item);
+                    if (future != null) {
+                        ((CompletableFuture<Boolean>) future).complete(placed);
+                    }
+                    break;
+                case MpscOpQueue.DELETE:
+                    boolean deleted = filter.delete((T) item);
+                    if (future != null) {
+                        ((CompletableFuture<Boolean>) future).complete(deleted);
+                    }
+                    break;
+                case MpscOpQueue.COUNT:
+                    ((CompletableFuture<Long>) future).complete(filter.count((T) item));
+                    break;
+                case MpscOpQueue.FLUSH:
+                    ((CompletableFuture<Void>) future).complete(null);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown operation " + op);
+                }
+            } catch (RuntimeException e) {
+                // keep the worker alive, the caller finds out through the future if it asked for one
+                if (future != null) {
+                    future.completeExceptionally(e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.github.mgunlogson.cuckoofilter4j;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.hash.Funnel;
+
+/**
+ * Counts items over a sliding window, e.g. how often a key was seen in the last
+ * ten minutes, with a ring of {@link CountingCuckooFilter} generations.
+ * <p>
+ * Puts go to the current generation. {@link #rotate()} makes the oldest
+ * generation the current one after emptying it, so everything put into it
+ * drops out of the window. The table is cleared word by word in place, not
+ * reallocated. With {@link Builder#withWindow(long, TimeUnit)} the filter
+ * rotates by itself every window / generations, checked on each call, so a
+ * count covers between window * (generations - 1) / generations and window.
+ * <p>
+ * The generations share one hasher seed, so reads hash the item once and look
+ * the tag up in every generation. The false positive rate of a read is up to
+ * generations times that of a single generation.
+ * <p>
+ * A rotation must not race with a put that picked the generation being
+ * emptied, which needs a put to stall for generations - 1 rotations. Reads
+ * running during a rotation may or may not count the expiring generation.
+ */
+public final class SlidingWindowCountingCuckooFilter<T> {
+
+    private final CountingCuckooFilter<T>[] generations;
+    private final IndexTagCalc<T> hasher;
+    // 0 when the filter only rotates on rotate() calls
+    private final long rotationNanos;
+    private volatile int current;
+    private volatile long nextRotationNanos;
+
+    /**
+     * Builds a windowed filter. To create one, construct this then call
+     * {@code #build()}.
+     *
+     * @param <T>
+     *            the type of item {@code Funnel will use}
+     */
+    public static class Builder<T> {
+        // required arguments
+        private final Funnel<? super T> funnel;
+        private final long maxKeysPerGeneration;
+        // optional arguments
+        private int generations = 4;
+        private long windowNanos;
+        private Utils.Algorithm hashAlgorithm;
+        private Double fpp;
+        private Integer expectedConcurrency;
+
+        /**
+         * @param maxKeysPerGeneration
+         *            puts a generation must hold, i.e. the puts expected
+         *            between two rotations
+         */
+        public Builder(Funnel<? super T> funnel, long maxKeysPerGeneration) {
+            checkArgument(maxKeysPerGeneration > 1, "maxKeysPerGeneration (%s) must be > 1, increase maxKeys",
+                    maxKeysPerGeneration);
+            checkNotNull(funnel);
+            this.funnel = funnel;
+            this.maxKeysPerGeneration = maxKeysPerGeneration;
+        }
+
+        public Builder(Funnel<? super T> funnel, int maxKeysPerGeneration) {
+            this(funnel, (long) maxKeysPerGeneration);
+        }
+
+        /**
+         * Number of generations in the ring, defaults to 4. More generations
+         * make the window slide more smoothly and cost memory and read time.
+         */
+        public SlidingWindowCountingCuckooFilter.Builder<T> withGenerations(int generations) {
+            checkArgument(generations > 1, "generations (%s) must be > 1.", generations);
+            this.generations = generations;
+            return this;
+        }
+
+        /**
+         * Rotates automatically so that counts cover about the last window.
+         * Without it the filter only rotates when {@link #rotate()} is called.
+         */
+        public SlidingWindowCountingCuckooFilter.Builder<T> withWindow(long window, TimeUnit unit) {
+            checkNotNull(unit);
+            checkArgument(window > 0, "window (%s) must be > 0", window);
+            this.windowNanos = unit.toNanos(window);
+            return this;
+        }
+
+        /**
+         * @see CountingCuckooFilter.Builder#withFalsePositiveRate(double)
+         */
+        public SlidingWindowCountingCuckooFilter.Builder<T> withFalsePositiveRate(double fpp) {
+            checkArgument(fpp > 0, "fpp (%s) must be > 0, increase fpp", fpp);
+            checkArgument(fpp < .25, "fpp (%s) must be < 0.25, decrease fpp", fpp);
+            this.fpp = fpp;
+            return this;
+        }
+
+        /**
+         * @see CountingCuckooFilter.Builder#withHashAlgorithm(Utils.Algorithm)
+         */
+        public SlidingWindowCountingCuckooFilter.Builder<T> withHashAlgorithm(Utils.Algorithm hashAlgorithm) {
+            checkNotNull(hashAlgorithm,
+                    "hashAlgorithm cannot be null. To use default, build without calling this method.");
+            this.hashAlgorithm = hashAlgorithm;
+            return this;
+        }
+
+        /**
+         * @see CountingCuckooFilter.Builder#withExpectedConcurrency(int)
+         */
+        public SlidingWindowCountingCuckooFilter.Builder<T> withExpectedConcurrency(int expectedConcurrency) {
+            checkArgument(expectedConcurrency > 0, "expectedConcurrency (%s) must be > 0.", expectedConcurrency);
+            checkArgument((expectedConcurrency & (expectedConcurrency - 1)) == 0,
+                    "expectedConcurrency (%s) must be a power of two.", expectedConcurrency);
+            this.expectedConcurrency = expectedConcurrency;
+            return this;
+        }
+
+        public SlidingWindowCountingCuckooFilter<T> build() {
+            CountingCuckooFilter.Builder<T> builder = new CountingCuckooFilter.Builder<T>(funnel,
+                    maxKeysPerGeneration);
+            if (fpp != null) {
+                builder.withFalsePositiveRate(fpp);
+            }
+            if (hashAlgorithm != null) {
+                builder.withHashAlgorithm(hashAlgorithm);
+            }
+            if (expectedConcurrency != null) {
+                builder.withExpectedConcurrency(expectedConcurrency);
+            }
+            @SuppressWarnings("unchecked")
+            CountingCuckooFilter<T>[] filters = (CountingCuckooFilter<T>[]) new CountingCuckooFilter<?>[generations];
+            filters[0] = builder.build();
+            for (int i = 1; i < generations; i++) {
+                filters[i] = builder.build(filters[0].hasher);
+            }
+            return new SlidingWindowCountingCuckooFilter<>(filters, windowNanos / generations);
+        }
+    }
+
+    private SlidingWindowCountingCuckooFilter(CountingCuckooFilter<T>[] generations, long rotationNanos) {
+        this.generations = generations;
+        this.hasher = generations[0].hasher;
+        this.rotationNanos = rotationNanos;
+        this.nextRotationNanos = System.nanoTime() + rotationNanos;
+    }
+
+    /**
+     * Counts item in the current generation.
+     *
+     * @return false if the current generation is over capacity, see
+     *         {@link CountingCuckooFilter#put(Object)}
+     */
+    public boolean put(T item) {
+        maybeRotate();
+        return generations[current].put(item);
+    }
+
+    /**
+     * Takes one occurrence of item back, from the newest generation that has
+     * it.
+     */
+    public boolean delete(T item) {
+        maybeRotate();
+        OpScratch scratch = OpScratch.get();
+        hasher.generate(item, scratch);
+        long index = scratch.index;
+        long tag = scratch.tag;
+        int newest = current;
+        for (int i = 0; i < generations.length; i++) {
+            if (generations[(newest - i + generations.length) % generations.length].deleteTag(index, tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean mightContain(T item) {
+        maybeRotate();
+        OpScratch scratch = OpScratch.get();
+        hasher.generate(item, scratch);
+        long index = scratch.index;
+        long tag = scratch.tag;
+        for (CountingCuckooFilter<T> generation : generations) {
+            if (generation.containsTag(index, tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Occurrences of item in the window, the sum of its counts in every
+     * generation. May be too high like {@link CountingCuckooFilter#count(Object)}.
+     */
+    public long count(T item) {
+        maybeRotate();
+        OpScratch scratch = OpScratch.get();
+        hasher.generate(item, scratch);
+        long index = scratch.index;
+        long tag = scratch.tag;
+        long sum = 0;
+        for (CountingCuckooFilter<T> generation : generations) {
+            sum += generation.countTag(index, tag);
+        }
+        return sum;
+    }
+
+    /**
+     * Drops the oldest generation from the window and starts putting into it
+     * again.
+     */
+    public synchronized void rotate() {
+        int next = (current + 1) % generations.length;
+        generations[next].clear();
+        current = next;
+    }
+
+    public int getGenerationCount() {
+        return generations.length;
+    }
+
+    /**
+     * Puts counted in the window.
+     */
+    public long getCount() {
+        long sum = 0;
+        for (CountingCuckooFilter<T> generation : generations) {
+            sum += generation.getCount();
+        }
+        return sum;
+    }
+
+    private void maybeRotate() {
+        if (rotationNanos == 0 || System.nanoTime() - nextRotationNanos < 0) {
+            return;
+        }
+        synchronized (this) {
+            long now = System.nanoTime();
+            // after a long pause rotate at most once per generation, that empties the window
+            for (int i = 0; i < generations.length && now - nextRotationNanos >= 0; i++) {
+                rotate();
+                nextRotationNanos += rotationNanos;
+            }
+            if (now - nextRotationNanos >= 0) {
+                nextRotationNanos = now + rotationNanos;
+            }
+        }
+    }
+}
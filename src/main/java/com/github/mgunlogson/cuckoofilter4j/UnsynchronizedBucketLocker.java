@@ -0,0 +1,124 @@
+package com.github.mgunlogson.cuckoofilter4j;
+
+/**
+ * Locker for filters confined to a single thread. Every method is empty, so
+ * once the JIT inlines the calls the filter pays nothing for locking.
+ * <p>
+ * Confinement is the caller's job: the filter must only be used from one
+ * thread at a time, and handing it to another thread needs a happens-before
+ * edge such as a volatile write or a queue. {@link #ownerChecking()} returns
+ * a debug variant that enforces the contract instead.
+ */
+class UnsynchronizedBucketLocker implements BucketLocker {
+
+	static final UnsynchronizedBucketLocker INSTANCE = new UnsynchronizedBucketLocker();
+
+	private UnsynchronizedBucketLocker() {
+	}
+
+	/**
+	 * A locker that remembers the first thread to use the filter and throws
+	 * {@link IllegalStateException} when any other thread calls it.
+	 */
+	static BucketLocker ownerChecking() {
+		return new OwnerChecking();
+	}
+
+	@Override
+	public void lockBucketsWrite(long i1, long i2) {
+	}
+
+	@Override
+	public void lockBucketsRead(long i1, long i2) {
+	}
+
+	@Override
+	public void unlockBucketsWrite(long i1, long i2) {
+	}
+
+	@Override
+	public void unlockBucketsRead(long i1, long i2) {
+	}
+
+	@Override
+	public void lockAllBucketsRead() {
+	}
+
+	@Override
+	public void unlockAllBucketsRead() {
+	}
+
+	@Override
+	public void lockAllBucketsWrite() {
+	}
+
+	@Override
+	public void unlockAllBucketsWrite() {
+	}
+
+	@Override
+	public void lockSingleBucketWrite(long i1) {
+	}
+
+	@Override
+	public void unlockSingleBucketWrite(long i1) {
+	}
+
+	@Override
+	public void lockSingleBucketRead(long i1) {
+	}
+
+	@Override
+	public void unlockSingleBucketRead(long i1) {
+	}
+
+	/**
+	 * Only the lock methods check, every unlock is paired with a lock on the
+	 * same thread.
+	 */
+	private static final class OwnerChecking extends UnsynchronizedBucketLocker {
+		private volatile Thread owner;
+
+		private void checkOwner() {
+			Thread current = Thread.currentThread();
+			Thread o = owner;
+			if (o == null) {
+				owner = o = current;
+			}
+			if (o != current) {
+				throw new IllegalStateException("Thread-confined filter owned by " + o.getName()
+						+ " was used from " + current.getName());
+			}
+		}
+
+		@Override
+		public void lockBucketsWrite(long i1, long i2) {
+			checkOwner();
+		}
+
+		@Override
+		public void lockBucketsRead(long i1, long i2) {
+			checkOwner();
+		}
+
+		@Override
+		public void lockAllBucketsRead() {
+			checkOwner();
+		}
+
+		@Override
+		public void lockAllBucketsWrite() {
+			checkOwner();
+		}
+
+		@Override
+		public void lockSingleBucketWrite(long i1) {
+			checkOwner();
+		}
+
+		@Override
+		public void lockSingleBucketRead(long i1) {
+			checkOwner();
+		}
+	}
+}
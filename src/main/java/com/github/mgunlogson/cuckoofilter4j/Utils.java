@@ -40,7 +40,8 @@ public final class Utils {
 	 */
 	public enum Algorithm {
 		/**
-		 * Murmer3 - 32 bit version, This is the default.
+		 * Murmer3 - 32 bit version, the default for tables needing 32 bits of
+		 * hash or fewer.
 		 */
 		Murmur3_32(0),
 		/**
@@ -59,7 +60,21 @@ public final class Utils {
 		/**
 		 * xxHash 64bit.
 		 */
-		xxHash64(4);
+		xxHash64(4),
+		/**
+		 * XXH3 64bit from xxHash 0.8. Faster than xxHash64, most of all on
+		 * keys up to 16 bytes.
+		 */
+		XXH3_64(5),
+		/**
+		 * XXH3 128bit from xxHash 0.8, for filters needing more than 64 bits
+		 * of hash. Much faster than Murmur3_128.
+		 */
+		XXH3_128(6),
+		/**
+		 * wyhash (final version 4) 64bit.
+		 */
+		wyhash(7);
 		private final int id;
 
 		Algorithm(int id) {
@@ -164,18 +179,42 @@ public final class Utils {
 	 */
 	static long getBucketsNeeded(long maxKeys,double loadFactor,int bucketSize) {
 		/*
-		 * force a power-of-two bucket count so hash functions for bucket index
-		 * can hashBits%numBuckets and get randomly distributed index. See wiki
-		 * "Modulo Bias". Only time we can get perfectly distributed index is
-		 * when numBuckets is a power of 2.
+		 * force a power-of-two bucket count so the bucket index is a mask of
+		 * the hash bits and the alternate bucket a XOR. Tables of any other
+		 * size are supported, see getExactBucketsNeeded.
 		 */
-		long bucketsNeeded = DoubleMath.roundToLong((1.0 / loadFactor) * maxKeys / bucketSize, RoundingMode.UP);
+		long bucketsNeeded = getExactBucketsNeeded(maxKeys, loadFactor, bucketSize);
 		// get next biggest power of 2
 		long bitPos = Long.highestOneBit(bucketsNeeded);
 		if (bucketsNeeded > bitPos)
 			bitPos = bitPos << 1;
 		return bitPos;
 	}
+
+	/**
+	 * Same as {@link #getBucketsNeeded(long, double, int)} without rounding
+	 * up to a power of two, so the table is never more than one bucket bigger
+	 * than needed. Indexes then cost a multiplication instead of a mask.
+	 */
+	static long getExactBucketsNeeded(long maxKeys,double loadFactor,int bucketSize) {
+		return Math.max(2, DoubleMath.roundToLong((1.0 / loadFactor) * maxKeys / bucketSize, RoundingMode.UP));
+	}
+
+	/**
+	 * High 64 bits of the unsigned 128 bit product of a and b, for Java 8
+	 * which lacks {@code Math.multiplyHigh}.
+	 */
+	static long unsignedMultiplyHigh(long a, long b) {
+		long aLo = a & 0xFFFFFFFFL;
+		long aHi = a >>> 32;
+		long bLo = b & 0xFFFFFFFFL;
+		long bHi = b >>> 32;
+		long loLo = aLo * bLo;
+		long hiLo = aHi * bLo;
+		long loHi = aLo * bHi;
+		long cross = (loLo >>> 32) + (hiLo & 0xFFFFFFFFL) + loHi;
+		return (hiLo >>> 32) + (cross >>> 32) + aHi * bHi;
+	}
 	
 	
 
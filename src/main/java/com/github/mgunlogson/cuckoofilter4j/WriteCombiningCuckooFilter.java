@@ -0,0 +1,166 @@
+package com.github.mgunlogson.cuckoofilter4j;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write combining layer over a {@link CountingCuckooFilter} for workloads that
+ * put the same hot keys over and over. Each thread collects its puts in a small
+ * private map of (bucket, tag) to pending increments and applies every key as
+ * one bulk increment, so a key put a thousand times costs one bucket scan and
+ * one lock acquisition instead of a thousand.
+ * <p>
+ * A thread's pending increments are applied when it has maxPendingKeys
+ * distinct keys pending, when its oldest pending increment is older than
+ * maxDelay (checked on each call from that thread), or when it calls
+ * {@link #flush()} or {@link #close()}. A thread that stops calling the filter
+ * keeps its pending increments until it flushes, so flush before a thread
+ * goes idle or exits.
+ * <p>
+ * Reads are read-your-writes for the calling thread only: its own pending
+ * increments are added to what the filter holds, other threads see them after
+ * the flush.
+ */
+public final class WriteCombiningCuckooFilter<T> implements AutoCloseable {
+
+    private final CountingCuckooFilter<T> filter;
+    private final int maxPendingKeys;
+    private final long maxDelayNanos;
+    private final ThreadLocal<Buffer> buffers;
+
+    /**
+     * @param maxPendingKeys
+     *            distinct keys a thread collects before flushing, a power of
+     *            two
+     * @param maxDelay
+     *            longest time an increment may stay pending, as long as its
+     *            thread keeps using the filter
+     */
+    public WriteCombiningCuckooFilter(CountingCuckooFilter<T> filter, int maxPendingKeys, long maxDelay,
+            TimeUnit unit) {
+        checkNotNull(filter);
+        checkNotNull(unit);
+        checkArgument(maxPendingKeys > 0 && (maxPendingKeys & (maxPendingKeys - 1)) == 0,
+                "maxPendingKeys (%s) must be a power of two", maxPendingKeys);
+        checkArgument(maxDelay >= 0, "maxDelay (%s) must be >= 0", maxDelay);
+        this.filter = filter;
+        this.maxPendingKeys = maxPendingKeys;
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+        this.buffers = ThreadLocal.withInitial(() -> new Buffer(this.maxPendingKeys));
+    }
+
+    /**
+     * The filter the increments are applied to.
+     */
+    public CountingCuckooFilter<T> getFilter() {
+        return filter;
+    }
+
+    public void put(T item) {
+        Buffer buffer = buffers.get();
+        OpScratch scratch = OpScratch.get();
+        filter.hasher.generate(item, scratch);
+        long index = scratch.index;
+        long tag = scratch.tag;
+        if (buffer.pending.size() == 0) {
+            buffer.firstPendingNanos = System.nanoTime();
+        }
+        // never full here, the buffer is flushed as soon as it fills up
+        buffer.pending.add(index, tag, 1);
+        if (buffer.pending.size() == maxPendingKeys || isDue(buffer)) {
+            flush(buffer);
+        }
+    }
+
+    /**
+     * Takes a pending increment of this thread back if there is one, otherwise
+     * deletes from the filter.
+     */
+    public boolean delete(T item) {
+        Buffer buffer = buffers.get();
+        if (buffer.pending.size() > 0) {
+            OpScratch scratch = OpScratch.get();
+            filter.hasher.generate(item, scratch);
+            int pos = buffer.pending.find(scratch.index, scratch.index, scratch.tag);
+            if (pos >= 0) {
+                buffer.pending.decrement(pos);
+                return true;
+            }
+        }
+        return filter.delete(item);
+    }
+
+    public boolean mightContain(T item) {
+        return pendingCount(item) > 0 || filter.mightContain(item);
+    }
+
+    /**
+     * The filter's count plus this thread's pending increments for item,
+     * capped at the largest count the filter can hold.
+     */
+    public long count(T item) {
+        return Math.min(pendingCount(item) + filter.count(item), filter.table.getMaxTagCount());
+    }
+
+    /**
+     * Applies this thread's pending increments to the filter.
+     */
+    public void flush() {
+        flush(buffers.get());
+    }
+
+    /**
+     * Same as {@link #flush()}: only the calling thread's pending increments
+     * are applied, other threads still have to flush their own. The filter
+     * stays usable.
+     */
+    @Override
+    public void close() {
+        flush();
+    }
+
+    private long pendingCount(T item) {
+        Buffer buffer = buffers.get();
+        if (buffer.pending.size() == 0) {
+            return 0;
+        }
+        if (isDue(buffer)) {
+            flush(buffer);
+            return 0;
+        }
+        OpScratch scratch = OpScratch.get();
+        filter.hasher.generate(item, scratch);
+        int pos = buffer.pending.find(scratch.index, scratch.index, scratch.tag);
+        return pos < 0 ? 0 : buffer.pending.countAt(pos);
+    }
+
+    private boolean isDue(Buffer buffer) {
+        return System.nanoTime() - buffer.firstPendingNanos >= maxDelayNanos;
+    }
+
+    private void flush(Buffer buffer) {
+        HoldingArea pending = buffer.pending;
+        if (pending.size() == 0) {
+            return;
+        }
+        for (int pos = 0; pos < pending.slots(); pos++) {
+            long times = pending.countAt(pos);
+            if (times > 0) {
+                filter.putTag(pending.bucketAt(pos), pending.tagAt(pos), times, Long.MAX_VALUE);
+            }
+        }
+        pending.clear();
+    }
+
+    private static final class Buffer {
+        // keyed by the item's primary bucket, so find() gets the same bucket twice
+        final HoldingArea pending;
+        long firstPendingNanos;
+
+        Buffer(int maxPendingKeys) {
+            this.pending = new HoldingArea(maxPendingKeys);
+        }
+    }
+}
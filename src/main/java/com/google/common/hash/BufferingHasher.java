@@ -0,0 +1,91 @@
+package com.google.common.hash;
+
+/**
+ * Base for hashers of one-shot algorithms, which need the whole input before
+ * they can start. The input is collected in a buffer that survives
+ * {@link #reset()}, so a hasher kept per thread stops allocating once the
+ * buffer fits the longest key.
+ */
+abstract class BufferingHasher extends AbstractByteHasher implements ResettableHasher {
+
+	byte[] buf = new byte[64];
+	int len;
+
+	@Override
+	public void reset() {
+		len = 0;
+	}
+
+	@Override
+	public HashCode hash() {
+		return HashCode.fromLong(hashLong());
+	}
+
+	@Override
+	protected void update(byte b) {
+		ensure(1);
+		buf[len++] = b;
+	}
+
+	@Override
+	protected void update(byte[] b, int off, int n) {
+		ensure(n);
+		System.arraycopy(b, off, buf, len, n);
+		len += n;
+	}
+
+	@Override
+	public Hasher putInt(int value) {
+		ensure(4);
+		buf[len] = (byte) value;
+		buf[len + 1] = (byte) (value >>> 8);
+		buf[len + 2] = (byte) (value >>> 16);
+		buf[len + 3] = (byte) (value >>> 24);
+		len += 4;
+		return this;
+	}
+
+	@Override
+	public Hasher putLong(long value) {
+		ensure(8);
+		for (int i = 0; i < 8; i++) {
+			buf[len + i] = (byte) (value >>> (i * 8));
+		}
+		len += 8;
+		return this;
+	}
+
+	private void ensure(int n) {
+		if (len + n > buf.length) {
+			byte[] grown = new byte[Math.max(buf.length * 2, len + n)];
+			System.arraycopy(buf, 0, grown, 0, len);
+			buf = grown;
+		}
+	}
+
+	static long readLE64(byte[] b, int i) {
+		return (b[i] & 0xFFL) | ((b[i + 1] & 0xFFL) << 8) | ((b[i + 2] & 0xFFL) << 16) | ((b[i + 3] & 0xFFL) << 24)
+				| ((b[i + 4] & 0xFFL) << 32) | ((b[i + 5] & 0xFFL) << 40) | ((b[i + 6] & 0xFFL) << 48)
+				| ((b[i + 7] & 0xFFL) << 56);
+	}
+
+	static long readLE32(byte[] b, int i) {
+		return (b[i] & 0xFFL) | ((b[i + 1] & 0xFFL) << 8) | ((b[i + 2] & 0xFFL) << 16) | ((b[i + 3] & 0xFFL) << 24);
+	}
+
+	/**
+	 * High 64 bits of the unsigned 128 bit product of a and b, for Java 8
+	 * which lacks {@code Math.multiplyHigh}.
+	 */
+	static long unsignedMultiplyHigh(long a, long b) {
+		long aLo = a & 0xFFFFFFFFL;
+		long aHi = a >>> 32;
+		long bLo = b & 0xFFFFFFFFL;
+		long bHi = b >>> 32;
+		long loLo = aLo * bLo;
+		long hiLo = aHi * bLo;
+		long loHi = aLo * bHi;
+		long cross = (loLo >>> 32) + (hiLo & 0xFFFFFFFFL) + loHi;
+		return (hiLo >>> 32) + (cross >>> 32) + aHi * bHi;
+	}
+}
@@ -0,0 +1,27 @@
+package com.google.common.hash;
+
+/**
+ * A {@link Hasher} that can be reused after {@link #hash()}, so callers can
+ * keep one per thread instead of allocating a hasher per hash.
+ */
+public interface ResettableHasher extends Hasher {
+
+	/**
+	 * Discards everything put so far.
+	 */
+	void reset();
+
+	/**
+	 * Same value as {@code hash().asLong()} without allocating a
+	 * {@link HashCode}.
+	 */
+	long hashLong();
+
+	/**
+	 * Same value as {@code hash().asInt()} without allocating a
+	 * {@link HashCode}.
+	 */
+	default int hashInt() {
+		return (int) hashLong();
+	}
+}
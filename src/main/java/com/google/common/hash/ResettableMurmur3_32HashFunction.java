@@ -0,0 +1,152 @@
+package com.google.common.hash;
+
+import java.io.Serializable;
+
+/**
+ * Murmur3 32 bit, giving the same hashes as {@link Hashing#murmur3_32(int)}
+ * with a hasher that can be {@link ResettableHasher#reset()} and reused. For
+ * filters needing 32 bits of hash or fewer, where it does a 32 bit multiply
+ * per 4 input bytes and nothing is allocated per hash.
+ */
+public class ResettableMurmur3_32HashFunction extends AbstractStreamingHashFunction implements Serializable {
+
+	private static final long serialVersionUID = 6218326183523585236L;
+
+	private static final int C1 = 0xcc9e2d51;
+	private static final int C2 = 0x1b873593;
+
+	private final int seed;
+
+	public ResettableMurmur3_32HashFunction(int seed) {
+		this.seed = seed;
+	}
+
+	@Override
+	public ResettableHasher newHasher() {
+		return new Murmur3_32Hasher();
+	}
+
+	@Override
+	public int bits() {
+		return 32;
+	}
+
+	/**
+	 * Mixes every complete 4 byte block as soon as it's put. Up to 3 bytes of
+	 * a partial block wait in the low bits of {@code buffer}.
+	 */
+	private final class Murmur3_32Hasher extends AbstractByteHasher implements ResettableHasher {
+		private int h1;
+		private long buffer;
+		// bits waiting in buffer
+		private int shift;
+		private int length;
+
+		Murmur3_32Hasher() {
+			reset();
+		}
+
+		@Override
+		public void reset() {
+			h1 = seed;
+			buffer = 0;
+			shift = 0;
+			length = 0;
+		}
+
+		@Override
+		protected void update(byte b) {
+			buffer |= (b & 0xFFL) << shift;
+			shift += 8;
+			length++;
+			if (shift == 32) {
+				flush();
+			}
+		}
+
+		@Override
+		protected void update(byte[] b, int off, int n) {
+			int end = off + n;
+			while (shift != 0 && off < end) {
+				update(b[off++]);
+			}
+			for (; off <= end - 4; off += 4) {
+				h1 = mixH1(h1, mixK1((b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8 | (b[off + 2] & 0xFF) << 16
+						| (b[off + 3] & 0xFF) << 24));
+				length += 4;
+			}
+			while (off < end) {
+				update(b[off++]);
+			}
+		}
+
+		@Override
+		public Hasher putInt(int value) {
+			buffer |= (value & 0xFFFFFFFFL) << shift;
+			shift += 32;
+			length += 4;
+			flush();
+			return this;
+		}
+
+		@Override
+		public Hasher putLong(long value) {
+			putInt((int) value);
+			putInt((int) (value >>> 32));
+			return this;
+		}
+
+		private void flush() {
+			h1 = mixH1(h1, mixK1((int) buffer));
+			buffer >>>= 32;
+			shift -= 32;
+		}
+
+		/**
+		 * Doesn't change the state, more input may follow.
+		 */
+		@Override
+		public int hashInt() {
+			int h = h1;
+			if (shift > 0) {
+				h ^= mixK1((int) buffer);
+			}
+			return fmix(h, length);
+		}
+
+		/**
+		 * Not available, like {@code asLong()} of a 32 bit {@link HashCode}.
+		 */
+		@Override
+		public long hashLong() {
+			throw new IllegalStateException("32 bit hash, use hashInt()");
+		}
+
+		@Override
+		public HashCode hash() {
+			return HashCode.fromInt(hashInt());
+		}
+	}
+
+	private static int mixK1(int k1) {
+		k1 *= C1;
+		k1 = Integer.rotateLeft(k1, 15);
+		return k1 * C2;
+	}
+
+	private static int mixH1(int h1, int k1) {
+		h1 ^= k1;
+		h1 = Integer.rotateLeft(h1, 13);
+		return h1 * 5 + 0xe6546b64;
+	}
+
+	private static int fmix(int h1, int length) {
+		h1 ^= length;
+		h1 ^= h1 >>> 16;
+		h1 *= 0x85ebca6b;
+		h1 ^= h1 >>> 13;
+		h1 *= 0xc2b2ae35;
+		h1 ^= h1 >>> 16;
+		return h1;
+	}
+}
@@ -0,0 +1,95 @@
+package com.google.common.hash;
+
+import static com.google.common.hash.BufferingHasher.readLE32;
+import static com.google.common.hash.BufferingHasher.readLE64;
+import static com.google.common.hash.BufferingHasher.unsignedMultiplyHigh;
+
+import java.io.Serializable;
+
+/**
+ * wyhash (final version 4) with the default secret and a seed. Needs a single
+ * 64x64 bit multiplication per 8 input bytes, about the cheapest 64 bit hash
+ * that passes SMHasher.
+ */
+public class WyHashFunction extends AbstractStreamingHashFunction implements Serializable {
+
+	private static final long serialVersionUID = -6214373125906153385L;
+
+	// _wyp of final version 4, the older versions' secret gives other hashes
+	private static final long S0 = 0x2d358dccaa6c78a5L;
+	private static final long S1 = 0x8bb84b93962eacc9L;
+	private static final long S2 = 0x4b33a62ed433d4a3L;
+	private static final long S3 = 0x4d5a2da51de1aa47L;
+
+	private final long seed;
+
+	public WyHashFunction(long seed) {
+		this.seed = seed;
+	}
+
+	@Override
+	public ResettableHasher newHasher() {
+		return new WyHasher();
+	}
+
+	@Override
+	public int bits() {
+		return 64;
+	}
+
+	private final class WyHasher extends BufferingHasher {
+		@Override
+		public long hashLong() {
+			return hash64(buf, len);
+		}
+	}
+
+	long hash64(byte[] p, int len) {
+		long s = seed ^ mix(seed ^ S0, S1);
+		long a;
+		long b;
+		if (len <= 16) {
+			if (len >= 4) {
+				int q = (len >>> 3) << 2;
+				a = (readLE32(p, 0) << 32) | readLE32(p, q);
+				b = (readLE32(p, len - 4) << 32) | readLE32(p, len - 4 - q);
+			} else if (len > 0) {
+				a = ((p[0] & 0xFFL) << 16) | ((p[len >>> 1] & 0xFFL) << 8) | (p[len - 1] & 0xFFL);
+				b = 0;
+			} else {
+				a = b = 0;
+			}
+		} else {
+			int i = len;
+			int off = 0;
+			if (i >= 48) {
+				long see1 = s;
+				long see2 = s;
+				do {
+					s = mix(readLE64(p, off) ^ S1, readLE64(p, off + 8) ^ s);
+					see1 = mix(readLE64(p, off + 16) ^ S2, readLE64(p, off + 24) ^ see1);
+					see2 = mix(readLE64(p, off + 32) ^ S3, readLE64(p, off + 40) ^ see2);
+					off += 48;
+					i -= 48;
+				} while (i >= 48);
+				s ^= see1 ^ see2;
+			}
+			while (i > 16) {
+				s = mix(readLE64(p, off) ^ S1, readLE64(p, off + 8) ^ s);
+				off += 16;
+				i -= 16;
+			}
+			a = readLE64(p, off + i - 16);
+			b = readLE64(p, off + i - 8);
+		}
+		a ^= S1;
+		b ^= s;
+		long lo = a * b;
+		long hi = unsignedMultiplyHigh(a, b);
+		return mix(lo ^ S0 ^ len, hi ^ S1);
+	}
+
+	private static long mix(long a, long b) {
+		return (a * b) ^ unsignedMultiplyHigh(a, b);
+	}
+}
@@ -0,0 +1,363 @@
+package com.google.common.hash;
+
+import static com.google.common.hash.BufferingHasher.readLE32;
+import static com.google.common.hash.BufferingHasher.readLE64;
+import static com.google.common.hash.BufferingHasher.unsignedMultiplyHigh;
+
+import java.io.Serializable;
+
+/**
+ * XXH3 from xxHash 0.8, the 64 bit or the 128 bit variant, with a seed. Much
+ * faster than XXH64 on short keys because inputs up to 16 bytes take a
+ * couple of multiplications and no loop.
+ * <p>
+ * A 128 bit hash code holds the low 64 bits then the high 64 bits, each
+ * little-endian, so {@link HashCode#asLong()} is the low half.
+ */
+public class XXH3HashFunction extends AbstractStreamingHashFunction implements Serializable {
+
+	private static final long serialVersionUID = 2287512318765453093L;
+
+	private static final long PRIME32_1 = 0x9E3779B1L;
+	private static final long PRIME32_2 = 0x85EBCA77L;
+	private static final long PRIME32_3 = 0xC2B2AE3DL;
+	private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long PRIME64_3 = 0x165667B19E3779F9L;
+	private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+	private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+	private static final long PRIME_MX1 = 0x165667919E3779F9L;
+	private static final long PRIME_MX2 = 0x9FB21C651E98DF25L;
+
+	private static final int STRIPE_LEN = 64;
+	private static final int SECRET_CONSUME_RATE = 8;
+	private static final int SECRET_SIZE_MIN = 136;
+	private static final int MIDSIZE_STARTOFFSET = 3;
+	private static final int MIDSIZE_LASTOFFSET = 17;
+	private static final int SECRET_LASTACC_START = 7;
+	private static final int SECRET_MERGEACCS_START = 11;
+
+	private static final byte[] K_SECRET = toBytes(new int[] {
+			0xb8, 0xfe, 0x6c, 0x39, 0x23, 0xa4, 0x4b, 0xbe, 0x7c, 0x01, 0x81, 0x2c, 0xf7, 0x21, 0xad, 0x1c,
+			0xde, 0xd4, 0x6d, 0xe9, 0x83, 0x90, 0x97, 0xdb, 0x72, 0x40, 0xa4, 0xa4, 0xb7, 0xb3, 0x67, 0x1f,
+			0xcb, 0x79, 0xe6, 0x4e, 0xcc, 0xc0, 0xe5, 0x78, 0x82, 0x5a, 0xd0, 0x7d, 0xcc, 0xff, 0x72, 0x21,
+			0xb8, 0x08, 0x46, 0x74, 0xf7, 0x43, 0x24, 0x8e, 0xe0, 0x35, 0x90, 0xe6, 0x81, 0x3a, 0x26, 0x4c,
+			0x3c, 0x28, 0x52, 0xbb, 0x91, 0xc3, 0x00, 0xcb, 0x88, 0xd0, 0x65, 0x8b, 0x1b, 0x53, 0x2e, 0xa3,
+			0x71, 0x64, 0x48, 0x97, 0xa2, 0x0d, 0xf9, 0x4e, 0x38, 0x19, 0xef, 0x46, 0xa9, 0xde, 0xac, 0xd8,
+			0xa8, 0xfa, 0x76, 0x3f, 0xe3, 0x9c, 0x34, 0x3f, 0xf9, 0xdc, 0xbb, 0xc7, 0xc7, 0x0b, 0x4f, 0x1d,
+			0x8a, 0x51, 0xe0, 0x4b, 0xcd, 0xb4, 0x59, 0x31, 0xc8, 0x9f, 0x7e, 0xc9, 0xd9, 0x78, 0x73, 0x64,
+			0xea, 0xc5, 0xac, 0x83, 0x34, 0xd3, 0xeb, 0xc3, 0xc5, 0x81, 0xa0, 0xff, 0xfa, 0x13, 0x63, 0xeb,
+			0x17, 0x0d, 0xdd, 0x51, 0xb7, 0xf0, 0xda, 0x49, 0xd3, 0x16, 0x55, 0x26, 0x29, 0xd4, 0x68, 0x9e,
+			0x2b, 0x16, 0xbe, 0x58, 0x7d, 0x47, 0xa1, 0xfc, 0x8f, 0xf8, 0xb8, 0xd1, 0x7a, 0xd0, 0x31, 0xce,
+			0x45, 0xcb, 0x3a, 0x8f, 0x95, 0x16, 0x04, 0x28, 0xaf, 0xd7, 0xfb, 0xca, 0xbb, 0x4b, 0x40, 0x7e, });
+
+	private final long seed;
+	private final boolean wide;
+	// the default secret with the seed folded in, only used for inputs over 240 bytes
+	private final byte[] seededSecret;
+
+	/**
+	 * @param bits
+	 *            64 or 128
+	 */
+	public XXH3HashFunction(long seed, int bits) {
+		if (bits != 64 && bits != 128) {
+			throw new IllegalArgumentException("bits (" + bits + ") must be 64 or 128");
+		}
+		this.seed = seed;
+		this.wide = bits == 128;
+		this.seededSecret = seededSecret(seed);
+	}
+
+	@Override
+	public ResettableHasher newHasher() {
+		return new XXH3Hasher();
+	}
+
+	@Override
+	public int bits() {
+		return wide ? 128 : 64;
+	}
+
+	private final class XXH3Hasher extends BufferingHasher {
+		@Override
+		public long hashLong() {
+			return wide ? hash128Low(buf, len) : hash64(buf, len);
+		}
+
+		@Override
+		public HashCode hash() {
+			if (!wide) {
+				return super.hash();
+			}
+			long[] h = hash128(buf, len);
+			byte[] bytes = new byte[16];
+			for (int i = 0; i < 8; i++) {
+				bytes[i] = (byte) (h[0] >>> (i * 8));
+				bytes[i + 8] = (byte) (h[1] >>> (i * 8));
+			}
+			return HashCode.fromBytes(bytes);
+		}
+	}
+
+	long hash64(byte[] in, int len) {
+		if (len <= 16) {
+			if (len > 8) {
+				long bitflip1 = (readLE64(K_SECRET, 24) ^ readLE64(K_SECRET, 32)) + seed;
+				long bitflip2 = (readLE64(K_SECRET, 40) ^ readLE64(K_SECRET, 48)) - seed;
+				long inputLo = readLE64(in, 0) ^ bitflip1;
+				long inputHi = readLE64(in, len - 8) ^ bitflip2;
+				long acc = len + Long.reverseBytes(inputLo) + inputHi + mul128Fold64(inputLo, inputHi);
+				return avalanche(acc);
+			}
+			if (len >= 4) {
+				long s = seed ^ ((long) Integer.reverseBytes((int) seed) << 32);
+				long input1 = readLE32(in, 0);
+				long input2 = readLE32(in, len - 4);
+				long bitflip = (readLE64(K_SECRET, 8) ^ readLE64(K_SECRET, 16)) - s;
+				long keyed = (input2 + (input1 << 32)) ^ bitflip;
+				return rrmxmx(keyed, len);
+			}
+			if (len > 0) {
+				long combined = combined1to3(in, len);
+				long bitflip = (readLE32(K_SECRET, 0) ^ readLE32(K_SECRET, 4)) + seed;
+				return xxh64Avalanche(combined ^ bitflip);
+			}
+			return xxh64Avalanche(seed ^ readLE64(K_SECRET, 56) ^ readLE64(K_SECRET, 64));
+		}
+		if (len <= 128) {
+			long acc = len * PRIME64_1;
+			if (len > 32) {
+				if (len > 64) {
+					if (len > 96) {
+						acc += mix16B(in, 48, K_SECRET, 96, seed);
+						acc += mix16B(in, len - 64, K_SECRET, 112, seed);
+					}
+					acc += mix16B(in, 32, K_SECRET, 64, seed);
+					acc += mix16B(in, len - 48, K_SECRET, 80, seed);
+				}
+				acc += mix16B(in, 16, K_SECRET, 32, seed);
+				acc += mix16B(in, len - 32, K_SECRET, 48, seed);
+			}
+			acc += mix16B(in, 0, K_SECRET, 0, seed);
+			acc += mix16B(in, len - 16, K_SECRET, 16, seed);
+			return avalanche(acc);
+		}
+		if (len <= 240) {
+			long acc = len * PRIME64_1;
+			int rounds = len / 16;
+			for (int i = 0; i < 8; i++) {
+				acc += mix16B(in, 16 * i, K_SECRET, 16 * i, seed);
+			}
+			acc = avalanche(acc);
+			for (int i = 8; i < rounds; i++) {
+				acc += mix16B(in, 16 * i, K_SECRET, 16 * (i - 8) + MIDSIZE_STARTOFFSET, seed);
+			}
+			acc += mix16B(in, len - 16, K_SECRET, SECRET_SIZE_MIN - MIDSIZE_LASTOFFSET, seed);
+			return avalanche(acc);
+		}
+		long[] acc = accumulateLong(in, len, seededSecret);
+		return mergeAccs(acc, seededSecret, SECRET_MERGEACCS_START, len * PRIME64_1);
+	}
+
+	private long hash128Low(byte[] in, int len) {
+		return hash128(in, len)[0];
+	}
+
+	/**
+	 * Returns {low, high}.
+	 */
+	long[] hash128(byte[] in, int len) {
+		if (len <= 16) {
+			if (len > 8) {
+				long bitflipl = (readLE64(K_SECRET, 32) ^ readLE64(K_SECRET, 40)) - seed;
+				long bitfliph = (readLE64(K_SECRET, 48) ^ readLE64(K_SECRET, 56)) + seed;
+				long inputLo = readLE64(in, 0);
+				long inputHi = readLE64(in, len - 8);
+				long m = inputLo ^ inputHi ^ bitflipl;
+				long mLo = m * PRIME64_1;
+				long mHi = unsignedMultiplyHigh(m, PRIME64_1);
+				mLo += (long) (len - 1) << 54;
+				inputHi ^= bitfliph;
+				mHi += inputHi + (inputHi & 0xFFFFFFFFL) * (PRIME32_2 - 1);
+				mLo ^= Long.reverseBytes(mHi);
+				long hLo = mLo * PRIME64_2;
+				long hHi = unsignedMultiplyHigh(mLo, PRIME64_2) + mHi * PRIME64_2;
+				return new long[] { avalanche(hLo), avalanche(hHi) };
+			}
+			if (len >= 4) {
+				long s = seed ^ ((long) Integer.reverseBytes((int) seed) << 32);
+				long inputLo = readLE32(in, 0);
+				long inputHi = readLE32(in, len - 4);
+				long bitflip = (readLE64(K_SECRET, 16) ^ readLE64(K_SECRET, 24)) + s;
+				long keyed = (inputLo + (inputHi << 32)) ^ bitflip;
+				long mul = PRIME64_1 + ((long) len << 2);
+				long lo = keyed * mul;
+				long hi = unsignedMultiplyHigh(keyed, mul);
+				hi += lo << 1;
+				lo ^= hi >>> 3;
+				lo ^= lo >>> 35;
+				lo *= PRIME_MX2;
+				lo ^= lo >>> 28;
+				return new long[] { lo, avalanche(hi) };
+			}
+			if (len > 0) {
+				long combinedl = combined1to3(in, len);
+				long combinedh = Integer.rotateLeft(Integer.reverseBytes((int) combinedl), 13) & 0xFFFFFFFFL;
+				long bitflipl = (readLE32(K_SECRET, 0) ^ readLE32(K_SECRET, 4)) + seed;
+				long bitfliph = (readLE32(K_SECRET, 8) ^ readLE32(K_SECRET, 12)) - seed;
+				return new long[] { xxh64Avalanche(combinedl ^ bitflipl), xxh64Avalanche(combinedh ^ bitfliph) };
+			}
+			return new long[] { xxh64Avalanche(seed ^ readLE64(K_SECRET, 64) ^ readLE64(K_SECRET, 72)),
+					xxh64Avalanche(seed ^ readLE64(K_SECRET, 80) ^ readLE64(K_SECRET, 88)) };
+		}
+		if (len <= 240) {
+			long[] acc = { len * PRIME64_1, 0 };
+			if (len <= 128) {
+				if (len > 32) {
+					if (len > 64) {
+						if (len > 96) {
+							mix32B(acc, in, 48, len - 64, K_SECRET, 96, seed);
+						}
+						mix32B(acc, in, 32, len - 48, K_SECRET, 64, seed);
+					}
+					mix32B(acc, in, 16, len - 32, K_SECRET, 32, seed);
+				}
+				mix32B(acc, in, 0, len - 16, K_SECRET, 0, seed);
+			} else {
+				int rounds = len / 32;
+				for (int i = 0; i < 4; i++) {
+					mix32B(acc, in, 32 * i, 32 * i + 16, K_SECRET, 32 * i, seed);
+				}
+				acc[0] = avalanche(acc[0]);
+				acc[1] = avalanche(acc[1]);
+				for (int i = 4; i < rounds; i++) {
+					mix32B(acc, in, 32 * i, 32 * i + 16, K_SECRET, MIDSIZE_STARTOFFSET + 32 * (i - 4), seed);
+				}
+				mix32B(acc, in, len - 16, len - 32, K_SECRET, SECRET_SIZE_MIN - MIDSIZE_LASTOFFSET - 16, -seed);
+			}
+			long lo = acc[0] + acc[1];
+			long hi = acc[0] * PRIME64_1 + acc[1] * PRIME64_4 + (len - seed) * PRIME64_2;
+			return new long[] { avalanche(lo), -avalanche(hi) };
+		}
+		long[] acc = accumulateLong(in, len, seededSecret);
+		long lo = mergeAccs(acc, seededSecret, SECRET_MERGEACCS_START, len * PRIME64_1);
+		long hi = mergeAccs(acc, seededSecret, seededSecret.length - STRIPE_LEN - SECRET_MERGEACCS_START,
+				~(len * PRIME64_2));
+		return new long[] { lo, hi };
+	}
+
+	private static long combined1to3(byte[] in, int len) {
+		int c1 = in[0] & 0xFF;
+		int c2 = in[len >> 1] & 0xFF;
+		int c3 = in[len - 1] & 0xFF;
+		return ((c1 << 16) | (c2 << 24) | c3 | (len << 8)) & 0xFFFFFFFFL;
+	}
+
+	private static long mix16B(byte[] in, int i, byte[] secret, int s, long seed) {
+		return mul128Fold64(readLE64(in, i) ^ (readLE64(secret, s) + seed),
+				readLE64(in, i + 8) ^ (readLE64(secret, s + 8) - seed));
+	}
+
+	private static void mix32B(long[] acc, byte[] in, int i1, int i2, byte[] secret, int s, long seed) {
+		acc[0] += mix16B(in, i1, secret, s, seed);
+		acc[0] ^= readLE64(in, i2) + readLE64(in, i2 + 8);
+		acc[1] += mix16B(in, i2, secret, s + 16, seed);
+		acc[1] ^= readLE64(in, i1) + readLE64(in, i1 + 8);
+	}
+
+	private static long[] accumulateLong(byte[] in, int len, byte[] secret) {
+		long[] acc = { PRIME32_3, PRIME64_1, PRIME64_2, PRIME64_3, PRIME64_4, PRIME32_2, PRIME64_5, PRIME32_1 };
+		int stripesPerBlock = (secret.length - STRIPE_LEN) / SECRET_CONSUME_RATE;
+		int blockLen = STRIPE_LEN * stripesPerBlock;
+		int blocks = (len - 1) / blockLen;
+		for (int n = 0; n < blocks; n++) {
+			for (int s = 0; s < stripesPerBlock; s++) {
+				accumulate512(acc, in, n * blockLen + s * STRIPE_LEN, secret, s * SECRET_CONSUME_RATE);
+			}
+			scramble(acc, secret, secret.length - STRIPE_LEN);
+		}
+		int stripes = ((len - 1) - blockLen * blocks) / STRIPE_LEN;
+		for (int s = 0; s < stripes; s++) {
+			accumulate512(acc, in, blocks * blockLen + s * STRIPE_LEN, secret, s * SECRET_CONSUME_RATE);
+		}
+		accumulate512(acc, in, len - STRIPE_LEN, secret, secret.length - STRIPE_LEN - SECRET_LASTACC_START);
+		return acc;
+	}
+
+	private static void accumulate512(long[] acc, byte[] in, int i, byte[] secret, int s) {
+		for (int lane = 0; lane < 8; lane++) {
+			long data = readLE64(in, i + 8 * lane);
+			long key = data ^ readLE64(secret, s + 8 * lane);
+			acc[lane ^ 1] += data;
+			acc[lane] += (key & 0xFFFFFFFFL) * (key >>> 32);
+		}
+	}
+
+	private static void scramble(long[] acc, byte[] secret, int s) {
+		for (int lane = 0; lane < 8; lane++) {
+			long a = acc[lane];
+			a ^= a >>> 47;
+			a ^= readLE64(secret, s + 8 * lane);
+			acc[lane] = a * PRIME32_1;
+		}
+	}
+
+	private static long mergeAccs(long[] acc, byte[] secret, int s, long start) {
+		long result = start;
+		for (int i = 0; i < 4; i++) {
+			result += mul128Fold64(acc[2 * i] ^ readLE64(secret, s + 16 * i),
+					acc[2 * i + 1] ^ readLE64(secret, s + 16 * i + 8));
+		}
+		return avalanche(result);
+	}
+
+	private static long mul128Fold64(long a, long b) {
+		return (a * b) ^ unsignedMultiplyHigh(a, b);
+	}
+
+	private static long avalanche(long h) {
+		h ^= h >>> 37;
+		h *= PRIME_MX1;
+		return h ^ (h >>> 32);
+	}
+
+	private static long rrmxmx(long h, int len) {
+		h ^= Long.rotateLeft(h, 49) ^ Long.rotateLeft(h, 24);
+		h *= PRIME_MX2;
+		h ^= (h >>> 35) + len;
+		h *= PRIME_MX2;
+		return h ^ (h >>> 28);
+	}
+
+	private static long xxh64Avalanche(long h) {
+		h ^= h >>> 33;
+		h *= PRIME64_2;
+		h ^= h >>> 29;
+		h *= PRIME64_3;
+		return h ^ (h >>> 32);
+	}
+
+	private static byte[] seededSecret(long seed) {
+		byte[] secret = K_SECRET.clone();
+		for (int i = 0; i < secret.length; i += 16) {
+			writeLE64(secret, i, readLE64(K_SECRET, i) + seed);
+			writeLE64(secret, i + 8, readLE64(K_SECRET, i + 8) - seed);
+		}
+		return secret;
+	}
+
+	private static void writeLE64(byte[] b, int i, long v) {
+		for (int j = 0; j < 8; j++) {
+			b[i + j] = (byte) (v >>> (8 * j));
+		}
+	}
+
+	private static byte[] toBytes(int[] values) {
+		byte[] bytes = new byte[values.length];
+		for (int i = 0; i < values.length; i++) {
+			bytes[i] = (byte) values[i];
+		}
+		return bytes;
+	}
+}
@@ -1,6 +1,8 @@
 package com.google.common.hash;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 public class xxHashFunction extends AbstractStreamingHashFunction implements Serializable {
 
@@ -12,7 +14,7 @@ public class xxHashFunction extends AbstractStreamingHashFunction implements Ser
 	}
 
 	@Override
-	public Hasher newHasher() {
+	public xxHasher newHasher() {
 		return new xxHasher(seed);
 	}
 
@@ -21,66 +23,280 @@ public class xxHashFunction extends AbstractStreamingHashFunction implements Ser
 		return 64;
 	}
 	
-	static final class xxHasher extends AbstractByteHasher {
+	/**
+	 * Streaming XXH64. Input is gathered into 32 byte stripes that are mixed
+	 * into the four accumulators as soon as they are complete, so the state
+	 * stays the same size however long the input is, and {@link #hashLong()}
+	 * only has to mix in the partial stripe. Unlike other Guava hashers an
+	 * instance can be {@link #reset()} and reused, which lets callers keep one
+	 * per thread instead of allocating one per hash.
+	 * <p>
+	 * The algorithm follows the XXH64 reference; the finishing code comes from
+	 * <a href="https://github.com/jpountz/lz4-java">LZ4-Java</a> created by
+	 * Adrien Grand.
+	 */
+	public static final class xxHasher extends AbstractByteHasher implements ResettableHasher {
 		
 		private static final long PRIME64_1 = -7046029288634856825L; 
 		private static final long PRIME64_2 = -4417276706812531889L; 
 		private static final long PRIME64_3 = 1609587929392839161L;
 		private static final long PRIME64_4 = -8796714831421723037L; 
 		private static final long PRIME64_5 = 2870177450012600261L;
+		private static final int STRIPE = 32;
 		private final long seed;
-		
-		private byte[] ba;
-		private int baIndex=0;
+
+		private long v1;
+		private long v2;
+		private long v3;
+		private long v4;
+		// bytes put so far, including the ones still in the stripe buffer
+		private long totalLen;
+		private final byte[] stripe = new byte[STRIPE];
+		private int stripeLen;
 		
 		xxHasher(long newSeed) {
 			seed = newSeed;
-			ba = new byte[16];
+			reset();
 		}
 
 		@Override
 		public HashCode hash() {
-			return HashCode.fromLong(hash(ba,0,baIndex,seed));
+			return HashCode.fromLong(hashLong());
+		}
+
+		/**
+		 * Doesn't change the state, more input may follow.
+		 */
+		@Override
+		public long hashLong() {
+			long h64;
+			if (totalLen >= STRIPE) {
+				h64 = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+				h64 = mergeRound(h64, v1);
+				h64 = mergeRound(h64, v2);
+				h64 = mergeRound(h64, v3);
+				h64 = mergeRound(h64, v4);
+			} else {
+				h64 = seed + PRIME64_5;
+			}
+			h64 += totalLen;
+			return finish(h64, stripe, 0, stripeLen);
+		}
+
+		@Override
+		public void reset() {
+			v1 = seed + PRIME64_1 + PRIME64_2;
+			v2 = seed + PRIME64_2;
+			v3 = seed + 0;
+			v4 = seed - PRIME64_1;
+			totalLen = 0;
+			stripeLen = 0;
+		}
+
+		/**
+		 * Same value as {@code reset()}, {@code putBytes(buf, off, len)},
+		 * {@code putLong(suffix)} and {@link #hashLong()}. Resets the hasher.
+		 */
+		public long hashBytes(byte[] buf, int off, int len, long suffix) {
+			return hashInput(buf, ARRAY, off, len, suffix);
+		}
+
+		/**
+		 * {@link #hashBytes(byte[], int, int, long)} for the bytes at absolute
+		 * indexes [off, off + len) of buf, heap or direct. The buffer's
+		 * position, limit and byte order are left alone.
+		 */
+		public long hashBytes(ByteBuffer buf, int off, int len, long suffix) {
+			return hashInput(buf, buf.order() == ByteOrder.BIG_ENDIAN ? BUFFER_BE : BUFFER_LE, off, len, suffix);
+		}
+
+		/**
+		 * Same value as {@code reset()}, {@code putUnencodedChars(chars)},
+		 * {@code putLong(suffix)} and {@link #hashLong()}: the UTF-16 code
+		 * units are read four to a long instead of being put one by one.
+		 */
+		public long hashUnencodedChars(CharSequence chars, long suffix) {
+			return hashInput(chars, UTF16, 0, chars.length() * 2, suffix);
+		}
+
+		/**
+		 * Same value as {@code reset()}, {@code putString(chars, UTF_8)},
+		 * {@code putLong(suffix)} and {@link #hashLong()} for chars that are
+		 * all below 0x80, whose UTF-8 encoding is one byte per char. Eight
+		 * chars are read to a long and nothing is encoded.
+		 */
+		public long hashAsciiChars(CharSequence chars, long suffix) {
+			return hashInput(chars, ASCII, 0, chars.length(), suffix);
+		}
+
+		/**
+		 * Hashes the len bytes of a key in src followed by the 8 byte suffix.
+		 * Whole stripes are mixed in straight from src, only the last partial
+		 * stripe of the key goes through the stripe buffer.
+		 */
+		private long hashInput(Object src, int kind, int off, int len, long suffix) {
+			reset();
+			int pos = 0;
+			for (; pos <= len - STRIPE; pos += STRIPE) {
+				v1 = round(v1, readLongLE(src, kind, off, pos));
+				v2 = round(v2, readLongLE(src, kind, off, pos + 8));
+				v3 = round(v3, readLongLE(src, kind, off, pos + 16));
+				v4 = round(v4, readLongLE(src, kind, off, pos + 24));
+			}
+			totalLen = pos;
+			for (; pos < len; pos++) {
+				update(readByte(src, kind, off, pos));
+			}
+			putLong(suffix);
+			return hashLong();
+		}
+
+		// kinds of key source for hashInput
+		private static final int ARRAY = 0;
+		private static final int BUFFER_LE = 1;
+		private static final int BUFFER_BE = 2;
+		private static final int UTF16 = 3;
+		private static final int ASCII = 4;
+
+		/**
+		 * Little-endian long at byte pos of the key, which starts at off
+		 * (a byte index for arrays and buffers, a char index for chars).
+		 */
+		private static long readLongLE(Object src, int kind, int off, int pos) {
+			switch (kind) {
+			case ARRAY:
+				return readLongLE((byte[]) src, off + pos);
+			case BUFFER_LE:
+				return ((ByteBuffer) src).getLong(off + pos);
+			case BUFFER_BE:
+				return Long.reverseBytes(((ByteBuffer) src).getLong(off + pos));
+			case UTF16: {
+				CharSequence cs = (CharSequence) src;
+				int c = off + (pos >>> 1);
+				return cs.charAt(c) | (long) cs.charAt(c + 1) << 16 | (long) cs.charAt(c + 2) << 32
+						| (long) cs.charAt(c + 3) << 48;
+			}
+			default: {
+				CharSequence cs = (CharSequence) src;
+				int c = off + pos;
+				return cs.charAt(c) | (long) cs.charAt(c + 1) << 8 | (long) cs.charAt(c + 2) << 16
+						| (long) cs.charAt(c + 3) << 24 | (long) cs.charAt(c + 4) << 32 | (long) cs.charAt(c + 5) << 40
+						| (long) cs.charAt(c + 6) << 48 | (long) cs.charAt(c + 7) << 56;
+			}
+			}
+		}
+
+		private static byte readByte(Object src, int kind, int off, int pos) {
+			switch (kind) {
+			case ARRAY:
+				return ((byte[]) src)[off + pos];
+			case BUFFER_LE:
+			case BUFFER_BE:
+				return ((ByteBuffer) src).get(off + pos);
+			case UTF16: {
+				char c = ((CharSequence) src).charAt(off + (pos >>> 1));
+				return (byte) ((pos & 1) == 0 ? c : c >>> 8);
+			}
+			default:
+				return (byte) ((CharSequence) src).charAt(off + pos);
+			}
 		}
 
 		@Override
 		protected void update(byte b) {
-			if(baIndex == ba.length) expand();
-			ba[baIndex++] = b;
+			stripe[stripeLen++] = b;
+			totalLen++;
+			if (stripeLen == STRIPE) {
+				consumeStripe();
+			}
+		}
+
+		@Override
+		protected void update(byte[] b, int off, int len) {
+			totalLen += len;
+			if (stripeLen > 0) {
+				int n = Math.min(len, STRIPE - stripeLen);
+				System.arraycopy(b, off, stripe, stripeLen, n);
+				stripeLen += n;
+				off += n;
+				len -= n;
+				if (stripeLen < STRIPE) {
+					return;
+				}
+				consumeStripe();
+			}
+			for (; len >= STRIPE; off += STRIPE, len -= STRIPE) {
+				v1 = round(v1, readLongLE(b, off));
+				v2 = round(v2, readLongLE(b, off + 8));
+				v3 = round(v3, readLongLE(b, off + 16));
+				v4 = round(v4, readLongLE(b, off + 24));
+			}
+			System.arraycopy(b, off, stripe, 0, len);
+			stripeLen = len;
 		}
 		
-	  @Override
-	  public Hasher putInt(int value) {
-		if(baIndex+3 >=ba.length) expand();
-	    ba[baIndex+3] = (byte)(value >>> 24);
-	    ba[baIndex+2] = (byte)(value >>> 16);
-	    ba[baIndex+1] = (byte)(value >>> 8);
-	    ba[baIndex] =(byte)value;
-	    baIndex+=4;
-	    return this;
-	  }
-
-	  @Override
-	  public Hasher putLong(long value) {
-		if(baIndex+7 >=ba.length) expand();
-	  	ba[baIndex+7] =  (byte)(value >>> 56);
-	  	ba[baIndex+6] =  (byte)(value >>> 48);
-	  	ba[baIndex+5] =  (byte)(value >>> 40);
-	  	ba[baIndex+4] =  (byte)(value >>> 32);
-	  	ba[baIndex+3] =  (byte)(value >>> 24);
-	  	ba[baIndex+2] =  (byte)(value >>> 16);
-	  	ba[baIndex+1] =  (byte)(value >>> 8);
-	  	ba[baIndex] =  (byte)value;
-	  	baIndex+=8;
-	    return this;
-	  }
-	  
-	  private void expand() {
-		  	byte[] newBa = new byte[ba.length*2];
-			for(int i=ba.length-1; i>=0; i--) newBa[i] = ba[i];
-			baIndex = ba.length;
-			ba = newBa;
-	  }
+		@Override
+		public Hasher putInt(int value) {
+			if (stripeLen > STRIPE - 4) {
+				for (int i = 0; i < 4; i++) {
+					update((byte) (value >>> (i * 8)));
+				}
+				return this;
+			}
+			stripe[stripeLen + 3] = (byte) (value >>> 24);
+			stripe[stripeLen + 2] = (byte) (value >>> 16);
+			stripe[stripeLen + 1] = (byte) (value >>> 8);
+			stripe[stripeLen] = (byte) value;
+			stripeLen += 4;
+			totalLen += 4;
+			if (stripeLen == STRIPE) {
+				consumeStripe();
+			}
+			return this;
+		}
+
+		@Override
+		public Hasher putLong(long value) {
+			if (stripeLen > STRIPE - 8) {
+				for (int i = 0; i < 8; i++) {
+					update((byte) (value >>> (i * 8)));
+				}
+				return this;
+			}
+			stripe[stripeLen + 7] = (byte) (value >>> 56);
+			stripe[stripeLen + 6] = (byte) (value >>> 48);
+			stripe[stripeLen + 5] = (byte) (value >>> 40);
+			stripe[stripeLen + 4] = (byte) (value >>> 32);
+			stripe[stripeLen + 3] = (byte) (value >>> 24);
+			stripe[stripeLen + 2] = (byte) (value >>> 16);
+			stripe[stripeLen + 1] = (byte) (value >>> 8);
+			stripe[stripeLen] = (byte) value;
+			stripeLen += 8;
+			totalLen += 8;
+			if (stripeLen == STRIPE) {
+				consumeStripe();
+			}
+			return this;
+		}
+
+		private void consumeStripe() {
+			v1 = round(v1, readLongLE(stripe, 0));
+			v2 = round(v2, readLongLE(stripe, 8));
+			v3 = round(v3, readLongLE(stripe, 16));
+			v4 = round(v4, readLongLE(stripe, 24));
+			stripeLen = 0;
+		}
+
+		private static long round(long acc, long input) {
+			acc += input * PRIME64_2;
+			acc = Long.rotateLeft(acc, 31);
+			return acc * PRIME64_1;
+		}
+
+		private static long mergeRound(long h64, long v) {
+			h64 ^= round(0, v);
+			return h64 * PRIME64_1 + PRIME64_4;
+		}
 		
 		private static long readLongLE(byte[] buf, int i) {
 	        return (buf[i] & 0xFFL) | ((buf[i+1] & 0xFFL) << 8) | ((buf[i+2] & 0xFFL) << 16) | ((buf[i+3] & 0xFFL) << 24)
@@ -90,80 +306,11 @@ public class xxHashFunction extends AbstractStreamingHashFunction implements Ser
 		private static int readIntLE(byte[] buf, int i) {
 		        return (buf[i] & 0xFF) | ((buf[i+1] & 0xFF) << 8) | ((buf[i+2] & 0xFF) << 16) | ((buf[i+3] & 0xFF) << 24);
 		}
-	    
-		
-		 /**
-	     * <p>
-	     * Calculates XXHash64 from given {@code byte[]} buffer.
-	     * </p><p>
-	     * This code comes from <a href="https://github.com/jpountz/lz4-java">LZ4-Java</a> created
-	     * by Adrien Grand.
-	     * </p>
-	     *
-	     * @param buf to calculate hash from
-	     * @param off offset to start calculation from
-	     * @param len length of data to calculate hash
-	     * @param seed  hash seed
-	     * @return XXHash.
-	     */
-	    private static long hash(byte[] buf, int off, int len, long seed) {
-	        if (len < 0) {
-	            throw new IllegalArgumentException("lengths must be >= 0");
-	        }
-	        if(off<0 || off>=buf.length || off+len<0 || off+len>buf.length){
-	            throw new IndexOutOfBoundsException();
-	        }
-
-	        final int end = off + len;
-	        long h64;
-
-	        if (len >= 32) {
-	            final int limit = end - 32;
-	            long v1 = seed + PRIME64_1 + PRIME64_2;
-	            long v2 = seed + PRIME64_2;
-	            long v3 = seed + 0;
-	            long v4 = seed - PRIME64_1;
-	            do {
-	                v1 += readLongLE(buf, off) * PRIME64_2;
-	                v1 = Long.rotateLeft(v1, 31);
-	                v1 *= PRIME64_1;
-	                off += 8;
-
-	                v2 += readLongLE(buf, off) * PRIME64_2;
-	                v2 = Long.rotateLeft(v2, 31);
-	                v2 *= PRIME64_1;
-	                off += 8;
-
-	                v3 += readLongLE(buf, off) * PRIME64_2;
-	                v3 = Long.rotateLeft(v3, 31);
-	                v3 *= PRIME64_1;
-	                off += 8;
-
-	                v4 += readLongLE(buf, off) * PRIME64_2;
-	                v4 = Long.rotateLeft(v4, 31);
-	                v4 *= PRIME64_1;
-	                off += 8;
-	            } while (off <= limit);
-
-	            h64 = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
-
-	            v1 *= PRIME64_2; v1 = Long.rotateLeft(v1, 31); v1 *= PRIME64_1; h64 ^= v1;
-	            h64 = h64 * PRIME64_1 + PRIME64_4;
-
-	            v2 *= PRIME64_2; v2 = Long.rotateLeft(v2, 31); v2 *= PRIME64_1; h64 ^= v2;
-	            h64 = h64 * PRIME64_1 + PRIME64_4;
-
-	            v3 *= PRIME64_2; v3 = Long.rotateLeft(v3, 31); v3 *= PRIME64_1; h64 ^= v3;
-	            h64 = h64 * PRIME64_1 + PRIME64_4;
-
-	            v4 *= PRIME64_2; v4 = Long.rotateLeft(v4, 31); v4 *= PRIME64_1; h64 ^= v4;
-	            h64 = h64 * PRIME64_1 + PRIME64_4;
-	        } else {
-	            h64 = seed + PRIME64_5;
-	        }
-
-	        h64 += len;
 
+	    /**
+	     * Mixes in the last bytes, fewer than 32, and avalanches.
+	     */
+	    private static long finish(long h64, byte[] buf, int off, int end) {
 	        while (off <= end - 8) {
 	            long k1 = readLongLE(buf, off);
 	            k1 *= PRIME64_2; k1 = Long.rotateLeft(k1, 31); k1 *= PRIME64_1; h64 ^= k1;
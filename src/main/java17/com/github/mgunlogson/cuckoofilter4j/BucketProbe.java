@@ -0,0 +1,81 @@
+package com.github.mgunlogson.cuckoofilter4j;
+
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Java 17+ version of the class in src/main/java, picked from the
+ * multi-release JAR. With {@code jdk.incubator.vector} in the boot layer the
+ * slots of both buckets are compared against the tag a vector at a time, one
+ * compare per lookup with 512 bit vectors. Without it, e.g. when the JVM
+ * wasn't started with {@code --add-modules jdk.incubator.vector}, the Java 8
+ * loops are used and the vector classes are never loaded.
+ */
+final class BucketProbe {
+
+    static final int PROBE_SLOTS = 2 * CountingCuckooFilter.BUCKET_SIZE;
+
+    private static final boolean VECTORIZED = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+    private BucketProbe() {
+    }
+
+    static boolean isVectorized() {
+        return VECTORIZED;
+    }
+
+    static boolean contains(long[] slots, int at, long tag) {
+        return VECTORIZED ? VectorProbe.contains(slots, at, tag) : scalarContains(slots, at, tag);
+    }
+
+    static void containsAll(long[] slots, long[] tags, int n, boolean[] out, int outAt) {
+        if (VECTORIZED) {
+            VectorProbe.containsAll(slots, tags, n, out, outAt);
+        } else {
+            scalarContainsAll(slots, tags, n, out, outAt);
+        }
+    }
+
+    static void scalarContainsAll(long[] slots, long[] tags, int n, boolean[] out, int outAt) {
+        for (int i = 0; i < n; i++) {
+            out[outAt + i] = scalarContains(slots, i * PROBE_SLOTS, tags[i]);
+        }
+    }
+
+    static boolean scalarContains(long[] slots, int at, long tag) {
+        for (int i = at; i < at + PROBE_SLOTS; i++) {
+            if (slots[i] == tag) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Only touched when the module is present, so its linkage to the
+     * incubator classes can't fail.
+     */
+    static final class VectorProbe {
+        // 1, 2, 4 or 8 lanes up to 512 bit vectors, all of which divide
+        // PROBE_SLOTS. Wider SVE vectors (up to 2048 bits) would read past
+        // the lookup, so those use 512 bits.
+        static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED.length() > PROBE_SLOTS
+                ? LongVector.SPECIES_512 : LongVector.SPECIES_PREFERRED;
+
+        static boolean contains(long[] slots, int at, long tag) {
+            LongVector t = LongVector.broadcast(SPECIES, tag);
+            for (int i = 0; i < PROBE_SLOTS; i += SPECIES.length()) {
+                if (LongVector.fromArray(SPECIES, slots, at + i).eq(t).anyTrue()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        static void containsAll(long[] slots, long[] tags, int n, boolean[] out, int outAt) {
+            for (int i = 0; i < n; i++) {
+                out[outAt + i] = contains(slots, i * PROBE_SLOTS, tags[i]);
+            }
+        }
+    }
+}
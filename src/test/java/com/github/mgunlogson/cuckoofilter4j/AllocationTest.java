@@ -0,0 +1,59 @@
+package com.github.mgunlogson.cuckoofilter4j;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Test;
+
+import com.google.common.hash.Funnels;
+
+/**
+ * Bytes allocated on the calling thread per steady-state lookup and per
+ * insert that doesn't need to kick anything, with the default hasher. Both
+ * should be 0 once the JIT has warmed up; the bound leaves room for the odd
+ * allocation from the JVM itself.
+ */
+public class AllocationTest {
+
+    private static final int N = 200000;
+    private static final double MAX_BYTES_PER_OP = 0.5;
+
+    @Test
+    public void mightContainAndPutDontAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        long tid = Thread.currentThread().getId();
+        // box the keys up front so autoboxing doesn't show up in the numbers
+        Integer[] keys = new Integer[12 * N];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i;
+        }
+        // distinct keys into a lightly loaded filter never need a kick
+        CountingCuckooFilter<Integer> filter = new CountingCuckooFilter.Builder<>(Funnels.integerFunnel(), 48 * N)
+                .build();
+        for (int round = 0; round < 10; round++) {
+            for (int i = round * N; i < (round + 1) * N; i++) {
+                filter.put(keys[i]);
+                filter.mightContain(keys[i]);
+            }
+        }
+
+        long before = threads.getThreadAllocatedBytes(tid);
+        for (int i = 0; i < N; i++) {
+            filter.mightContain(keys[i]);
+        }
+        double lookup = (threads.getThreadAllocatedBytes(tid) - before) / (double) N;
+        assertTrue("mightContain B/op: " + lookup, lookup <= MAX_BYTES_PER_OP);
+
+        before = threads.getThreadAllocatedBytes(tid);
+        for (int i = 10 * N; i < 11 * N; i++) {
+            filter.put(keys[i]);
+        }
+        double insert = (threads.getThreadAllocatedBytes(tid) - before) / (double) N;
+        assertTrue("put B/op: " + insert, insert <= MAX_BYTES_PER_OP);
+    }
+}
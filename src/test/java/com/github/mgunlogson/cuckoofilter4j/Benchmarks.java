@@ -0,0 +1,107 @@
+package com.github.mgunlogson.cuckoofilter4j;
+
+import com.google.common.hash.Funnels;
+
+/**
+ * Timing runs kept out of the production sources. They print their numbers
+ * and assert nothing; run the main method from the test classpath.
+ */
+public class Benchmarks {
+
+    public static void main(String[] args) {
+        hashBenchmark();
+        cacheLineBenchmark();
+    }
+
+    /**
+     * ns per hash for each algorithm, on long keys through the funnel and on
+     * 8, 16 and 32 byte keys through the byte[] path. Picks the defaults in
+     * SerializableSaltedHasher.create(int, Funnel).
+     */
+    static void hashBenchmark() {
+        int n = 1 << 20;
+        Utils.Algorithm[] algs = {Utils.Algorithm.Murmur3_32, Utils.Algorithm.Murmur3_128, Utils.Algorithm.sipHash24,
+                Utils.Algorithm.xxHash64, Utils.Algorithm.XXH3_64, Utils.Algorithm.XXH3_128, Utils.Algorithm.wyhash};
+        Long[] longs = new Long[n];
+        byte[] bytes = new byte[n + 32];
+        java.util.Random random = new java.util.Random(1);
+        for (int i = 0; i < n; i++) {
+            longs[i] = random.nextLong();
+        }
+        random.nextBytes(bytes);
+        for (int round = 0; round < 3; round++) {
+            for (Utils.Algorithm alg : algs) {
+                SerializableSaltedHasher<Long> hasher = SerializableSaltedHasher.create(alg, Funnels.longFunnel());
+                StringBuilder line = new StringBuilder(String.format("%-12s", alg));
+                long sink = 0;
+                long st = System.nanoTime();
+                for (int i = 0; i < n; i++) {
+                    sink += hasher.codeBitSize() == 32 ? hasher.hashObjInt(longs[i]) : hasher.hashObjLong(longs[i]);
+                }
+                line.append(String.format(" long %5.1f", (System.nanoTime() - st) / (double) n));
+                for (int len = 8; len <= 32; len *= 2) {
+                    st = System.nanoTime();
+                    for (int i = 0; i < n; i++) {
+                        sink += hasher.codeBitSize() == 32 ? hasher.hashBytesInt(bytes, null, i, len)
+                                : hasher.hashBytesLong(bytes, null, i, len);
+                    }
+                    line.append(String.format(" %dB %5.1f", len, (System.nanoTime() - st) / (double) n));
+                }
+                System.out.println(line + (sink == 42 ? " " : ""));
+            }
+        }
+    }
+
+    /**
+     * Packed vs cache-line-blocked buckets at 7, 11 and 13 bit tags:
+     * ns per mightContain miss on a table much bigger than the caches, and
+     * the cache lines a miss reads, counted from the layout for random bucket
+     * pairs (the array assumed to start on a line). For measured misses per
+     * op run this under perf stat -e cache-misses and divide by the lookups.
+     */
+    static void cacheLineBenchmark() {
+        int n = 1 << 23;
+        Integer[] keys = new Integer[2 * n];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i;
+        }
+        java.util.Random random = new java.util.Random(1);
+        for (double fpp : new double[] {0.015, 0.001, 0.0002}) {
+            for (int round = 0; round < 2; round++) {
+                for (boolean blocked : new boolean[] {false, true}) {
+                    CountingCuckooFilter.Builder<Integer> builder = new CountingCuckooFilter.Builder<>(
+                            Funnels.integerFunnel(), n).withFalsePositiveRate(fpp);
+                    if (blocked) {
+                        builder.withCacheLineBlockedBuckets(0.25);
+                    }
+                    CountingCuckooFilter<Integer> filter = builder.build();
+                    for (int i = 0; i < n * 9 / 10; i++) {
+                        filter.put(keys[i]);
+                    }
+                    FilterTable table = filter.table;
+                    long lines = 0;
+                    for (int i = 0; i < n; i++) {
+                        long i1 = Math.floorMod(random.nextLong(), table.numBuckets);
+                        long i2 = Math.floorMod(random.nextLong(), table.numBuckets);
+                        lines += linesRead(table, i1) + linesRead(table, i2);
+                    }
+                    long sink = 0;
+                    long st = System.nanoTime();
+                    for (int i = n; i < 2 * n; i++) {
+                        sink += filter.mightContain(keys[i]) ? 1 : 0;
+                    }
+                    System.out.println(String.format("tagBits %2d %-7s ns/op %5.1f lines/op %.3f MB %6.1f %s",
+                            table.bitsPerTag, blocked ? "blocked" : "packed", (System.nanoTime() - st) / (double) n,
+                            lines / (double) n, filter.getStorageSize() / 8e6, sink == -1 ? " " : ""));
+                }
+            }
+        }
+    }
+
+    private static long linesRead(FilterTable table, long bucket) {
+        long lineBits = FilterTable.CACHE_LINE_BYTES * 8;
+        long start = table.bucketOffset(bucket) + RamUsageEstimator.NUM_BYTES_ARRAY_HEADER * 8L;
+        long end = start + CountingCuckooFilter.BUCKET_SIZE * table.bitsPerTag - 1;
+        return end / lineBits - start / lineBits + 1;
+    }
+}
@@ -0,0 +1,370 @@
+package com.github.mgunlogson.cuckoofilter4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Test;
+
+import com.google.common.hash.Funnels;
+
+public class CountingCuckooFilterTest {
+
+    /**
+     * Fills a small filter and adds many copies of a key that already has a
+     * few. The buckets can't take them, but the copies already in the table
+     * must stay there while the rest is relocated.
+     */
+    @Test
+    public void addToFullFilterKeepsExistingCopies() {
+        int trials = 0;
+        for (int t = 0; t < 100; t++) {
+            CountingCuckooFilter<Integer> filter = new CountingCuckooFilter.Builder<>(Funnels.integerFunnel(), 64)
+                    .build();
+            int k = 0;
+            while (k < 1000 && filter.put(t * 100000 + k)) {
+                k++;
+            }
+            int key = t * 100000 + k / 2;
+            long before = filter.count(key);
+            if (before < 1 || before > 3) {
+                continue;
+            }
+            trials++;
+            filter.add(key, 50);
+            assertTrue(filter.mightContain(key));
+            assertTrue(filter.count(key) >= before);
+        }
+        assertTrue(trials > 50);
+    }
+
+    /**
+     * The put that crosses the aging period only starts the pass; the puts
+     * after it finish it, one step of buckets each.
+     */
+    @Test
+    public void agingPassIsSpreadOverPuts() {
+        int period = 1000;
+        CountingCuckooFilter<Integer> filter = new CountingCuckooFilter.Builder<>(Funnels.integerFunnel(), 100000)
+                .withAgingPeriod(period).build();
+        long steps = (filter.hasher.getNumBuckets() + CountingCuckooFilter.AGING_STEP_BUCKETS - 1)
+                / CountingCuckooFilter.AGING_STEP_BUCKETS;
+        assertTrue(steps > 1 && steps < period);
+        int hot = -1;
+        filter.add(hot, 40);
+        int key = 0;
+        while (key < period - 40) {
+            filter.put(key++);
+        }
+        // the pass has started but can't have covered the table yet
+        assertTrue(filter.getCount() > period / 2);
+        for (long i = 1; i < steps; i++) {
+            filter.put(key++);
+        }
+        assertEquals(20, filter.count(hot));
+    }
+
+    /**
+     * Copies waiting in the holding area for background relocation count
+     * towards the limit. The relocation tasks are never run here, so the held
+     * key stays held.
+     */
+    @Test
+    public void limitCountsHeldCopies() {
+        List<Runnable> parked = new ArrayList<>();
+        CountingCuckooFilter<Integer> filter = new CountingCuckooFilter.Builder<>(Funnels.integerFunnel(), 64)
+                .withBoundedInsert(0, parked::add).build();
+        int held = fillUntilHeld(filter, parked);
+        long n = filter.count(held);
+        assertTrue(n >= 1);
+        assertFalse(filter.putIfAbsent(held));
+        assertFalse(filter.incrementIfBelow(held, n));
+        assertEquals(n, filter.count(held));
+        assertTrue(filter.incrementIfBelow(held, n + 1));
+        assertEquals(n + 1, filter.count(held));
+        // free the table so new copies go into a tagBox, which must not take
+        // in the held ones. A deleted key with the same tag and buckets takes
+        // one of the held key's copies, so count again.
+        for (int k = 0; k < held; k++) {
+            filter.delete(k);
+        }
+        n = filter.count(held);
+        for (long expected = n + 1; expected < n + 7; expected++) {
+            assertTrue(filter.incrementIfBelow(held, expected));
+            assertEquals(expected, filter.count(held));
+        }
+        long total = filter.count(held);
+        parked.remove(0).run();
+        assertEquals(total, filter.count(held));
+    }
+
+    @Test
+    public void putAndGetCountIncludesHeldCopies() {
+        List<Runnable> parked = new ArrayList<>();
+        CountingCuckooFilter<Integer> filter = new CountingCuckooFilter.Builder<>(Funnels.integerFunnel(), 64)
+                .withBoundedInsert(0, parked::add).build();
+        int held = fillUntilHeld(filter, parked);
+        for (int k = 0; k < held; k++) {
+            filter.delete(k);
+        }
+        long n = filter.count(held);
+        for (long expected = n + 1; expected < n + 8; expected++) {
+            assertEquals(expected, filter.putAndGetCount(held));
+        }
+        long total = filter.count(held);
+        parked.remove(0).run();
+        assertEquals(total, filter.count(held));
+        assertEquals(total + 1, filter.putAndGetCount(held));
+    }
+
+    /**
+     * Lookups find held keys while they wait, while another thread keeps
+     * looking them up during the relocation, and after they were moved into
+     * the table.
+     */
+    @Test
+    public void heldKeysAreFoundDuringAndAfterRelocation() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            List<Runnable> parked = new ArrayList<>();
+            CountingCuckooFilter<Integer> filter = new CountingCuckooFilter.Builder<>(Funnels.integerFunnel(), 64)
+                    .withBoundedInsert(0, parked::add).build();
+            int held = fillUntilHeld(filter, parked);
+            assertTrue(filter.holding.size() > 0);
+            // make room for the relocation
+            int from = held / 2;
+            for (int k = 0; k < from; k++) {
+                filter.delete(k);
+            }
+            Integer[] keys = new Integer[held + 1 - from];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = from + i;
+            }
+            assertEquals(0, misses(filter, keys));
+            AtomicBoolean done = new AtomicBoolean();
+            AtomicInteger misses = new AtomicInteger();
+            CountDownLatch started = new CountDownLatch(1);
+            Thread reader = new Thread(() -> {
+                started.countDown();
+                do {
+                    misses.addAndGet(misses(filter, keys));
+                } while (!done.get());
+            });
+            reader.start();
+            started.await();
+            parked.remove(0).run();
+            done.set(true);
+            reader.join();
+            assertEquals(0, misses.get());
+            assertEquals(0, filter.holding.size());
+            assertEquals(0, filter.getVictimCount());
+            assertEquals(0, misses(filter, keys));
+        }
+    }
+
+    private static int misses(CountingCuckooFilter<Integer> filter, Integer[] keys) {
+        int misses = 0;
+        for (Integer key : keys) {
+            if (!filter.mightContain(key)) {
+                misses++;
+            }
+        }
+        boolean[] results = new boolean[keys.length];
+        filter.mightContainAll(keys, results);
+        for (boolean found : results) {
+            if (!found) {
+                misses++;
+            }
+        }
+        return misses;
+    }
+
+    /**
+     * Puts distinct keys until one is held. The first held key schedules the
+     * relocation task, which is never run.
+     */
+    private static int fillUntilHeld(CountingCuckooFilter<Integer> filter, List<Runnable> parked) {
+        for (int k = 0; k < 1000; k++) {
+            filter.put(k);
+            if (!parked.isEmpty()) {
+                return k;
+            }
+        }
+        throw new AssertionError("nothing was held");
+    }
+
+    @Test
+    public void putAndGetCountAndIncrementIfBelowReturnCounts() {
+        CountingCuckooFilter<Integer> filter = new CountingCuckooFilter.Builder<>(Funnels.integerFunnel(), 1000)
+                .build();
+        for (long i = 1; i <= 50; i++) {
+            assertEquals(i, filter.putAndGetCount(1));
+        }
+        assertFalse(filter.incrementIfBelow(2, 0));
+        assertTrue(filter.incrementIfBelow(2, 3));
+        assertTrue(filter.incrementIfBelow(2, 3));
+        assertTrue(filter.incrementIfBelow(2, 3));
+        assertFalse(filter.incrementIfBelow(2, 3));
+        assertEquals(3, filter.count(2));
+        assertTrue(filter.putIfAbsent(3));
+        assertFalse(filter.putIfAbsent(3));
+        assertEquals(1, filter.count(3));
+        assertEquals(54, filter.getCount());
+    }
+
+    /**
+     * Concurrent callers each see a different count, every value from 1 up
+     * exactly once.
+     */
+    @Test
+    public void putAndGetCountHandsOutEachCountOnce() throws Exception {
+        final CountingCuckooFilter<Integer> filter = new CountingCuckooFilter.Builder<>(Funnels.integerFunnel(), 1000)
+                .withFalsePositiveRate(0.0001).build();
+        final int threads = 4;
+        final int calls = 500;
+        final AtomicIntegerArray seen = new AtomicIntegerArray(threads * calls + 1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                for (int i = 0; i < calls; i++) {
+                    seen.incrementAndGet((int) filter.putAndGetCount(7));
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        for (int c = 1; c <= threads * calls; c++) {
+            assertEquals("count " + c, 1, seen.get(c));
+        }
+    }
+
+    @Test
+    public void removeCountsOnlyRealDeletes() {
+        CountingCuckooFilter<Integer> filter = new CountingCuckooFilter.Builder<>(Funnels.integerFunnel(), 1000)
+                .build();
+        filter.add(1, 5);
+        assertEquals(0, filter.remove(1, 0));
+        assertEquals(5, filter.remove(1, 5));
+        assertEquals(0, filter.count(1));
+    }
+
+    /**
+     * Copies beyond the largest count a tagBox holds only show up in the
+     * saturation count, not in the filter's count.
+     */
+    @Test
+    public void saturatedCopiesAreNotCounted() {
+        CountingCuckooFilter<Integer> filter = new CountingCuckooFilter.Builder<>(Funnels.integerFunnel(), 1000)
+                .build();
+        long max = filter.table.getMaxTagCount();
+        filter.add(1, max - 2);
+        filter.add(1, 5);
+        assertEquals(max, filter.count(1));
+        assertEquals(max, filter.getCount());
+        assertEquals(3, filter.getSaturationCount());
+        filter.put(1);
+        filter.add(2, max + 10);
+        assertEquals(2 * max, filter.getCount());
+        assertEquals(14, filter.getSaturationCount());
+        assertEquals(max, filter.removeAll(2));
+        assertEquals(max, filter.getCount());
+    }
+
+    /**
+     * Copies saved as victims aren't in the table, so they aren't counted
+     * either, whether a single put or a batch ran out of room.
+     */
+    @Test
+    public void victimsAreNotCounted() {
+        for (long times : new long[] { 1, 6 }) {
+            CountingCuckooFilter<Integer> filter = new CountingCuckooFilter.Builder<>(Funnels.integerFunnel(), 64)
+                    .build();
+            int k = 0;
+            while (k < 1000 && filter.add(k, times)) {
+                k++;
+            }
+            assertTrue(filter.getVictimCount() > 0);
+            assertEquals(storedCopies(filter), filter.getCount());
+        }
+    }
+
+    /**
+     * Fills filters to capacity with plain tags and tagBoxes, so most puts
+     * near the end need eviction paths. Every copy put before the first
+     * victim must still be counted for its key, and the filter's count must
+     * match the copies put exactly: relocation neither drops nor duplicates
+     * any.
+     */
+    @Test
+    public void fillToCapacityKeepsEveryCopy() {
+        List<CountingCuckooFilter.Builder<Integer>> builders = new ArrayList<>();
+        builders.add(new CountingCuckooFilter.Builder<>(Funnels.integerFunnel(), 20000));
+        builders.add(new CountingCuckooFilter.Builder<>(Funnels.integerFunnel(), 20000).withBoundedInsert(2,
+                Runnable::run));
+        builders.add(new CountingCuckooFilter.Builder<>(Funnels.integerFunnel(), 20000).withSemiSortedBuckets());
+        for (CountingCuckooFilter.Builder<Integer> builder : builders) {
+            CountingCuckooFilter<Integer> filter = builder.withFalsePositiveRate(0.0001).build();
+            long[] copies = new long[100000];
+            long total = 0;
+            int key = 0;
+            for (; key < copies.length; key++) {
+                long n = key % 7 == 0 ? 5 : 1 + key % 2;
+                if (!filter.add(key, n)) {
+                    long lost = 0;
+                    for (long[] victim : filter.victims) {
+                        lost += victim[3];
+                    }
+                    total += n - lost;
+                    break;
+                }
+                copies[key] = n;
+                total += n;
+            }
+            assertTrue(filter.getLoadFactor() > 0.75);
+            assertEquals(total, filter.getCount());
+            assertEquals(total, storedCopies(filter));
+            for (int k = 0; k < key; k++) {
+                assertTrue(filter.count(k) >= copies[k]);
+            }
+            for (int k = 0; k < key; k++) {
+                assertEquals(copies[k], filter.remove(k, copies[k]));
+            }
+            assertEquals(total - sum(copies), filter.getCount());
+        }
+    }
+
+    private static long sum(long[] values) {
+        long sum = 0;
+        for (long v : values) {
+            sum += v;
+        }
+        return sum;
+    }
+
+    // copies in the table, read bucket by bucket
+    private static long storedCopies(CountingCuckooFilter<?> filter) {
+        FilterTable table = filter.table;
+        long copies = 0;
+        for (long b = 0; b < filter.hasher.getNumBuckets(); b++) {
+            int pos = 0;
+            if (table.checkTagBox(b, 0)) {
+                copies += table.countTag(b, b, table.readTag(b, 0));
+                pos = 3;
+            }
+            for (; pos < CountingCuckooFilter.BUCKET_SIZE; pos++) {
+                if (table.readTag(b, pos) != 0) {
+                    copies++;
+                }
+            }
+        }
+        return copies;
+    }
+}
@@ -0,0 +1,98 @@
+package com.github.mgunlogson.cuckoofilter4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class FilterTableTest {
+
+	private static final double[] PADDINGS = { 0, 0.05, 0.1, 0.25, 0.5, 0.99 };
+
+	/**
+	 * With the long[] itself starting on a cache line, every bucket of a
+	 * blocked table lies inside one line, buckets don't overlap and all fit
+	 * in the bit set.
+	 */
+	@Test
+	public void blockedBucketsNeverCrossALine() {
+		long lineBits = FilterTable.CACHE_LINE_BYTES * Byte.SIZE;
+		long headerBits = RamUsageEstimator.NUM_BYTES_ARRAY_HEADER * (long) Byte.SIZE;
+		for (int bitsPerTag = 5; bitsPerTag < 48; bitsPerTag++) {
+			long bucketBits = CountingCuckooFilter.BUCKET_SIZE * (long) bitsPerTag;
+			for (double maxPadding : PADDINGS) {
+				if (FilterTable.blockBitsFor(bitsPerTag, maxPadding) == 0) {
+					continue;
+				}
+				for (long numBuckets : new long[] { 2, 3, 1001, 4096 }) {
+					String at = "tagBits " + bitsPerTag + " maxPadding " + maxPadding + " buckets " + numBuckets;
+					FilterTable table = FilterTable.createBlocked(bitsPerTag, numBuckets, maxPadding);
+					long previousEnd = 0;
+					for (long b = 0; b < numBuckets; b++) {
+						long start = table.bucketOffset(b);
+						long end = start + bucketBits;
+						assertTrue(at, start >= previousEnd);
+						assertTrue(at, end <= table.memBlock.length());
+						assertEquals(at + " bucket " + b, (headerBits + start) / lineBits,
+								(headerBits + end - 1) / lineBits);
+						previousEnd = end;
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void blockSizeRespectsMaxPadding() {
+		for (int bitsPerTag = 5; bitsPerTag < 48; bitsPerTag++) {
+			int bucketBits = CountingCuckooFilter.BUCKET_SIZE * bitsPerTag;
+			for (double maxPadding : PADDINGS) {
+				int block = FilterTable.blockBitsFor(bitsPerTag, maxPadding);
+				if (block == 0) {
+					continue;
+				}
+				assertEquals(0, block & (block - 1));
+				assertTrue(block >= Long.SIZE && block <= FilterTable.CACHE_LINE_BYTES * Byte.SIZE);
+				assertTrue(block >= bucketBits);
+				assertTrue(block % bucketBits <= maxPadding * block);
+			}
+		}
+	}
+
+	/**
+	 * A blocked table only moves buckets around: the same operations give
+	 * the same slots as in a packed table.
+	 */
+	@Test
+	public void blockedTableMatchesPacked() {
+		for (int bitsPerTag : new int[] { 5, 7, 11, 13, 16, 21, 29 }) {
+			Random random = new Random(bitsPerTag);
+			int numBuckets = 300;
+			FilterTable packed = FilterTable.create(bitsPerTag, numBuckets);
+			FilterTable blocked = FilterTable.createBlocked(bitsPerTag, numBuckets, 0.5);
+			for (int step = 0; step < 20000; step++) {
+				long b = random.nextInt(numBuckets);
+				long tag = 1 + random.nextInt((int) Math.min(50, (1L << bitsPerTag) - 1));
+				String at = "tagBits " + bitsPerTag + " step " + step;
+				switch (random.nextInt(4)) {
+				case 0:
+				case 1:
+					assertEquals(at, packed.insertTagToBucket(b, tag), blocked.insertTagToBucket(b, tag));
+					break;
+				case 2:
+					assertEquals(at, packed.deleteFromBucket(b, tag), blocked.deleteFromBucket(b, tag));
+					break;
+				default:
+					assertEquals(at, packed.insertTagBoxToBucket(b, tag, 5), blocked.insertTagBoxToBucket(b, tag, 5));
+				}
+				for (int i = 0; i < CountingCuckooFilter.BUCKET_SIZE; i++) {
+					assertEquals(at, packed.readTag(b, i), blocked.readTag(b, i));
+				}
+				assertEquals(at, packed.countTag(b, (b + 1) % numBuckets, tag),
+						blocked.countTag(b, (b + 1) % numBuckets, tag));
+			}
+		}
+	}
+}
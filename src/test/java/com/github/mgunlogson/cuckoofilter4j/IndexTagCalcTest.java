@@ -0,0 +1,334 @@
+package com.github.mgunlogson.cuckoofilter4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.github.mgunlogson.cuckoofilter4j.Utils.Algorithm;
+import com.google.common.hash.Funnel;
+import com.google.common.hash.Funnels;
+
+public class IndexTagCalcTest {
+
+	private static final long[] SIZES = { 2, 3, 7, 64, 100, 1000, 1023, 1 << 20, (1 << 20) + 1, 3000000007L,
+			(1L << 40) - 3, 1L << 40 };
+	// on both sides of a long and of a 32 byte stripe
+	private static final int[] BYTE_KEY_LENGTHS = { 0, 1, 7, 8, 9, 31, 32, 33, 64, 100 };
+
+	@Test
+	public void altIndexIsInvolutionInRange() {
+		Random random = new Random(47);
+		for (long numBuckets : SIZES) {
+			for (int tagBits : new int[] { 5, 8, 13, 31 }) {
+				IndexTagCalc<Integer> calc = IndexTagCalc.create(Funnels.integerFunnel(), numBuckets, tagBits);
+				for (int k = 0; k < 20000; k++) {
+					long i = (random.nextLong() >>> 1) % numBuckets;
+					long tag = 1 + (random.nextLong() >>> 1) % ((1L << tagBits) - 1);
+					long alt = calc.altIndex(i, tag);
+					assertTrue(numBuckets + " " + alt, alt >= 0 && alt < numBuckets);
+					assertEquals(numBuckets + " " + i + " " + tag, i, calc.altIndex(alt, tag));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void generatedIndexesAndTagsAreInRange() {
+		OpScratch scratch = OpScratch.get();
+		Random random = new Random(48);
+		for (long numBuckets : SIZES) {
+			int tagBits = 11;
+			IndexTagCalc<Integer> calc = IndexTagCalc.create(Funnels.integerFunnel(), numBuckets, tagBits);
+			for (int k = 0; k < 20000; k++) {
+				calc.generate(k, scratch);
+				assertInRange(numBuckets, tagBits, scratch);
+				calc.generateFromHash(random.nextLong(), scratch);
+				assertInRange(numBuckets, tagBits, scratch);
+				calc.generateFromHash(random.nextLong(), random.nextLong(), scratch);
+				assertInRange(numBuckets, tagBits, scratch);
+			}
+		}
+	}
+
+	/**
+	 * Indexes of a table that isn't a power of two must still spread over
+	 * every bucket, not just a prefix of them.
+	 */
+	@Test
+	public void indexesCoverNonPowerOfTwoTable() {
+		long numBuckets = 1000;
+		IndexTagCalc<Integer> calc = IndexTagCalc.create(Funnels.integerFunnel(), numBuckets, 8);
+		OpScratch scratch = OpScratch.get();
+		int[] hits = new int[(int) numBuckets];
+		for (int k = 0; k < 200000; k++) {
+			calc.generate(k, scratch);
+			hits[(int) scratch.index]++;
+		}
+		for (int h : hits) {
+			assertTrue(h > 100 && h < 320);
+		}
+	}
+
+	@Test
+	public void exactSizeFilterFindsEveryKey() {
+		CountingCuckooFilter<Integer> filter = new CountingCuckooFilter.Builder<>(Funnels.integerFunnel(), 10000)
+				.withExactSize().build();
+		assertTrue(Long.bitCount(filter.hasher.getNumBuckets()) > 1);
+		for (int i = 0; i < 9000; i++) {
+			assertTrue(filter.put(i));
+		}
+		for (int i = 0; i < 9000; i++) {
+			assertTrue(filter.mightContain(i));
+			assertTrue(filter.delete(i));
+		}
+		assertEquals(0, filter.getCount());
+	}
+
+	/**
+	 * Raw byte keys, in an array or a buffer, get the index and tag the byte
+	 * array funnel gives a copy of them, with every hash.
+	 */
+	@Test
+	public void bytesArePlacedLikeTheFunnel() {
+		OpScratch scratch = OpScratch.get();
+		Random random = new Random(49);
+		for (Algorithm alg : Algorithm.values()) {
+			IndexTagCalc<byte[]> calc = IndexTagCalc.create(alg, Funnels.byteArrayFunnel(), 1000, 11);
+			for (int len : BYTE_KEY_LENGTHS) {
+				for (int off : new int[] { 0, 3 }) {
+					byte[] array = new byte[off + len + 2];
+					random.nextBytes(array);
+					calc.generate(Arrays.copyOfRange(array, off, off + len), scratch);
+					long index = scratch.index;
+					long tag = scratch.tag;
+					String at = alg + " len " + len + " off " + off;
+					calc.generate(array, null, off, len, scratch);
+					assertEquals(at, index, scratch.index);
+					assertEquals(at, tag, scratch.tag);
+					for (ByteBuffer buffer : byteBuffers(array)) {
+						calc.generate(null, buffer, off, len, scratch);
+						assertEquals(at + " " + buffer + " " + buffer.order(), index, scratch.index);
+						assertEquals(at + " " + buffer + " " + buffer.order(), tag, scratch.tag);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Keys put into a byte array filter through any of its byte overloads are
+	 * found through all of them, with the same count, and the buffers keep
+	 * their position, limit and order.
+	 */
+	@Test
+	public void filterFindsBytesThroughEveryOverload() {
+		for (Algorithm alg : Algorithm.values()) {
+			CountingCuckooFilter<byte[]> filter = new CountingCuckooFilter.Builder<>(Funnels.byteArrayFunnel(), 2000)
+					.withHashAlgorithm(alg).build();
+			Random random = new Random(50);
+			List<byte[]> keys = new ArrayList<>();
+			for (int i = 0; i < 300; i++) {
+				byte[] array = new byte[3 + BYTE_KEY_LENGTHS[i % BYTE_KEY_LENGTHS.length] + 2];
+				random.nextBytes(array);
+				List<ByteBuffer> buffers = byteBuffers(array);
+				byte[] key = Arrays.copyOfRange(array, 3, array.length - 2);
+				keys.add(array);
+				switch (i % 3) {
+				case 0:
+					assertTrue(filter.put(key));
+					break;
+				case 1:
+					assertTrue(filter.put(array, 3, key.length));
+					break;
+				default:
+					assertTrue(filter.put(buffers.get(i % buffers.size()), 3, key.length));
+				}
+			}
+			for (byte[] array : keys) {
+				int len = array.length - 5;
+				String at = alg + " len " + len;
+				long count = filter.count(Arrays.copyOfRange(array, 3, 3 + len));
+				assertTrue(at, count >= 1);
+				assertTrue(at, filter.mightContain(array, 3, len));
+				assertEquals(at, count, filter.count(array, 3, len));
+				for (ByteBuffer buffer : byteBuffers(array)) {
+					int position = buffer.position();
+					int limit = buffer.limit();
+					ByteOrder order = buffer.order();
+					assertTrue(at, filter.mightContain(buffer, 3, len));
+					assertEquals(at, count, filter.count(buffer, 3, len));
+					assertEquals(at, position, buffer.position());
+					assertEquals(at, limit, buffer.limit());
+					assertEquals(at, order, buffer.order());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Heap, direct and sliced direct buffers holding array at the same
+	 * indexes, in both byte orders, with position and limit moved off their
+	 * defaults but still past every key.
+	 */
+	private static List<ByteBuffer> byteBuffers(byte[] array) {
+		List<ByteBuffer> buffers = new ArrayList<>();
+		for (ByteOrder order : new ByteOrder[] { ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN }) {
+			ByteBuffer direct = ByteBuffer.allocateDirect(array.length);
+			direct.put(array);
+			ByteBuffer larger = ByteBuffer.allocateDirect(array.length + 7);
+			larger.position(7);
+			larger.put(array);
+			larger.position(7);
+			for (ByteBuffer buffer : new ByteBuffer[] { ByteBuffer.wrap(array), direct, larger.slice() }) {
+				buffer.order(order);
+				buffer.limit(array.length - 1);
+				buffer.position(1);
+				buffers.add(buffer);
+			}
+		}
+		return buffers;
+	}
+
+	/**
+	 * Chars are hashed without going through the funnel, so they must get the
+	 * index and tag a funnel putting the same bytes gives them when it isn't
+	 * recognized, with every hash and for CharSequences that aren't Strings.
+	 */
+	@Test
+	public void charsArePlacedLikeTheFunnel() {
+		OpScratch scratch = OpScratch.get();
+		for (Algorithm alg : Algorithm.values()) {
+			for (Funnel<CharSequence> funnel : charFunnels()) {
+				// String keys take generate(T), other CharSequences the chars
+				// overload
+				IndexTagCalc<String> calc = new IndexTagCalc<>(
+						new SerializableSaltedHasher<String>(47, 48, funnel, alg), 1000, 11);
+				IndexTagCalc<String> reference = new IndexTagCalc<>(
+						new SerializableSaltedHasher<String>(47, 48, opaque(funnel), alg), 1000, 11);
+				assertTrue(calc.supportsChars());
+				assertFalse(reference.supportsChars());
+				for (String key : charKeys()) {
+					reference.generate(key, scratch);
+					long index = scratch.index;
+					long tag = scratch.tag;
+					for (CharSequence chars : asCharSequences(key)) {
+						String at = alg + " " + funnel + " " + chars.getClass().getSimpleName() + " \"" + key + "\"";
+						if (chars instanceof String) {
+							calc.generate((String) chars, scratch);
+						} else {
+							calc.generate(chars, scratch);
+						}
+						assertEquals(at, index, scratch.index);
+						assertEquals(at, tag, scratch.tag);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * A filter on a chars funnel stores the same tags in the same buckets as
+	 * one whose funnel isn't recognized, and finds the keys through every
+	 * CharSequence type and the chars methods.
+	 */
+	@Test
+	public void filterPutsCharsLikeTheFunnel() {
+		for (Funnel<CharSequence> funnel : charFunnels()) {
+			CountingCuckooFilter<CharSequence> template = new CountingCuckooFilter.Builder<CharSequence>(funnel,
+					2000).build();
+			long numBuckets = template.hasher.getNumBuckets();
+			int tagBits = template.table.bitsPerTag;
+			CountingCuckooFilter<CharSequence> filter = new CountingCuckooFilter.Builder<CharSequence>(funnel, 2000)
+					.build(new IndexTagCalc<>(new SerializableSaltedHasher<CharSequence>(47, 48, funnel,
+							Algorithm.xxHash64), numBuckets, tagBits));
+			CountingCuckooFilter<CharSequence> reference = new CountingCuckooFilter.Builder<CharSequence>(
+					opaque(funnel), 2000).build(new IndexTagCalc<>(new SerializableSaltedHasher<CharSequence>(47, 48,
+							opaque(funnel), Algorithm.xxHash64), numBuckets, tagBits));
+			List<String> keys = charKeys();
+			for (int i = 0; i < keys.size(); i++) {
+				List<CharSequence> forms = asCharSequences(keys.get(i));
+				assertTrue(filter.put(forms.get(i % forms.size())));
+				assertTrue(reference.put(keys.get(i)));
+			}
+			// few enough keys that nothing is kicked, so the tables match slot
+			// for slot
+			for (long b = 0; b < numBuckets; b++) {
+				for (int i = 0; i < CountingCuckooFilter.BUCKET_SIZE; i++) {
+					assertEquals(funnel + " bucket " + b, reference.table.readTag(b, i), filter.table.readTag(b, i));
+				}
+			}
+			for (String key : keys) {
+				for (CharSequence chars : asCharSequences(key)) {
+					assertTrue(filter.mightContain(chars));
+					assertTrue(filter.mightContainChars(chars));
+					assertEquals(reference.count(key), filter.count(chars));
+				}
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Funnel<CharSequence>[] charFunnels() {
+		return new Funnel[] { Funnels.unencodedCharsFunnel(), Funnels.stringFunnel(StandardCharsets.UTF_8) };
+	}
+
+	// puts the same bytes, but the hasher can't tell which
+	private static Funnel<CharSequence> opaque(Funnel<CharSequence> funnel) {
+		return (from, into) -> funnel.funnel(from, into);
+	}
+
+	/**
+	 * ASCII keys of 0 to 70 chars, around the 8 char steps and the 32 byte
+	 * stripe of both encodings, and the same keys with 2 and 3 byte UTF-8
+	 * chars and a surrogate pair.
+	 */
+	private static List<String> charKeys() {
+		List<String> keys = new ArrayList<>();
+		for (int len = 0; len <= 70; len++) {
+			StringBuilder ascii = new StringBuilder();
+			for (int i = 0; i < len; i++) {
+				ascii.append((char) ('!' + (i * 7 + len) % 94));
+			}
+			keys.add(ascii.toString());
+			if (len > 0) {
+				StringBuilder other = new StringBuilder(ascii);
+				other.setCharAt(len / 2, '\u00e9');
+				keys.add(other.toString());
+				other.setCharAt(len - 1, '\u65e5');
+				keys.add(other.toString());
+			}
+			if (len > 1) {
+				StringBuilder pair = new StringBuilder(ascii);
+				pair.replace(len - 2, len, "\ud83d\ude00");
+				keys.add(pair.toString());
+			}
+		}
+		return keys;
+	}
+
+	private static List<CharSequence> asCharSequences(String key) {
+		List<CharSequence> forms = new ArrayList<>();
+		forms.add(key);
+		forms.add(new StringBuilder(key));
+		forms.add(CharBuffer.wrap(key));
+		// a view into a longer key, starting past its first char
+		forms.add(CharBuffer.wrap("ab" + key + "c", 2, 2 + key.length()));
+		return forms;
+	}
+
+	private static void assertInRange(long numBuckets, int tagBits, OpScratch scratch) {
+		assertTrue(scratch.index >= 0 && scratch.index < numBuckets);
+		assertTrue(scratch.tag > 0 && scratch.tag < 1L << tagBits);
+	}
+}
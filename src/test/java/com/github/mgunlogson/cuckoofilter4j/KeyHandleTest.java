@@ -0,0 +1,142 @@
+package com.github.mgunlogson.cuckoofilter4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.hash.Funnels;
+
+public class KeyHandleTest {
+
+    /**
+     * Handles are placed like their items, so operations through a handle,
+     * reused many times, and through the item can be mixed freely.
+     */
+    @Test
+    public void handleMatchesObjectPath() {
+        CountingCuckooFilter<Integer> filter = new CountingCuckooFilter.Builder<>(Funnels.integerFunnel(), 10000)
+                .build();
+        KeyHandle[] handles = new KeyHandle[4000];
+        for (int k = 0; k < handles.length; k++) {
+            handles[k] = filter.prepare(k);
+        }
+        for (int k = 0; k < 2000; k++) {
+            for (int i = 0; i <= k % 3; i++) {
+                if ((k + i) % 2 == 0) {
+                    assertTrue(filter.put(handles[k]));
+                } else {
+                    assertTrue(filter.put(k));
+                }
+            }
+        }
+        for (int k = 0; k < handles.length; k++) {
+            assertEquals(filter.mightContain(k), filter.mightContain(handles[k]));
+            assertEquals(filter.count(k), filter.count(handles[k]));
+        }
+        for (int k = 0; k < 2000; k++) {
+            long before = filter.count(k);
+            assertEquals(before + 1, filter.putAndGetCount(handles[k]));
+            assertTrue(filter.delete(handles[k]));
+            assertTrue(filter.delete(k));
+            assertEquals(before - 1, filter.count(handles[k]));
+        }
+        for (int k = 0; k < 2000; k++) {
+            while (filter.delete(handles[k])) {
+            }
+        }
+        assertEquals(0, filter.getCount());
+        for (int k = 0; k < 2000; k++) {
+            assertFalse(filter.mightContain(k));
+        }
+    }
+
+    @Test
+    public void handleFromAnotherHasherIsRejected() {
+        CountingCuckooFilter<Integer> filter = new CountingCuckooFilter.Builder<>(Funnels.integerFunnel(), 1000)
+                .build();
+        CountingCuckooFilter<Integer> other = new CountingCuckooFilter.Builder<>(Funnels.integerFunnel(), 1000)
+                .build();
+        KeyHandle handle = other.prepare(1);
+        try {
+            filter.put(handle);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(0, filter.getCount());
+    }
+
+    /**
+     * The same 64 or 128 bit hash always lands on the same entry, so every
+     * key put by its hash is found, counted and deleted by it.
+     */
+    @Test
+    public void precomputedHashesRoundTrip() {
+        CountingCuckooFilter<Integer> filter = new CountingCuckooFilter.Builder<>(Funnels.integerFunnel(), 10000)
+                .build();
+        Random random = new Random(51);
+        long[] hashes = new long[3000];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = random.nextLong();
+        }
+        for (int i = 0; i < hashes.length; i++) {
+            assertTrue(filter.putHash(hashes[i]));
+            assertTrue(filter.putHash(hashes[i], hashes[hashes.length - 1 - i]));
+            if (i % 2 == 0) {
+                assertTrue(filter.putHash(hashes[i]));
+            }
+        }
+        assertEquals(hashes.length * 5 / 2, filter.getCount());
+        for (int i = 0; i < hashes.length; i++) {
+            assertTrue(filter.mightContainHash(hashes[i]));
+            assertTrue(filter.countHash(hashes[i]) >= (i % 2 == 0 ? 2 : 1));
+            assertTrue(filter.mightContainHash(hashes[i], hashes[hashes.length - 1 - i]));
+            assertTrue(filter.countHash(hashes[i], hashes[hashes.length - 1 - i]) >= 1);
+        }
+        for (int i = 0; i < hashes.length; i++) {
+            assertTrue(filter.deleteHash(hashes[i]));
+            assertTrue(filter.deleteHash(hashes[i], hashes[hashes.length - 1 - i]));
+            if (i % 2 == 0) {
+                assertTrue(filter.deleteHash(hashes[i]));
+            }
+        }
+        assertEquals(0, filter.getCount());
+    }
+
+    @Test
+    public void generateFromHashIsStable() {
+        IndexTagCalc<Integer> calc = IndexTagCalc.create(Funnels.integerFunnel(), 1000, 11);
+        OpScratch scratch = OpScratch.get();
+        Random random = new Random(52);
+        for (int i = 0; i < 10000; i++) {
+            long hash = random.nextLong();
+            calc.generateFromHash(hash, scratch);
+            long index = scratch.index;
+            long tag = scratch.tag;
+            calc.generateFromHash(hash, scratch);
+            assertEquals(index, scratch.index);
+            assertEquals(tag, scratch.tag);
+        }
+    }
+
+    /**
+     * A table whose index and tag need more than 64 bits can't split a 64
+     * bit hash and asks for a 128 bit one.
+     */
+    @Test
+    public void sixtyFourBitHashNeedsSmallEnoughTable() {
+        IndexTagCalc<Integer> calc = IndexTagCalc.create(Funnels.integerFunnel(), 1L << 40, 31);
+        OpScratch scratch = OpScratch.get();
+        try {
+            calc.generateFromHash(1, scratch);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        calc.generateFromHash(1, 2, scratch);
+        assertTrue(scratch.index >= 0 && scratch.index < 1L << 40);
+    }
+}
@@ -0,0 +1,102 @@
+package com.github.mgunlogson.cuckoofilter4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+
+import com.google.common.hash.Funnels;
+
+public class NegativeLookupGuardTest {
+
+    @Test
+    public void missingKeysSkipTheLoader() {
+        Map<Integer, String> store = new ConcurrentHashMap<>();
+        NegativeLookupGuard<Integer, String> guard = NegativeLookupGuard.of(
+                new CountingCuckooFilter.Builder<>(Funnels.integerFunnel(), 10000).build(), store::get);
+        for (int i = 0; i < 1000; i++) {
+            guard.recordInsert(i);
+            store.put(i, "v" + i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("v" + i, guard.get(i));
+        }
+        for (int i = 1000; i < 2000; i++) {
+            assertNull(guard.get(i));
+        }
+        assertTrue(guard.getSavedCallCount() > 900);
+        assertEquals(0, guard.getBypassedCount());
+    }
+
+    /**
+     * An insert that ends up in the filter's victim list must not turn into a
+     * wrong miss.
+     */
+    @Test
+    public void overfullFilterNeverHidesStoredKeys() {
+        Map<Integer, String> store = new ConcurrentHashMap<>();
+        NegativeLookupGuard<Integer, String> guard = NegativeLookupGuard.of(
+                new CountingCuckooFilter.Builder<>(Funnels.integerFunnel(), 64).build(), store::get);
+        boolean lost = false;
+        for (int i = 0; i < 500; i++) {
+            lost |= !guard.recordInsert(i);
+            store.put(i, "v" + i);
+        }
+        assertTrue(lost);
+        for (int i = 0; i < 500; i++) {
+            assertEquals("v" + i, guard.get(i));
+        }
+        assertTrue(guard.getBypassedCount() > 0);
+        assertEquals(0, guard.getSavedCallCount());
+    }
+
+    /**
+     * Decay halves a count of 1 to 0, so the key drops out of the filter
+     * while the store still has it.
+     */
+    @Test
+    public void decayedKeysStillReachTheLoader() {
+        Map<Integer, String> store = new ConcurrentHashMap<>();
+        CountingCuckooFilter<Integer> filter = new CountingCuckooFilter.Builder<>(Funnels.integerFunnel(), 10000)
+                .build();
+        NegativeLookupGuard<Integer, String> guard = NegativeLookupGuard.of(filter, store::get);
+        guard.recordInsert(1);
+        store.put(1, "v1");
+        assertFalse(filter.mayHaveLostKeys());
+        filter.decay();
+        assertFalse(filter.mightContain(1));
+        assertTrue(filter.mayHaveLostKeys());
+        assertEquals("v1", guard.get(1));
+        assertEquals(1, guard.getBypassedCount());
+        assertEquals(0, guard.getSavedCallCount());
+    }
+
+    @Test
+    public void agingAndClearStillReachTheLoader() {
+        Map<Integer, String> store = new ConcurrentHashMap<>();
+        CountingCuckooFilter<Integer> aging = new CountingCuckooFilter.Builder<>(Funnels.integerFunnel(), 1000)
+                .withAgingPeriod(100).build();
+        NegativeLookupGuard<Integer, String> guard = NegativeLookupGuard.of(aging, store::get);
+        for (int i = 0; i < 500; i++) {
+            guard.recordInsert(i);
+            store.put(i, "v" + i);
+        }
+        assertTrue(aging.mayHaveLostKeys());
+        for (int i = 0; i < 500; i++) {
+            assertEquals("v" + i, guard.get(i));
+        }
+
+        CountingCuckooFilter<Integer> cleared = new CountingCuckooFilter.Builder<>(Funnels.integerFunnel(), 1000)
+                .build();
+        guard = NegativeLookupGuard.of(cleared, store::get);
+        guard.recordInsert(1);
+        cleared.clear();
+        assertTrue(cleared.mayHaveLostKeys());
+        assertEquals("v1", guard.get(1));
+    }
+}
@@ -0,0 +1,120 @@
+package com.github.mgunlogson.cuckoofilter4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.github.mgunlogson.cuckoofilter4j.SegmentedBucketLocker.Stripe;
+
+public class SegmentedBucketLockerTest {
+
+	/**
+	 * Runs of neighbouring buckets and strides of the stripe count, which a
+	 * modulo would put on one stripe, spread evenly over the stripes.
+	 */
+	@Test
+	public void fibonacciMappingSpreadsBuckets() {
+		for (int stripes = 2; stripes <= 1024; stripes *= 2) {
+			Stripe[] locks = new Stripe[stripes];
+			int[] run = new int[stripes];
+			int[] stride = new int[stripes];
+			for (long b = 0; b < stripes * 100L; b++) {
+				run[SegmentedBucketLocker.getBucketLock(locks, b)]++;
+				stride[SegmentedBucketLocker.getBucketLock(locks, b * stripes + 1)]++;
+			}
+			for (int i = 0; i < stripes; i++) {
+				assertTrue(stripes + " stripes, run " + run[i], run[i] > 80 && run[i] < 120);
+				assertTrue(stripes + " stripes, stride " + stride[i], stride[i] > 80 && stride[i] < 120);
+			}
+			for (long b : new long[] { 0, 1, Integer.MAX_VALUE, 1L << 40, Long.MAX_VALUE }) {
+				int lock = SegmentedBucketLocker.getBucketLock(locks, b);
+				assertTrue(lock >= 0 && lock < stripes);
+			}
+		}
+	}
+
+	/**
+	 * Threads hammer a few buckets that share a stripe, yielding while they
+	 * hold it so the others have to wait even on one core. The counters see
+	 * the waits, the locker grows to its limit, and no increment made under
+	 * a lock is lost while the stripes are swapped underneath the threads.
+	 */
+	@Test
+	public void contendedStripeGrowsAndStaysExclusive() throws Exception {
+		SegmentedBucketLocker locker = new SegmentedBucketLocker(1, 8);
+		assertEquals(2, locker.getSegmentCount());
+		long[] buckets = bucketsOnOneStripe(4);
+		long[] counts = new long[buckets.length];
+		AtomicLong ops = new AtomicLong();
+		Thread[] workers = new Thread[4];
+		for (int t = 0; t < workers.length; t++) {
+			workers[t] = new Thread(() -> {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				for (int i = 0; i < 2000000 && locker.getSegmentCount() < 16; i++) {
+					int a = random.nextInt(buckets.length);
+					int b = random.nextInt(buckets.length);
+					switch (i % 3) {
+					case 0:
+						locker.lockBucketsWrite(buckets[a], buckets[b]);
+						bump(counts, a, b);
+						locker.unlockBucketsWrite(buckets[a], buckets[b]);
+						break;
+					case 1:
+						locker.lockSingleBucketWrite(buckets[a]);
+						bump(counts, a, a);
+						locker.unlockSingleBucketWrite(buckets[a]);
+						break;
+					default:
+						locker.lockAllBucketsWrite();
+						bump(counts, a, b);
+						locker.unlockAllBucketsWrite();
+					}
+					ops.incrementAndGet();
+				}
+			});
+			workers[t].start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		assertEquals(16, locker.getSegmentCount());
+		assertTrue(locker.getContentionCount() > 0);
+		assertTrue(locker.getAcquisitionCount() >= ops.get());
+		long total = 0;
+		for (long c : counts) {
+			total += c;
+		}
+		assertEquals(2 * ops.get(), total);
+		// still locks and unlocks cleanly after growing
+		locker.lockBucketsRead(buckets[0], buckets[1]);
+		locker.unlockBucketsRead(buckets[0], buckets[1]);
+		locker.lockAllBucketsRead();
+		locker.unlockAllBucketsRead();
+		locker.lockBucketsWrite(buckets[0], buckets[1]);
+		locker.unlockBucketsWrite(buckets[0], buckets[1]);
+	}
+
+	// unsynchronized read-modify-write, so a lost update shows a broken lock
+	private static void bump(long[] counts, int a, int b) {
+		long ca = counts[a];
+		Thread.yield();
+		counts[a] = ca + 1;
+		counts[b]++;
+	}
+
+	// buckets on stripe 0 of the starting two stripes
+	private static long[] bucketsOnOneStripe(int n) {
+		Stripe[] locks = new Stripe[2];
+		long[] buckets = new long[n];
+		for (long b = 0, i = 0; i < n; b++) {
+			if (SegmentedBucketLocker.getBucketLock(locks, b) == 0) {
+				buckets[(int) i++] = b;
+			}
+		}
+		return buckets;
+	}
+}
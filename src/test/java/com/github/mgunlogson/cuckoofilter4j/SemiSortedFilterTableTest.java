@@ -0,0 +1,250 @@
+package com.github.mgunlogson.cuckoofilter4j;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.hash.Funnels;
+
+public class SemiSortedFilterTableTest {
+
+	private static final int[] TAG_BITS = { 5, 7, 8, 9, 12, 16, 20, 31 };
+	private static final int BUCKETS = 8;
+
+	/**
+	 * Runs the same random bucket operations on a semi-sorted table and a
+	 * plain one. Results and bucket contents must agree after every step;
+	 * only the order of plain tags inside a bucket may differ.
+	 */
+	@Test
+	public void matchesPlainTableUnderRandomOps() {
+		for (int bitsPerTag : TAG_BITS) {
+			Random random = new Random(bitsPerTag);
+			SemiSortedFilterTable semi = SemiSortedFilterTable.create(bitsPerTag, BUCKETS);
+			FilterTable plain = new FilterTable(new LongBitSet((long) BUCKETS * CountingCuckooFilter.BUCKET_SIZE
+					* bitsPerTag), bitsPerTag, BUCKETS, semi.getMaxTagCount());
+			long[] pool = tagPool(bitsPerTag, random);
+			for (int step = 0; step < 20000; step++) {
+				long b = random.nextInt(BUCKETS);
+				long tag = pool[random.nextInt(pool.length)];
+				long count = 4 + random.nextInt(Math.min(40, semi.getMaxTagCount() - 3));
+				String at = "tagBits " + bitsPerTag + " step " + step;
+				switch (random.nextInt(9)) {
+				case 0:
+				case 1:
+					assertEquals(at, plain.insertTagToBucket(b, tag), semi.insertTagToBucket(b, tag));
+					break;
+				case 2:
+					assertEquals(at, plain.insertTagBoxToBucket(b, tag, count), semi.insertTagBoxToBucket(b, tag, count));
+					break;
+				case 3:
+					if (plain.freeSlots(b) >= 3) {
+						plain.createTagBox(b, tag, count);
+						semi.createTagBox(b, tag, count);
+					}
+					break;
+				case 4:
+					if (plain.hasTagBox(b, tag)) {
+						assertEquals(at, plain.updateTagCount(b, tag, count), semi.updateTagCount(b, tag, count));
+					}
+					break;
+				case 5:
+					assertEquals(at, plain.deleteFromBucket(b, tag), semi.deleteFromBucket(b, tag));
+					break;
+				case 6:
+					assertEquals(at, plain.removeTag(b, tag), semi.removeTag(b, tag));
+					break;
+				case 7:
+					assertEquals(at, plain.removeTagBox(b, tag), semi.removeTagBox(b, tag));
+					break;
+				default:
+					if (plain.hasTagBox(b, tag)) {
+						long size = random.nextInt((int) Math.min(6, semi.getMaxTagCount() + 1L));
+						plain.resizeTagBox(b, tag, size);
+						semi.resizeTagBox(b, tag, size);
+					} else {
+						plain.removeTags(b, tag);
+						semi.removeTags(b, tag);
+					}
+				}
+				assertSameBucket(at, plain, semi, b);
+				for (long t : pool) {
+					long other = random.nextInt(BUCKETS);
+					assertEquals(at, plain.findTag(b, t), semi.findTag(b, t));
+					assertEquals(at, plain.hasTagBox(b, t), semi.hasTagBox(b, t));
+					assertEquals(at, plain.countTag(b, other, t), semi.countTag(b, other, t));
+				}
+			}
+		}
+	}
+
+	/**
+	 * The slot-level writes work on the slots as unpacked: tagBox first, then
+	 * plain tags ahead of empty slots.
+	 */
+	@Test
+	public void slotWritesUseUnpackedPositions() {
+		for (int bitsPerTag : TAG_BITS) {
+			Random random = new Random(bitsPerTag);
+			SemiSortedFilterTable semi = SemiSortedFilterTable.create(bitsPerTag, 2);
+			long[] pool = tagPool(bitsPerTag, random);
+			for (int step = 0; step < 5000; step++) {
+				String at = "tagBits " + bitsPerTag + " step " + step;
+				List<Long> expected = new ArrayList<>();
+				semi.clear();
+				int n = random.nextInt(5);
+				for (int i = 0; i < n; i++) {
+					long tag = pool[random.nextInt(pool.length)];
+					semi.writeTagNoClear(0, i, tag);
+					expected.add(tag);
+				}
+				assertEquals(at, expected.size(), semi.usedSlots(0));
+				assertEquals(at, sorted(expected), plainTags(semi, 0));
+				if (n == 0) {
+					continue;
+				}
+				int pos = random.nextInt(n);
+				long old = semi.readTag(0, pos);
+				assertTrue(at, semi.checkTag(0, pos, old));
+				assertFalse(at, semi.checkTagBox(0, pos));
+				long replacement = pool[random.nextInt(pool.length)];
+				assertEquals(at, old, semi.readTagAndSet(0, pos, replacement));
+				expected.remove(Long.valueOf(old));
+				expected.add(replacement);
+				assertEquals(at, sorted(expected), plainTags(semi, 0));
+				pos = random.nextInt(n);
+				old = semi.readTag(0, pos);
+				semi.moveTagForward(0, pos);
+				expected.remove(Long.valueOf(old));
+				assertEquals(at, sorted(expected), plainTags(semi, 0));
+				assertEquals(at, 0, semi.readTag(1, 0));
+			}
+		}
+	}
+
+	/**
+	 * Tags whose nibbles give the highest index values, right below the box
+	 * marker, stay plain tags, and slots written in the tagBox layout become a
+	 * packed tagBox.
+	 */
+	@Test
+	public void slotWritesBuildTagBoxes() {
+		for (int bitsPerTag : TAG_BITS) {
+			SemiSortedFilterTable semi = SemiSortedFilterTable.create(bitsPerTag, 2);
+			long high = (1L << bitsPerTag) - 1;
+			for (int i = 0; i < 4; i++) {
+				semi.writeTagNoClear(0, i, high - i);
+			}
+			assertEquals(0, semi.getTagBoxNum(0));
+			assertEquals(4, semi.usedSlots(0));
+			for (int i = 0; i < 4; i++) {
+				assertTrue(semi.findTag(0, high - i));
+			}
+			semi.clear();
+			semi.writeTagNoClear(0, 0, high - 1);
+			semi.writeTagNoClear(0, 2, 1);
+			semi.writeTagNoClear(0, 3, high);
+			assertEquals(1, semi.getTagBoxNum(0));
+			assertTrue(semi.checkTagBox(0, 0));
+			assertTrue(semi.hasTagBox(0, high - 1));
+			assertEquals(high, semi.readTag(0, 3));
+			assertEquals(4, semi.countTag(0, 1, high - 1));
+			long field = Math.min(5, semi.getMaxTagCount() - 3);
+			semi.clearTagAndSet(0, 2, field);
+			assertEquals(field + 3, semi.countTag(0, 1, high - 1));
+			semi.clearTag(0, 3);
+			assertEquals(3, semi.usedSlots(0));
+			assertEquals(0, semi.countTag(0, 1, high));
+		}
+	}
+
+	@Test
+	public void semiSortedFilterKeepsCounts() {
+		CountingCuckooFilter<Integer> filter = new CountingCuckooFilter.Builder<>(Funnels.integerFunnel(), 100000)
+				.withFalsePositiveRate(0.0001).withSemiSortedBuckets().build();
+		Random random = new Random(1);
+		int[] copies = new int[10000];
+		for (int i = 0; i < copies.length; i++) {
+			copies[i] = 1 + random.nextInt(8);
+			assertTrue(filter.add(i, copies[i]));
+		}
+		for (int i = 0; i < copies.length; i++) {
+			assertTrue(filter.count(i) >= copies[i]);
+		}
+		for (int i = 0; i < copies.length; i++) {
+			assertEquals(copies[i], filter.remove(i, copies[i]));
+		}
+		assertEquals(0, filter.getCount());
+	}
+
+	/**
+	 * Tags with every low nibble, heavy on 0x0 and 0xF, and a few repeats
+	 * so tagBoxes and equal tags show up.
+	 */
+	private static long[] tagPool(int bitsPerTag, Random random) {
+		long[] pool = new long[12];
+		for (int i = 0; i < pool.length; i++) {
+			long tag;
+			do {
+				tag = random.nextLong() & ((1L << bitsPerTag) - 1);
+				if (i % 3 == 0) {
+					tag |= 0xF;
+				} else if (i % 3 == 1) {
+					tag &= ~0xFL;
+				}
+			} while (tag == 0);
+			pool[i] = tag;
+		}
+		pool[pool.length - 1] = (1L << bitsPerTag) - 1;
+		return pool;
+	}
+
+	private static void assertSameBucket(String at, FilterTable plain, FilterTable semi, long b) {
+		assertEquals(at, plain.usedSlots(b), semi.usedSlots(b));
+		assertEquals(at, plain.freeSlots(b), semi.freeSlots(b));
+		assertEquals(at, plain.getTagBoxNum(b), semi.getTagBoxNum(b));
+		assertEquals(at, plain.checkTagBox(b, 0), semi.checkTagBox(b, 0));
+		assertEquals(at, plain.checkTagBox(b, 1), semi.checkTagBox(b, 1));
+		if (plain.checkTagBox(b, 0)) {
+			for (int i = 0; i < CountingCuckooFilter.BUCKET_SIZE; i++) {
+				assertEquals(at, plain.readTag(b, i), semi.readTag(b, i));
+			}
+		} else {
+			assertEquals(at, plainTags(plain, b), plainTags(semi, b));
+		}
+		long[] expected = new long[CountingCuckooFilter.BUCKET_SIZE];
+		long[] actual = new long[CountingCuckooFilter.BUCKET_SIZE];
+		plain.readBucketTags(b, expected, 0);
+		semi.readBucketTags(b, actual, 0);
+		Arrays.sort(expected);
+		Arrays.sort(actual);
+		assertArrayEquals(at, expected, actual);
+	}
+
+	private static List<Long> plainTags(FilterTable table, long b) {
+		List<Long> tags = new ArrayList<>();
+		for (int i = 0; i < CountingCuckooFilter.BUCKET_SIZE; i++) {
+			tags.add(table.readTag(b, i));
+		}
+		Collections.sort(tags);
+		return tags;
+	}
+
+	private static List<Long> sorted(List<Long> tags) {
+		List<Long> padded = new ArrayList<>(tags);
+		while (padded.size() < CountingCuckooFilter.BUCKET_SIZE) {
+			padded.add(0L);
+		}
+		Collections.sort(padded);
+		return padded;
+	}
+}
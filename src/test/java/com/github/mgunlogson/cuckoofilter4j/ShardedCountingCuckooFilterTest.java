@@ -0,0 +1,71 @@
+package com.github.mgunlogson.cuckoofilter4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.hash.Funnels;
+
+public class ShardedCountingCuckooFilterTest {
+
+    @Test
+    public void countAsyncSeesEarlierPuts() throws Exception {
+        ShardedCountingCuckooFilter<Integer> filter = new ShardedCountingCuckooFilter.Builder<>(
+                Funnels.integerFunnel(), 100000).withShards(4).build();
+        try {
+            for (int i = 0; i < 1000; i++) {
+                filter.put(i);
+            }
+            filter.put(7);
+            assertEquals(2L, (long) filter.countAsync(7).get(10, TimeUnit.SECONDS));
+            filter.flush().get(10, TimeUnit.SECONDS);
+            assertEquals(1001, filter.getCount());
+        } finally {
+            filter.close();
+        }
+    }
+
+    /**
+     * Writers race close(): every call that didn't throw must be applied, so
+     * its future completes.
+     */
+    @Test
+    public void closeAppliesOperationsSubmittedConcurrently() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            final ShardedCountingCuckooFilter<Integer> filter = new ShardedCountingCuckooFilter.Builder<>(
+                    Funnels.integerFunnel(), 100000).withShards(2).withQueueCapacity(16).build();
+            final Queue<CompletableFuture<Boolean>> futures = new ConcurrentLinkedQueue<>();
+            final CountDownLatch started = new CountDownLatch(4);
+            Thread[] writers = new Thread[4];
+            for (int w = 0; w < writers.length; w++) {
+                final int base = w * 1000000;
+                writers[w] = new Thread(() -> {
+                    started.countDown();
+                    try {
+                        for (int i = 0;; i++) {
+                            futures.add(filter.putAsync(base + i));
+                        }
+                    } catch (IllegalStateException closed) {
+                        // expected once close() has started
+                    }
+                });
+                writers[w].start();
+            }
+            started.await();
+            filter.close();
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            for (CompletableFuture<Boolean> future : futures) {
+                assertTrue(future.isDone());
+            }
+        }
+    }
+}
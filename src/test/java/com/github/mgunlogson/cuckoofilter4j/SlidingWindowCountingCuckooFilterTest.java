@@ -0,0 +1,70 @@
+package com.github.mgunlogson.cuckoofilter4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import com.google.common.hash.Funnels;
+
+public class SlidingWindowCountingCuckooFilterTest {
+
+    @Test
+    public void rotationExpiresOldestGeneration() {
+        SlidingWindowCountingCuckooFilter<Integer> filter = new SlidingWindowCountingCuckooFilter.Builder<>(
+                Funnels.integerFunnel(), 1000).withGenerations(2).build();
+        filter.put(1);
+        filter.rotate();
+        filter.put(1);
+        assertEquals(2, filter.count(1));
+        filter.rotate();
+        assertEquals(1, filter.count(1));
+        filter.rotate();
+        assertFalse(filter.mightContain(1));
+    }
+
+    /**
+     * Deletes walk every generation, including the one being cleared. Once
+     * every generation has been cleared nothing may be left behind.
+     */
+    @Test
+    public void rotateClearsUnderConcurrentDeletes() throws Exception {
+        final int keys = 20000;
+        for (int round = 0; round < 5; round++) {
+            final SlidingWindowCountingCuckooFilter<Integer> filter = new SlidingWindowCountingCuckooFilter.Builder<>(
+                    Funnels.integerFunnel(), keys).withGenerations(4).withExpectedConcurrency(4).build();
+            for (int g = 0; g < filter.getGenerationCount(); g++) {
+                for (int i = 0; i < keys; i++) {
+                    filter.put(i);
+                }
+                filter.rotate();
+            }
+            final AtomicBoolean stop = new AtomicBoolean();
+            Thread[] deleters = new Thread[4];
+            for (int d = 0; d < deleters.length; d++) {
+                deleters[d] = new Thread(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    while (!stop.get()) {
+                        filter.delete(random.nextInt(keys));
+                    }
+                });
+                deleters[d].start();
+            }
+            for (int g = 0; g < filter.getGenerationCount(); g++) {
+                Thread.sleep(5);
+                filter.rotate();
+            }
+            stop.set(true);
+            for (Thread deleter : deleters) {
+                deleter.join();
+            }
+            assertEquals(0, filter.getCount());
+            for (int i = 0; i < keys; i++) {
+                assertFalse(filter.mightContain(i));
+            }
+        }
+    }
+}
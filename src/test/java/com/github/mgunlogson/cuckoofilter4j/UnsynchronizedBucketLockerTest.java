@@ -0,0 +1,126 @@
+package com.github.mgunlogson.cuckoofilter4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import com.google.common.hash.Funnels;
+
+public class UnsynchronizedBucketLockerTest {
+
+	/**
+	 * Once a thread used the owner checking filter, every call from another
+	 * thread throws before touching the table.
+	 */
+	@Test
+	public void ownerCheckingFilterRejectsOtherThreads() throws Exception {
+		CountingCuckooFilter<Integer> filter = new CountingCuckooFilter.Builder<>(Funnels.integerFunnel(), 1000)
+				.withThreadConfinement(true).build();
+		filter.put(1);
+		ExecutorService other = Executors.newSingleThreadExecutor();
+		try {
+			assertRejected(other, () -> filter.put(2));
+			assertRejected(other, () -> filter.add(1, 3));
+			assertRejected(other, () -> filter.mightContain(1));
+			assertRejected(other, () -> filter.count(1));
+			assertRejected(other, () -> filter.delete(1));
+		} finally {
+			other.shutdown();
+		}
+		assertEquals(1, filter.count(1));
+		assertEquals(1, filter.getCount());
+		filter.put(2);
+		assertTrue(filter.mightContain(2));
+	}
+
+	/**
+	 * The owner is the first thread to use the filter, not the one that
+	 * built it.
+	 */
+	@Test
+	public void firstUserOwnsTheFilter() throws Exception {
+		CountingCuckooFilter<Integer> filter = new CountingCuckooFilter.Builder<>(Funnels.integerFunnel(), 1000)
+				.withThreadConfinement(true).build();
+		ExecutorService owner = Executors.newSingleThreadExecutor();
+		try {
+			owner.submit(() -> filter.put(1)).get();
+			assertTrue(owner.submit(() -> filter.mightContain(1)).get());
+		} finally {
+			owner.shutdown();
+		}
+		try {
+			filter.mightContain(1);
+			fail();
+		} catch (IllegalStateException expected) {
+		}
+	}
+
+	@Test
+	public void everyLockMethodChecksTheOwner() throws Exception {
+		BucketLocker locker = UnsynchronizedBucketLocker.ownerChecking();
+		locker.lockBucketsWrite(1, 2);
+		locker.unlockBucketsWrite(1, 2);
+		ExecutorService other = Executors.newSingleThreadExecutor();
+		try {
+			assertRejected(other, () -> {
+				locker.lockBucketsWrite(1, 2);
+				return null;
+			});
+			assertRejected(other, () -> {
+				locker.lockBucketsRead(1, 2);
+				return null;
+			});
+			assertRejected(other, () -> {
+				locker.lockAllBucketsRead();
+				return null;
+			});
+			assertRejected(other, () -> {
+				locker.lockAllBucketsWrite();
+				return null;
+			});
+			assertRejected(other, () -> {
+				locker.lockSingleBucketWrite(1);
+				return null;
+			});
+			assertRejected(other, () -> {
+				locker.lockSingleBucketRead(1);
+				return null;
+			});
+		} finally {
+			other.shutdown();
+		}
+	}
+
+	/**
+	 * Without the check a confined filter can be handed to another thread.
+	 */
+	@Test
+	public void uncheckedFilterCanBeHandedOver() throws Exception {
+		CountingCuckooFilter<Integer> filter = new CountingCuckooFilter.Builder<>(Funnels.integerFunnel(), 1000)
+				.withThreadConfinement(false).build();
+		filter.put(1);
+		ExecutorService other = Executors.newSingleThreadExecutor();
+		try {
+			assertTrue(other.submit(() -> filter.put(2) && filter.mightContain(1)).get());
+		} finally {
+			other.shutdown();
+		}
+		assertEquals(2, filter.getCount());
+	}
+
+	private static void assertRejected(ExecutorService other, Callable<?> call) throws InterruptedException {
+		try {
+			other.submit(call).get();
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof IllegalStateException);
+		}
+	}
+}
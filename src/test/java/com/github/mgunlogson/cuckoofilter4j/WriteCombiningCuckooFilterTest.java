@@ -0,0 +1,118 @@
+package com.github.mgunlogson.cuckoofilter4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.hash.Funnels;
+
+public class WriteCombiningCuckooFilterTest {
+
+    private static CountingCuckooFilter<Integer> newFilter() {
+        return new CountingCuckooFilter.Builder<>(Funnels.integerFunnel(), 10000).build();
+    }
+
+    /**
+     * The putting thread sees its own pending increments before anything
+     * reached the filter, and a delete takes a pending one back first.
+     */
+    @Test
+    public void readsSeeOwnPendingPuts() {
+        CountingCuckooFilter<Integer> filter = newFilter();
+        WriteCombiningCuckooFilter<Integer> combining = new WriteCombiningCuckooFilter<>(filter, 16, 1,
+                TimeUnit.HOURS);
+        for (int i = 0; i < 5; i++) {
+            combining.put(1);
+        }
+        filter.put(1);
+        assertEquals(1, filter.getCount());
+        assertEquals(6, combining.count(1));
+        assertTrue(combining.mightContain(1));
+        assertTrue(combining.delete(1));
+        assertEquals(5, combining.count(1));
+        assertEquals(1, filter.getCount());
+        assertFalse(combining.mightContain(2));
+        combining.flush();
+        assertEquals(5, filter.count(1));
+        assertEquals(5, combining.count(1));
+    }
+
+    /**
+     * Repeats of a pending key don't fill the buffer, the maxPendingKeys-th
+     * distinct key applies them all as one increment per key.
+     */
+    @Test
+    public void flushesAtMaxPendingKeys() {
+        CountingCuckooFilter<Integer> filter = newFilter();
+        WriteCombiningCuckooFilter<Integer> combining = new WriteCombiningCuckooFilter<>(filter, 4, 1,
+                TimeUnit.HOURS);
+        for (int key = 0; key < 3; key++) {
+            for (int i = 0; i <= key; i++) {
+                combining.put(key);
+            }
+        }
+        assertEquals(0, filter.getCount());
+        combining.put(3);
+        assertEquals(7, filter.getCount());
+        for (int key = 0; key < 4; key++) {
+            assertEquals(key == 3 ? 1 : key + 1, filter.count(key));
+        }
+    }
+
+    @Test
+    public void closeFlushes() {
+        CountingCuckooFilter<Integer> filter = newFilter();
+        try (WriteCombiningCuckooFilter<Integer> combining = new WriteCombiningCuckooFilter<>(filter, 16, 1,
+                TimeUnit.HOURS)) {
+            combining.put(1);
+            combining.put(1);
+            combining.put(2);
+            assertEquals(0, filter.getCount());
+        }
+        assertEquals(2, filter.count(1));
+        assertEquals(1, filter.count(2));
+    }
+
+    /**
+     * Other threads only see a thread's puts once it flushed them, then as
+     * the combined count.
+     */
+    @Test
+    public void otherThreadsSeeCombinedCountsAfterFlush() throws Exception {
+        CountingCuckooFilter<Integer> filter = newFilter();
+        WriteCombiningCuckooFilter<Integer> combining = new WriteCombiningCuckooFilter<>(filter, 16, 1,
+                TimeUnit.HOURS);
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        try {
+            writer.submit(() -> {
+                for (int i = 0; i < 100; i++) {
+                    combining.put(7);
+                }
+            }).get();
+            assertEquals(0, combining.count(7));
+            assertFalse(combining.mightContain(7));
+            writer.submit(combining::flush).get();
+            assertEquals(100, combining.count(7));
+            assertTrue(combining.mightContain(7));
+            assertEquals(100, filter.getCount());
+        } finally {
+            writer.shutdown();
+        }
+    }
+
+    @Test
+    public void zeroDelayAppliesEveryPut() {
+        CountingCuckooFilter<Integer> filter = newFilter();
+        WriteCombiningCuckooFilter<Integer> combining = new WriteCombiningCuckooFilter<>(filter, 16, 0,
+                TimeUnit.NANOSECONDS);
+        combining.put(1);
+        combining.put(1);
+        assertEquals(2, filter.count(1));
+    }
+}
@@ -0,0 +1,81 @@
+package com.google.common.hash;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Inputs for the reference vectors of the hash function tests. The vectors
+ * were computed with the reference implementations on the same bytes.
+ */
+final class HashTestInputs {
+
+	private HashTestInputs() {
+	}
+
+	/**
+	 * n bytes from a 64 bit LCG, the top byte of each state starting from 1.
+	 */
+	static byte[] bytes(int n) {
+		byte[] b = new byte[n];
+		long s = 1;
+		for (int i = 0; i < n; i++) {
+			s = s * 6364136223846793005L + 1442695040888963407L;
+			b[i] = (byte) (s >>> 56);
+		}
+		return b;
+	}
+
+	/**
+	 * Hashes input in uneven pieces, single bytes and ints mixed in, to check
+	 * that streaming gives the same hash as one put.
+	 */
+	static HashCode hashInPieces(HashFunction function, byte[] input) {
+		Hasher hasher = function.newHasher();
+		int off = 0;
+		for (int piece = 1; off < input.length; piece = piece * 3 % 37 + 1) {
+			int n = Math.min(piece, input.length - off);
+			if (n == 1) {
+				hasher.putByte(input[off]);
+			} else if (n == 4) {
+				hasher.putInt((input[off] & 0xFF) | (input[off + 1] & 0xFF) << 8 | (input[off + 2] & 0xFF) << 16
+						| (input[off + 3] & 0xFF) << 24);
+			} else {
+				hasher.putBytes(input, off, n);
+			}
+			off += n;
+		}
+		return hasher.hash();
+	}
+
+	/**
+	 * Buffers with the bytes of array at the same indexes: heap, direct,
+	 * read-only, and slices of larger heap and direct buffers, each in both
+	 * byte orders. Position and limit are moved off their defaults so callers
+	 * can check they are left alone.
+	 */
+	static List<ByteBuffer> buffers(byte[] array) {
+		List<ByteBuffer> buffers = new ArrayList<>();
+		for (ByteOrder order : new ByteOrder[] { ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN }) {
+			ByteBuffer direct = ByteBuffer.allocateDirect(array.length);
+			direct.put(array);
+			ByteBuffer largeHeap = ByteBuffer.allocate(array.length + 5);
+			largeHeap.position(5);
+			largeHeap.put(array);
+			largeHeap.position(5);
+			ByteBuffer largeDirect = ByteBuffer.allocateDirect(array.length + 5);
+			largeDirect.position(5);
+			largeDirect.put(array);
+			largeDirect.position(5);
+			for (ByteBuffer buffer : new ByteBuffer[] { ByteBuffer.wrap(array.clone()), direct,
+					ByteBuffer.wrap(array.clone()).asReadOnlyBuffer(), largeHeap.slice(), largeDirect.slice() }) {
+				buffer.order(order);
+				buffer.limit(array.length - 1);
+				buffer.position(Math.min(2, buffer.limit()));
+				buffers.add(buffer);
+			}
+		}
+		return buffers;
+	}
+}
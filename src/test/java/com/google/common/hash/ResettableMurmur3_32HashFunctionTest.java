@@ -0,0 +1,55 @@
+package com.google.common.hash;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class ResettableMurmur3_32HashFunctionTest {
+
+	private static final int[] SEEDS = { 0, 1, 0x9E3779B9, -1 };
+
+	@Test
+	public void bytesMatchGuava() {
+		for (int seed : SEEDS) {
+			HashFunction guava = Hashing.murmur3_32(seed);
+			HashFunction ours = new ResettableMurmur3_32HashFunction(seed);
+			for (int len = 0; len <= 300; len++) {
+				byte[] input = HashTestInputs.bytes(len);
+				assertEquals("len " + len, guava.hashBytes(input), ours.hashBytes(input));
+				assertEquals("len " + len, guava.hashBytes(input), HashTestInputs.hashInPieces(ours, input));
+			}
+		}
+	}
+
+	@Test
+	public void primitivesMatchGuava() {
+		for (int seed : SEEDS) {
+			HashFunction guava = Hashing.murmur3_32(seed);
+			HashFunction ours = new ResettableMurmur3_32HashFunction(seed);
+			for (long v = -1000; v < 1000; v += 7) {
+				assertEquals(guava.hashInt((int) v), ours.hashInt((int) v));
+				assertEquals(guava.hashLong(v * 0x9E3779B97F4A7C15L), ours.hashLong(v * 0x9E3779B97F4A7C15L));
+			}
+			// unaligned: a byte before the int and long
+			HashCode expected = guava.newHasher().putByte((byte) 3).putInt(17).putLong(-5L).putByte((byte) 9).hash();
+			assertEquals(expected, ours.newHasher().putByte((byte) 3).putInt(17).putLong(-5L).putByte((byte) 9).hash());
+			assertEquals(guava.hashUnencodedChars("n\u00e4ive k\u00e9\u00a5"), ours.hashUnencodedChars("n\u00e4ive k\u00e9\u00a5"));
+		}
+	}
+
+	@Test
+	public void hashIntMatchesHashAndResets() {
+		ResettableHasher hasher = new ResettableMurmur3_32HashFunction(42).newHasher();
+		for (int len = 0; len < 40; len++) {
+			byte[] input = HashTestInputs.bytes(len);
+			hasher.reset();
+			hasher.putBytes(input);
+			assertEquals(Hashing.murmur3_32(42).hashBytes(input).asInt(), hasher.hashInt());
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void hashLongIsUnavailable() {
+		new ResettableMurmur3_32HashFunction(0).newHasher().hashLong();
+	}
+}
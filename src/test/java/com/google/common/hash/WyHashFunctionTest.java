@@ -0,0 +1,75 @@
+package com.google.common.hash;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class WyHashFunctionTest {
+
+	private static final long SEED = 0x9E3779B97F4A7C15L;
+
+	// the test vectors published with wyhash final version 4, message i hashed with seed i
+	private static final String[] MESSAGES = { "", "a", "abc", "message digest", "abcdefghijklmnopqrstuvwxyz",
+			"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789",
+			"12345678901234567890123456789012345678901234567890123456789012345678901234567890" };
+	private static final long[] EXPECTED = { 0x93228a4de0eec5a2L, 0xc5bac3db178713c4L, 0xa97f2f7b1d9b3314L,
+			0x786d1f1df3801df4L, 0xdca5a8138ad37c87L, 0xb9e734f117cfaf70L, 0x6cc5eab49a92d617L };
+
+	// length, wyhash with seed 0, with SEED, covering each branch and the 48 byte loop
+	private static final long[][] VECTORS = {
+		{ 0, 0x93228a4de0eec5a2L, 0x545f23ddcfe838c4L },
+		{ 1, 0x04fb1f8ee0263ca8L, 0x2774bf1623170831L },
+		{ 3, 0x23d8b3b2c61febdeL, 0xfeef72d69ecc5788L },
+		{ 4, 0xd7ca862ebeecb28aL, 0x750c5bb17c130ec2L },
+		{ 8, 0xa8c6e806f637b80cL, 0xde8365f46bd2b3dfL },
+		{ 9, 0xb4fedc05d6f725d0L, 0x214bc47abdac243dL },
+		{ 16, 0xb564f28924729718L, 0x3c7a9799b8ee97dfL },
+		{ 17, 0xba4c27d11942b59dL, 0x96954eb54284230dL },
+		{ 33, 0xb6dbd9b7832e3969L, 0xf939d6b0a7824e65L },
+		{ 47, 0x6cfb174b0872c2dfL, 0xaa7997b078aa4e64L },
+		{ 48, 0xcb90bf9638565935L, 0xe0a899e291dd1bb8L },
+		{ 49, 0xd2b102a0af823c4cL, 0x1f7d0e9676718db4L },
+		{ 64, 0x865f7f99daa6638dL, 0xd1fe0f1dcf8a9021L },
+		{ 65, 0xa7a1f6582074f45cL, 0x3fba8e4754e86763L },
+		{ 96, 0x4e938517ee9993e8L, 0x59496a69b62b4120L },
+		{ 97, 0xb3bd3da6184d51f1L, 0x990ef544f4c8ceacL },
+		{ 128, 0x15d75cf15b5dac09L, 0x2fd4d7c4d397a87cL },
+		{ 129, 0x28cd1be382c237aeL, 0x661a234204c685b4L },
+		{ 200, 0xa9e2d39f947fe33bL, 0xb224e46d9c6bee0bL },
+		{ 240, 0xbcc42e9bceb6f753L, 0x4ddd7223bef038f0L },
+		{ 241, 0x2f6fc33e32da8d26L, 0x9497bb72286b6c2fL },
+		{ 255, 0xcd1183f4b7e397c6L, 0x9c8328150e38cc1bL },
+		{ 500, 0x6a4e2c5d78f2c440L, 0xbd996ec3504fda95L },
+		{ 1024, 0x5c8947cf5cf97f6fL, 0x5e0d93dd1ece1135L },
+		{ 1025, 0x2a9781edef69cb1cL, 0x28c0be5e9e33d7b9L },
+		{ 2048, 0xe4375e54635e1f7eL, 0xe9a9ed2ebf3cd639L },
+		{ 4103, 0xd7da1b453cc504adL, 0x61b2cc5bfc905322L },
+	};
+
+	@Test
+	public void matchesPublishedVectors() {
+		for (int i = 0; i < MESSAGES.length; i++) {
+			assertEquals(MESSAGES[i], EXPECTED[i],
+					new WyHashFunction(i).hashBytes(MESSAGES[i].getBytes(StandardCharsets.US_ASCII)).asLong());
+		}
+	}
+
+	@Test
+	public void matchesReference() {
+		for (long[] v : VECTORS) {
+			byte[] input = HashTestInputs.bytes((int) v[0]);
+			assertEquals("len " + v[0], v[1], new WyHashFunction(0).hashBytes(input).asLong());
+			assertEquals("len " + v[0], v[2], new WyHashFunction(SEED).hashBytes(input).asLong());
+		}
+	}
+
+	@Test
+	public void streamingMatchesOneShot() {
+		for (long[] v : VECTORS) {
+			byte[] input = HashTestInputs.bytes((int) v[0]);
+			assertEquals("len " + v[0], v[2], HashTestInputs.hashInPieces(new WyHashFunction(SEED), input).asLong());
+		}
+	}
+}
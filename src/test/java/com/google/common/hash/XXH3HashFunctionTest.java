@@ -0,0 +1,106 @@
+package com.google.common.hash;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class XXH3HashFunctionTest {
+
+	private static final long SEED = 0x9E3779B97F4A7C15L;
+
+	// length, XXH3_64bits_withSeed with seed 0, with SEED
+	private static final long[][] VECTORS_64 = {
+		{ 0, 0x2d06800538d394c2L, 0x602b0e2cd6662c8bL },
+		{ 1, 0xc00f9d4f580c0c3aL, 0xe8c373bb37200c74L },
+		{ 3, 0xe92112d1e602af4aL, 0xb68a6cc6a268845aL },
+		{ 4, 0x9008de7e100606d1L, 0x4f1f28ce9bf1480cL },
+		{ 8, 0xcca6ee6f8e080c52L, 0x43e370b97e6af1d1L },
+		{ 9, 0x568f9d2e69ad8bd0L, 0xb6b4ecb908431ff4L },
+		{ 16, 0x600a07a4f5a9911cL, 0x073f42644e04597fL },
+		{ 17, 0xdeab0265f35dfc24L, 0xb60e28c96a0d8c66L },
+		{ 33, 0xe2f96cd271e72881L, 0x8525b1cec1257c68L },
+		{ 64, 0xad0685dabb3ce66bL, 0xfed08647a034586cL },
+		{ 65, 0x7d4e3da065c21b2dL, 0xa32b491cea9e8bd4L },
+		{ 128, 0x410bd3b4d8d84f51L, 0xaac125a230b36a17L },
+		{ 129, 0x55964eec39625032L, 0x52be102d85c4d4fbL },
+		{ 200, 0xedced795343597fdL, 0x5bde89033a74e7d8L },
+		{ 240, 0x977b659bdc81fdb1L, 0x9cc1e12f830660fdL },
+		{ 241, 0x2cb1ed4a30c8bdedL, 0x61c29137c9eb93beL },
+		{ 255, 0xc77eae9c20c21088L, 0x615a9bb9bc500635L },
+		{ 500, 0xe6a80ccdd541dd5dL, 0x950ab78b7d5b3789L },
+		{ 1024, 0x5ec111a1e5a293aeL, 0x02cc9c6f55f44b79L },
+		{ 1025, 0x5ea0264528a903fcL, 0xf2a1f50896e5dfd5L },
+		{ 2048, 0x82651c64d545e737L, 0x450bebcd6316a41fL },
+		{ 4103, 0x5aeb4f0b7b1369b2L, 0x211e3eac1c05540dL },
+	};
+
+	// length, low and high half of XXH3_128bits_withSeed with seed 0, then with SEED
+	private static final long[][] VECTORS_128 = {
+		{ 0, 0x6001c324468d497fL, 0x99aa06d3014798d8L, 0x4ca5176998171787L, 0xd142977a2cca554bL },
+		{ 1, 0xc00f9d4f580c0c3aL, 0xc89f16e01381dd11L, 0xe8c373bb37200c74L, 0x548cd7e5841fc8d3L },
+		{ 3, 0xe92112d1e602af4aL, 0x042980e29fe07a72L, 0xb68a6cc6a268845aL, 0xd225240cbe9716cfL },
+		{ 4, 0xf38741e1b9ccfbd4L, 0x960811bdc2cb9dc3L, 0xf30ebef49357a8aaL, 0xf5a8c0f64054c16aL },
+		{ 8, 0x9aac4cd28c312a76L, 0xff5c240882695f40L, 0xaa7aa1530cc041edL, 0xc7a7ba041b6dfd8aL },
+		{ 9, 0x289d4cd1af0c84bdL, 0x3ad200a3678150cdL, 0xb8f7f426dc874bcfL, 0x3d646fd5307c77f0L },
+		{ 16, 0x729073442c453ee7L, 0x09bfcf6d0d0c7508L, 0xff6f97beffdd4584L, 0x509470d0416cca63L },
+		{ 17, 0xd0b31235d80538afL, 0xc0e06f2f6b379f4aL, 0x031c28842f1fd843L, 0xe1829cc10c8079e0L },
+		{ 33, 0x0f2a1f3d6e780688L, 0xf01a5f3912b24aacL, 0x33921df7eaee441dL, 0xc2313adde6100276L },
+		{ 64, 0xed9a84b3780fc908L, 0x7d7cc02bbb48520eL, 0x5e868b242ef5e925L, 0x128e55fa5de6e009L },
+		{ 65, 0xac9b1ce636d915daL, 0x559e598dd20cb466L, 0x09215847742c1c41L, 0x92fb13f8f06af35cL },
+		{ 128, 0xc14ef9bdf2926d91L, 0xb0c97cf51fbd420eL, 0x1f02d4471a9991f4L, 0xb3bd138e07e1e755L },
+		{ 129, 0x1c66bb88fb267529L, 0x77672b5beabfd29eL, 0x7e3825f71d3cb3f2L, 0x2f2c41c3687835d1L },
+		{ 200, 0x9346df8399c88499L, 0xd2e5234aded135cfL, 0x9088fb987ee468e6L, 0xde345a99ad7946dfL },
+		{ 240, 0x0dfe588c76a0d834L, 0x05fb829868e88d8bL, 0x0cf01b9e825a3254L, 0x02cf62797e8c637eL },
+		{ 241, 0x2cb1ed4a30c8bdedL, 0x19f9ed05e7993896L, 0x61c29137c9eb93beL, 0x212f8615e20804beL },
+		{ 255, 0xc77eae9c20c21088L, 0x42c2c2a055b3ccf1L, 0x615a9bb9bc500635L, 0x137e26df68be7d2eL },
+		{ 500, 0xe6a80ccdd541dd5dL, 0x0b4dd16921d9b08fL, 0x950ab78b7d5b3789L, 0xa1d7e1a0ea4fc4e9L },
+		{ 1024, 0x5ec111a1e5a293aeL, 0x92da9c0cebcc106cL, 0x02cc9c6f55f44b79L, 0x5eb54663bcd7cebbL },
+		{ 1025, 0x5ea0264528a903fcL, 0x76c00571248d6978L, 0xf2a1f50896e5dfd5L, 0xe07bf25ff2aae222L },
+		{ 2048, 0x82651c64d545e737L, 0xab48f2dea3ca5addL, 0x450bebcd6316a41fL, 0xbd50b7b54800b89dL },
+		{ 4103, 0x5aeb4f0b7b1369b2L, 0xc8826893de7de502L, 0x211e3eac1c05540dL, 0xd57e25094968d5cdL },
+	};
+
+	@Test
+	public void matches64BitReference() {
+		for (long[] v : VECTORS_64) {
+			byte[] input = HashTestInputs.bytes((int) v[0]);
+			assertEquals("len " + v[0], v[1], new XXH3HashFunction(0, 64).hashBytes(input).asLong());
+			assertEquals("len " + v[0], v[2], new XXH3HashFunction(SEED, 64).hashBytes(input).asLong());
+		}
+	}
+
+	@Test
+	public void matches128BitReference() {
+		for (long[] v : VECTORS_128) {
+			byte[] input = HashTestInputs.bytes((int) v[0]);
+			assert128("len " + v[0], v[1], v[2], new XXH3HashFunction(0, 128).hashBytes(input));
+			assert128("len " + v[0], v[3], v[4], new XXH3HashFunction(SEED, 128).hashBytes(input));
+		}
+	}
+
+	@Test
+	public void streamingMatchesOneShot() {
+		for (long[] v : VECTORS_128) {
+			byte[] input = HashTestInputs.bytes((int) v[0]);
+			assert128("len " + v[0], v[3], v[4], HashTestInputs.hashInPieces(new XXH3HashFunction(SEED, 128), input));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsOtherWidths() {
+		new XXH3HashFunction(0, 32);
+	}
+
+	private static void assert128(String message, long low, long high, HashCode hash) {
+		byte[] bytes = hash.asBytes();
+		assertEquals(16, bytes.length);
+		long l = 0;
+		long h = 0;
+		for (int i = 7; i >= 0; i--) {
+			l = l << 8 | (bytes[i] & 0xFF);
+			h = h << 8 | (bytes[i + 8] & 0xFF);
+		}
+		assertEquals(message, low, l);
+		assertEquals(message, high, h);
+	}
+}
@@ -0,0 +1,98 @@
+package com.google.common.hash;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+public class xxHashFunctionTest {
+
+	private static final long SEED = 0x9E3779B97F4A7C15L;
+
+	// length, XXH64 with seed 0, XXH64 with SEED
+	private static final long[][] VECTORS = {
+			{ 0, 0xef46db3751d8e999L, 0xc4349fc93c010000L },
+			{ 1, 0xf88dba187615c755L, 0x247e88452cfeb326L },
+			{ 3, 0xa8289444bacb8722L, 0x78593891bac2b4ddL },
+			{ 4, 0xb5f3937e33746dfeL, 0xcf7604471137b8ccL },
+			{ 8, 0x483dbbb3efaf16afL, 0x52a58be1211ee0fcL },
+			{ 9, 0x0faa477e430ae42eL, 0x9e6194ba5cd7f9a5L },
+			{ 16, 0x45e3168c5a177612L, 0x44c505971a6f1402L },
+			{ 17, 0x44570e72b4caef4fL, 0x6d0e95740bbb6edfL },
+			{ 33, 0x0ca16790699c7125L, 0x23cfe2afcadc2df8L },
+			{ 64, 0x3d88d4fd7deccfc0L, 0x9a42644266a8ca8cL },
+			{ 65, 0xac4a4540f43c6383L, 0xc2b2a579b85c7ffcL },
+			{ 128, 0xfb584860b12e8dddL, 0x0ee734a0a2d412d4L },
+			{ 129, 0xa8246ddfa8e3db1cL, 0xf37124542b6afdd7L },
+			{ 200, 0x0482702c982add2cL, 0xc9f1e5c09c918cc9L },
+			{ 240, 0x18f74c23a0bcc206L, 0x6f0b704b2e12c976L },
+			{ 241, 0x33070583779dd991L, 0x73fca64d505ddd48L },
+			{ 255, 0xe717b23579f76346L, 0x835f182cd8c90ec4L },
+			{ 500, 0xfbb0c6868870df78L, 0xc93079cdf665598eL },
+			{ 1024, 0xa667c01059f6e47fL, 0xc79f6ba48628d748L },
+			{ 1025, 0x6bf683827b9fb4b2L, 0xc47df542197328bbL },
+			{ 2048, 0xcd6844524fa9c696L, 0x2ae025769b83e153L },
+			{ 4103, 0xb546eaab358d208bL, 0xd8da9ef017cf9068L },
+	};
+
+	@Test
+	public void matchesReference() {
+		for (long[] v : VECTORS) {
+			byte[] input = HashTestInputs.bytes((int) v[0]);
+			assertEquals("len " + v[0], v[1], new xxHashFunction(0).hashBytes(input).asLong());
+			assertEquals("len " + v[0], v[2], new xxHashFunction(SEED).hashBytes(input).asLong());
+		}
+	}
+
+	@Test
+	public void streamingMatchesOneShot() {
+		for (long[] v : VECTORS) {
+			byte[] input = HashTestInputs.bytes((int) v[0]);
+			assertEquals("len " + v[0], v[2], HashTestInputs.hashInPieces(new xxHashFunction(SEED), input).asLong());
+		}
+	}
+
+	@Test
+	public void resetHasherStartsOver() {
+		xxHashFunction.xxHasher hasher = new xxHashFunction(SEED).newHasher();
+		hasher.putBytes(HashTestInputs.bytes(100));
+		hasher.reset();
+		hasher.putBytes(HashTestInputs.bytes(241));
+		assertEquals(new xxHashFunction(SEED).hashBytes(HashTestInputs.bytes(241)).asLong(), hasher.hashLong());
+	}
+
+	/**
+	 * Hashing a key in place, in an array or at absolute indexes of a buffer,
+	 * gives the same value as putting its bytes and the suffix, and leaves the
+	 * buffer's position, limit and order as they were. Lengths are on both
+	 * sides of a long and of the 32 byte stripe.
+	 */
+	@Test
+	public void inPlaceBytesMatchStreaming() {
+		xxHashFunction function = new xxHashFunction(SEED);
+		xxHashFunction.xxHasher hasher = function.newHasher();
+		long suffix = 0x0123456789abcdefL;
+		for (int len : new int[] { 0, 1, 7, 8, 9, 31, 32, 33, 63, 64, 65, 100 }) {
+			byte[] key = HashTestInputs.bytes(len);
+			long expected = function.newHasher().putBytes(key).putLong(suffix).hash().asLong();
+			for (int off : new int[] { 0, 1, 3, 8 }) {
+				String at = "len " + len + " off " + off;
+				byte[] array = new byte[off + len + 3];
+				System.arraycopy(key, 0, array, off, len);
+				assertEquals(at, expected, hasher.hashBytes(array, off, len, suffix));
+				for (ByteBuffer buffer : HashTestInputs.buffers(array)) {
+					int position = buffer.position();
+					int limit = buffer.limit();
+					ByteOrder order = buffer.order();
+					String in = at + " " + buffer + " " + order;
+					assertEquals(in, expected, hasher.hashBytes(buffer, off, len, suffix));
+					assertEquals(in, position, buffer.position());
+					assertEquals(in, limit, buffer.limit());
+					assertEquals(in, order, buffer.order());
+				}
+			}
+		}
+	}
+}
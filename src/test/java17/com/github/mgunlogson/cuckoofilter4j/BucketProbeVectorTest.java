@@ -0,0 +1,92 @@
+package com.github.mgunlogson.cuckoofilter4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * The vector compares of the Java 17 BucketProbe against its scalar loops,
+ * bit for bit. Built and run by the java17-vector profile, which compiles
+ * the Java 17 classes ahead of the Java 8 ones on the test classpath and
+ * starts the tests with the vector module.
+ */
+public class BucketProbeVectorTest {
+
+    @Test
+    public void vectorModuleIsUsed() {
+        assertTrue(BucketProbe.isVectorized());
+        assertEquals(0, BucketProbe.PROBE_SLOTS % BucketProbe.VectorProbe.SPECIES.length());
+    }
+
+    @Test
+    public void containsMatchesScalarOnRandomSlots() {
+        Random random = new Random(1);
+        int lookups = CountingCuckooFilter.PROBE_BATCH;
+        long[] slots = new long[lookups * BucketProbe.PROBE_SLOTS + BucketProbe.PROBE_SLOTS];
+        long[] tags = new long[lookups];
+        boolean[] vector = new boolean[lookups + 3];
+        boolean[] scalar = new boolean[lookups + 3];
+        for (int round = 0; round < 20000; round++) {
+            // a small range so hits are common, with plenty of empty and
+            // zeroed tagBox count slots, and now and then full 64 bit values
+            long range = round % 3 == 0 ? 8 : 1L << (1 + round % 47);
+            for (int i = 0; i < slots.length; i++) {
+                slots[i] = random.nextInt(4) == 0 ? 0 : Math.floorMod(random.nextLong(), range);
+            }
+            if (round % 5 == 0) {
+                slots[random.nextInt(slots.length)] = random.nextLong();
+            }
+            for (int i = 0; i < lookups; i++) {
+                tags[i] = random.nextInt(8) == 0 ? 0 : Math.floorMod(random.nextLong(), range);
+            }
+            for (int at = 0; at <= BucketProbe.PROBE_SLOTS; at += 3) {
+                for (int i = 0; i < lookups; i++) {
+                    int from = at + i * BucketProbe.PROBE_SLOTS;
+                    assertEquals("round " + round, BucketProbe.scalarContains(slots, from, tags[i]),
+                            BucketProbe.VectorProbe.contains(slots, from, tags[i]));
+                }
+            }
+            int n = 1 + random.nextInt(lookups);
+            int outAt = random.nextInt(3);
+            BucketProbe.VectorProbe.containsAll(slots, tags, n, vector, outAt);
+            BucketProbe.scalarContainsAll(slots, tags, n, scalar, outAt);
+            assertEquals("round " + round, Arrays.toString(scalar), Arrays.toString(vector));
+        }
+    }
+
+    /**
+     * Slots read from real tables, where a tagBox's count slot is zeroed and
+     * tags can share values with counts.
+     */
+    @Test
+    public void containsMatchesScalarOnTableSlots() {
+        Random random = new Random(2);
+        for (int bitsPerTag : new int[] { 5, 8, 13, 16 }) {
+            FilterTable table = FilterTable.create(bitsPerTag, 64);
+            for (int i = 0; i < 400; i++) {
+                long b = random.nextInt(64);
+                long tag = 1 + random.nextInt(20);
+                if (random.nextInt(4) == 0) {
+                    table.insertTagBoxToBucket(b, tag, 4 + random.nextInt(20));
+                } else {
+                    table.insertTagToBucket(b, tag);
+                }
+            }
+            long[] slots = new long[BucketProbe.PROBE_SLOTS];
+            for (long i1 = 0; i1 < 64; i1++) {
+                for (long i2 = 0; i2 < 64; i2 += 7) {
+                    table.readCandidates(i1, i2, slots, 0);
+                    for (long tag = 0; tag < 30; tag++) {
+                        assertEquals(BucketProbe.scalarContains(slots, 0, tag),
+                                BucketProbe.VectorProbe.contains(slots, 0, tag));
+                        assertEquals(BucketProbe.scalarContains(slots, 0, tag), BucketProbe.contains(slots, 0, tag));
+                    }
+                }
+            }
+        }
+    }
+}